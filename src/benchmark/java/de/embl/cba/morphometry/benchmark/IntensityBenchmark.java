@@ -0,0 +1,70 @@
+package de.embl.cba.morphometry.benchmark;
+
+import de.embl.cba.morphometry.Algorithms;
+import de.embl.cba.morphometry.IntensityHistogram;
+import de.embl.cba.morphometry.PositionAndValue;
+import de.embl.cba.morphometry.Projection;
+import de.embl.cba.morphometry.synthetic.SyntheticImages;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.logic.BitType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Projections, histograms and local maxima on 3D intensity images with spherical objects.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@SuppressWarnings( { "unchecked", "rawtypes" } )
+public class IntensityBenchmark
+{
+	@Param( { "64", "128" } )
+	public long size;
+
+	@Param( { "0.05", "0.3" } )
+	public double density;
+
+	@Param( { SyntheticImages.UNSIGNED_BYTE, SyntheticImages.UNSIGNED_SHORT, SyntheticImages.FLOAT } )
+	public String pixelType;
+
+	// raw, because benchmark classes must not be generic
+	private ArrayImg intensities;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final ArrayImg< BitType, ? > mask = SyntheticImages.createMask( SyntheticImages.createSphereLabelImg( size, 3, density, 5, 42 ) );
+		intensities = SyntheticImages.createIntensities( mask, pixelType, 190, 10, 10, 42 );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval maximumProjection()
+	{
+		return new Projection( intensities, 2 ).maximum();
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval medianProjection()
+	{
+		return new Projection( intensities, 2 ).median();
+	}
+
+	@Benchmark
+	public IntensityHistogram intensityHistogram()
+	{
+		return new IntensityHistogram( intensities, 255, 1 );
+	}
+
+	@Benchmark
+	public ArrayList< PositionAndValue > localMaxima()
+	{
+		return Algorithms.getLocalMaxima( intensities, 3, 100 );
+	}
+}
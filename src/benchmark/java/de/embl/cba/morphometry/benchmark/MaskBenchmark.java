@@ -0,0 +1,81 @@
+package de.embl.cba.morphometry.benchmark;
+
+import de.embl.cba.morphometry.Algorithms;
+import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMLJ;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidsMLJ;
+import de.embl.cba.morphometry.synthetic.SyntheticImages;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Labeling, size filtering, morphology and moments on 3D masks with spherical objects.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class MaskBenchmark
+{
+	@Param( { "64", "128", "256" } )
+	public long size;
+
+	@Param( { "0.05", "0.3" } )
+	public double density;
+
+	private ArrayImg< BitType, ? > mask;
+
+	private RandomAccessibleInterval< BitType > maskCopy;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		mask = SyntheticImages.createMask( SyntheticImages.createSphereLabelImg( size, 3, density, 5, 42 ) );
+	}
+
+	@Setup( Level.Invocation )
+	public void copyMask()
+	{
+		// removeSmallRegionsInMask modifies its input
+		maskCopy = Utils.copyAsArrayImg( mask );
+	}
+
+	@Benchmark
+	public ImgLabeling< Integer, IntType > asImgLabeling()
+	{
+		return Utils.asImgLabeling( mask );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< BitType > removeSmallRegionsInMask()
+	{
+		Algorithms.removeSmallRegionsInMask( maskCopy, 100, 1.0 );
+		return maskCopy;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< BitType > erode()
+	{
+		return Algorithms.erode( mask, 2 );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< BitType > close()
+	{
+		return Algorithms.close( mask, 2 );
+	}
+
+	@Benchmark
+	public EllipsoidMLJ ellipsoidParameters()
+	{
+		return EllipsoidsMLJ.computeParametersFromBinaryImage( mask );
+	}
+}
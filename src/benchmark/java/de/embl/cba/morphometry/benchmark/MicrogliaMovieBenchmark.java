@@ -0,0 +1,67 @@
+package de.embl.cba.morphometry.benchmark;
+
+import de.embl.cba.morphometry.synthetic.SyntheticDataSettings;
+import de.embl.cba.morphometry.synthetic.SyntheticImages;
+import de.embl.cba.morphometry.synthetic.SyntheticMicrogliaMovie;
+import de.embl.cba.morphometry.tracking.MaximalOverlapTracker;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracking of the ground truth masks of synthetic microglia movies.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class MicrogliaMovieBenchmark
+{
+	@Param( { "512", "1024" } )
+	public long size;
+
+	@Param( { "20", "100" } )
+	public int numObjects;
+
+	@Param( { SyntheticDataSettings.BLOBS, SyntheticDataSettings.BRANCHED } )
+	public String objectShape;
+
+	@Param( { "20" } )
+	public int numFrames;
+
+	private ArrayList< RandomAccessibleInterval< BitType > > masks;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final SyntheticDataSettings settings = new SyntheticDataSettings();
+		settings.movieWidth = size;
+		settings.movieHeight = size;
+		settings.numObjects = numObjects;
+		settings.objectShape = objectShape;
+		settings.numFrames = numFrames;
+
+		final SyntheticMicrogliaMovie movie = new SyntheticMicrogliaMovie( settings );
+		movie.run();
+
+		masks = new ArrayList<>();
+		for ( RandomAccessibleInterval< IntType > labeling : movie.getLabelings() )
+		{
+			masks.add( SyntheticImages.createMask( labeling ) );
+		}
+	}
+
+	@Benchmark
+	public ArrayList< RandomAccessibleInterval< IntType > > maximalOverlapTracking()
+	{
+		final MaximalOverlapTracker tracker = new MaximalOverlapTracker( masks );
+		tracker.run();
+		return tracker.getLabelings();
+	}
+}
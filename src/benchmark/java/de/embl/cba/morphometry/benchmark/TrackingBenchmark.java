@@ -0,0 +1,84 @@
+package de.embl.cba.morphometry.benchmark;
+
+import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.measurements.Measurements;
+import de.embl.cba.morphometry.synthetic.SyntheticImages;
+import de.embl.cba.morphometry.tracking.TrackingUtils;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.numeric.integer.IntType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overlaps of consecutive 2D label images and assembly of measurement tables.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class TrackingBenchmark
+{
+	@Param( { "512", "2048" } )
+	public long size;
+
+	@Param( { "0.05", "0.3" } )
+	public double density;
+
+	@Param( { "100" } )
+	public int numTimePoints;
+
+	private ArrayImg< IntType, ? > previousLabelImg;
+	private ArrayList< LabelRegion< Integer > > currentRegions;
+	private ArrayList< HashMap< Integer, Map< String, Object > > > measurementsTimePointList;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		previousLabelImg = SyntheticImages.createSphereLabelImg( size, 2, density, 10, 42 );
+
+		final ImgLabeling< Integer, IntType > currentLabeling = Utils.asImgLabeling( SyntheticImages.createMask( SyntheticImages.createSphereLabelImg( size, 2, density, 10, 43 ) ) );
+		currentRegions = new ArrayList<>();
+		for ( LabelRegion< Integer > region : new LabelRegions<>( currentLabeling ) ) currentRegions.add( region );
+
+		measurementsTimePointList = new ArrayList<>();
+		for ( int t = 0; t < numTimePoints; ++t )
+		{
+			final HashMap< Integer, Map< String, Object > > measurements = new HashMap<>();
+			for ( int label = 1; label <= currentRegions.size(); ++label )
+			{
+				Measurements.addMeasurement( measurements, label, Measurements.VOLUME, label * 10L );
+				Measurements.addMeasurement( measurements, label, Measurements.SUM_INTENSITY, label * 1000.0 );
+				Measurements.addMeasurement( measurements, label, Measurements.SKELETON_LENGTH, label * 0.5 );
+			}
+			measurementsTimePointList.add( measurements );
+		}
+	}
+
+	@Benchmark
+	public ArrayList< HashMap< Integer, Long > > computeOverlaps()
+	{
+		final ArrayList< HashMap< Integer, Long > > overlaps = new ArrayList<>();
+
+		for ( LabelRegion< Integer > region : currentRegions )
+		{
+			overlaps.add( TrackingUtils.computeOverlaps( previousLabelImg, region ) );
+		}
+
+		return overlaps;
+	}
+
+	@Benchmark
+	public ArrayList< String > asTableRows()
+	{
+		return Measurements.asTableRows( measurementsTimePointList );
+	}
+}
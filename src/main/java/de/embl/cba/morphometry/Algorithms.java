@@ -1,10 +1,14 @@
 package de.embl.cba.morphometry;
 
+import de.embl.cba.morphometry.regions.ConnectedComponentLabeling;
+import de.embl.cba.morphometry.regions.RegionRaster;
 import de.embl.cba.morphometry.regions.Regions;
+import de.embl.cba.morphometry.segmentation.SeededWatershed;
 import de.embl.cba.transforms.utils.Transforms;
 import net.imagej.ops.OpService;
 import net.imglib2.*;
 import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.algorithm.morphology.Closing;
 import net.imglib2.algorithm.morphology.Dilation;
 import net.imglib2.algorithm.morphology.Erosion;
@@ -31,13 +35,15 @@ import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import static java.lang.Math.abs;
 
 public class Algorithms
 {
 
-	public static final int WATERSHED = -1;
+	public static final int WATERSHED = SeededWatershed.WATERSHED;
 	private static int closingRadius;
 
 
@@ -163,15 +169,7 @@ public class Algorithms
 	public static Img< UnsignedByteType > createUnsignedByteTypeMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
 	{
 		final Img< UnsignedByteType > centralObjectImg = ArrayImgs.unsignedBytes( dimensions );
-
-		final Cursor< Void > regionCursor = centralObjectRegion.cursor();
-		final RandomAccess< UnsignedByteType > access = centralObjectImg.randomAccess();
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( 255 );
-		}
+		Regions.forEachPixel( centralObjectRegion, centralObjectImg, pixel -> pixel.set( 255 ) );
 		return centralObjectImg;
 	}
 
@@ -180,59 +178,52 @@ public class Algorithms
 			double sizeInCalibratedUnits,
 			double calibration )
 	{
-		final ImgLabeling< Integer, IntType > imgLabeling = Utils.asImgLabeling( mask );
+		final ConnectedComponentLabeling< BitType > labeling = new ConnectedComponentLabeling<>( mask, ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		labeling.run();
 
-		long minimalObjectSize = ( long ) ( sizeInCalibratedUnits / Math.pow( calibration, imgLabeling.numDimensions() ) );
+		long minimalObjectSize = ( long ) ( sizeInCalibratedUnits / Math.pow( calibration, mask.numDimensions() ) );
 
-		final LabelRegions< Integer > labelRegions = new LabelRegions<>( imgLabeling );
-		for ( LabelRegion labelRegion : labelRegions )
-		{
-			if ( labelRegion.size() < minimalObjectSize )
-			{
-				removeRegion( mask, labelRegion );
-			}
-		}
+		final long[] sizes = labeling.getSizes();
+
+		// the sizes are known from the labeling, thus one pass over the label image suffices
+		LoopBuilder.setImages( mask, labeling.getImgLabeling().getIndexImg() ).forEachPixel( ( m, l ) ->
+				{
+					if ( l.get() != 0 && sizes[ l.get() ] < minimalObjectSize )
+					{
+						m.set( false );
+					}
+				}
+		);
 	}
 
 	private static void drawRegion( RandomAccessibleInterval< BitType > img, LabelRegion labelRegion )
 	{
-		final Cursor< Void > regionCursor = labelRegion.cursor();
-		final RandomAccess< BitType > access = img.randomAccess();
-		BitType bitTypeTrue = new BitType( true );
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( bitTypeTrue );
-		}
+		Regions.forEachPixel( labelRegion, img, pixel -> pixel.set( true ) );
 	}
 
 
 	private static void removeRegion( RandomAccessibleInterval< BitType > img, LabelRegion labelRegion )
 	{
-		final Cursor< Void > regionCursor = labelRegion.cursor();
-		final RandomAccess< BitType > access = img.randomAccess();
-		BitType bitTypeFalse = new BitType( false );
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( bitTypeFalse );
-		}
+		Regions.forEachPixel( labelRegion, img, pixel -> pixel.set( false ) );
 	}
 
 	public static Img< BitType > createMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
 	{
 		final Img< BitType > centralObjectImg = ArrayImgs.bits( dimensions );
+		Regions.forEachPixel( centralObjectRegion, centralObjectImg, pixel -> pixel.set( true ) );
+		return centralObjectImg;
+	}
 
-		final Cursor< Void > regionCursor = centralObjectRegion.cursor();
-		final RandomAccess< BitType > access = centralObjectImg.randomAccess();
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( true );
-		}
+	/**
+	 * @param centralObjectRegion
+	 * @param interval must contain the region
+	 * @return mask with the dimensions and origin of the interval
+	 */
+	public static RandomAccessibleInterval< BitType > createMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, Interval interval )
+	{
+		final RandomAccessibleInterval< BitType > centralObjectImg =
+				Transforms.getWithAdjustedOrigin( interval, ArrayImgs.bits( Intervals.dimensionsAsLongArray( interval ) ) );
+		Regions.forEachPixel( centralObjectRegion, centralObjectImg, pixel -> pixel.set( true ) );
 		return centralObjectImg;
 	}
 
@@ -266,11 +257,7 @@ public class Algorithms
 	{
 		Utils.log( "Creating mask...");
 
-		RandomAccessibleInterval< BitType > mask =
-				Converters.convert( downscaled, ( i, o )
-						-> o.set( i.getRealDouble() > threshold ? true : false ), new BitType() );
-
-		return Utils.copyAsArrayImg( mask );
+		return Thresholding.createMask( downscaled, threshold );
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
@@ -492,6 +479,7 @@ public class Algorithms
 	{
 
 		final LabelRegions currentRegions = new LabelRegions( currentImgLabeling );
+		final RegionRaster currentRaster = new RegionRaster( currentImgLabeling );
 
 		for ( int currentObjectLabel : overlappingObjectsLabelsMap.keySet() )
 		{
@@ -500,13 +488,13 @@ public class Algorithms
 
 			if ( overlappingPreviousObjectLabels.size() > 1 )
 			{
-				RandomAccessibleInterval< BitType > currentObjectMask = Regions.labelRegionAsMask( currentRegions.getLabelRegion( currentObjectLabel ) );
+				RandomAccessibleInterval< BitType > currentObjectMask = currentRaster.asMask( currentRegions.getLabelRegion( currentObjectLabel ) );
 				RandomAccessibleInterval< IntType > previousLabelingCrop =  Views.interval( previousLabeling, currentObjectMask );
 
 				currentObjectMask = Views.zeroMin( currentObjectMask );
 				previousLabelingCrop = Views.zeroMin( previousLabelingCrop );
 
-				final RandomAccessibleInterval< T > maskedAndCroppedIntensities = Views.zeroMin( Regions.getMaskedAndCropped( currentIntensities, currentRegions.getLabelRegion( currentObjectLabel ) ) );
+				final RandomAccessibleInterval< T > maskedAndCroppedIntensities = Views.zeroMin( currentRaster.asMaskedAndCropped( currentIntensities, currentRegions.getLabelRegion( currentObjectLabel ) ) );
 
 				final RandomAccessibleInterval< IntType > overlapLabeling =
 						createOverlapLabeling(
@@ -542,20 +530,16 @@ public class Algorithms
 //								maskedAndCroppedIntensities,
 //								localMaxima );
 
-				final ImgLabeling< Integer, IntType > watershedImgLabeling = createEmptyImgLabeling( currentObjectMask );
-
-				final ImgLabeling< Integer, IntType > seedsImgLabeling = createImgLabelingFromLabeling( overlappingPreviousObjectLabels, overlapLabeling );
-
-				final RandomAccessibleInterval< T > invertedView = Utils.invertedView( maskedAndCroppedIntensities );
-
-				opService.image().watershed(
-						watershedImgLabeling,
-						invertedView,
-						seedsImgLabeling,
+				final SeededWatershed< T > watershed = new SeededWatershed<>(
+						maskedAndCroppedIntensities,
+						overlapLabeling,
+						currentObjectMask,
 						true,
 						true,
-						currentObjectMask );
+						true );
+				watershed.run();
 
+				final ImgLabeling< Integer, IntType > watershedImgLabeling = watershed.getImgLabeling();
 
 				LabelRegions< Integer > splitObjects = new LabelRegions( watershedImgLabeling );
 
@@ -568,14 +552,14 @@ public class Algorithms
 					removeSmallRegionsInMask( outputMask, minimalObjectSize, 1 );
 					if ( showSplits )
 					{
-						ImageJFunctions.show( watershedImgLabeling.getSource(), "" + currentObjectLabel );
+						ImageJFunctions.show( watershed.getLabelImg(), "" + currentObjectLabel );
 					}
 				}
 				else
 				{
 					Utils.log( "\n\nERROR DURING OBJECT SPLITTING\n\n" );
 					ImageJFunctions.show( overlapLabeling ).setTitle( currentObjectLabel+"overlap" );
-					ImageJFunctions.show( watershedImgLabeling.getIndexImg() ).setTitle( currentObjectLabel+"watershed" );
+					ImageJFunctions.show( watershed.getLabelImg() ).setTitle( currentObjectLabel+"watershed" );
 					ImageJFunctions.show( previousLabelingCrop ).setTitle( currentObjectLabel+"previousLabeling" );
 					// TODO: examine these cases
 				}
@@ -620,86 +604,131 @@ public class Algorithms
 			boolean showSplittingAttempts )
 	{
 
-		final LabelRegions labelRegions = new LabelRegions( imgLabeling );
+		final LabelRegions< Integer > labelRegions = new LabelRegions( imgLabeling );
+		final RegionRaster raster = new RegionRaster( imgLabeling );
 
+		// fetch the regions upfront, because LabelRegions is not thread-safe
+		final HashMap< Integer, LabelRegion< Integer > > candidateRegions = new HashMap<>();
 		for ( int label : numObjectsPerRegion.keySet() )
 		{
 			if ( numObjectsPerRegion.get( label ) > 1 )
 			{
+				candidateRegions.put( label, labelRegions.getLabelRegion( label ) );
+			}
+		}
 
-				final RandomAccessibleInterval< T > maskedAndCroppedIntensities = Views.zeroMin( Regions.getMaskedAndCropped( intensity, labelRegions.getLabelRegion( label ) ) );
-				final RandomAccessibleInterval< BitType > labelRegionMask = Views.zeroMin( Regions.labelRegionAsMask( labelRegions.getLabelRegion( label ) ) );
-
-				final ArrayList< PositionAndValue > localMaxima =
-						computeSortedLocalIntensityMaxima(
-								2 * minimalObjectWidth,
-								maskedAndCroppedIntensities,
-								showSplittingAttempts );
+		// the candidate regions are disjoint, thus they can be split concurrently
+		final Map< Integer, LabelRegions< Integer > > splitObjectsPerLabel = new ConcurrentHashMap<>();
+		final AsyncLogger.Context logContext = AsyncLogger.getContext();
+		final List< Integer > splitLabels = new ArrayList<>( new TreeSet<>( candidateRegions.keySet() ) )
+				.parallelStream()
+				.filter( label -> AsyncLogger.callWithContext( logContext, () -> isValidSplitFound(
+						label,
+						candidateRegions.get( label ),
+						raster,
+						intensity,
+						numObjectsPerRegion.get( label ),
+						minimalObjectWidth,
+						minimalObjectSize,
+						maximalWatershedBoundaryLength,
+						forceSplit,
+						showSplittingAttempts,
+						splitObjectsPerLabel ) ) )
+				.collect( Collectors.toList() );
+
+		if ( splitLabels.isEmpty() ) return;
+
+		for ( int label : splitLabels )
+		{
+			drawWatershedIntoMask( mask, candidateRegions.get( label ), splitObjectsPerLabel.get( label ) );
+		}
 
-				if ( localMaxima.size() < numObjectsPerRegion.get( label ) )
-				{
-					Utils.log( "\n\nERROR: Not enough local maxima found for object: " + label + "\n\n");
-					continue; // TODO: check these cases
-				}
+		// sometimes the watershed is weirdly placed such that very small (single pixel) objects can occur
+		removeSmallRegionsInMask( mask, minimalObjectSize, 1 );
+	}
 
-				final RandomAccessibleInterval< BitType > seeds =
-						positionsAsBinaryImage( numObjectsPerRegion.get( label ),
-									maskedAndCroppedIntensities,
-									localMaxima );
+	private static < T extends RealType< T > & NativeType< T > >
+	boolean isValidSplitFound(
+			int label,
+			LabelRegion< Integer > labelRegion,
+			RegionRaster raster,
+			RandomAccessibleInterval< T > intensity,
+			int numObjects,
+			long minimalObjectWidth,
+			long minimalObjectSize,
+			long maximalWatershedBoundaryLength,
+			boolean forceSplit,
+			boolean showSplittingAttempts,
+			Map< Integer, LabelRegions< Integer > > splitObjectsPerLabel )
+	{
+		// the splits are kept and run concurrently on the common pool, thus the raster's buffers are not used
+		final RandomAccessibleInterval< T > maskedAndCroppedIntensities = Views.zeroMin( raster.createMaskedAndCropped( intensity, labelRegion ) );
+		final RandomAccessibleInterval< BitType > labelRegionMask = Views.zeroMin( raster.createMask( labelRegion ) );
 
-				final ImgLabeling< Integer, IntType > watershedImgLabeling = createEmptyImgLabeling( labelRegionMask );
-				final ImgLabeling< Integer, IntType > seedsImgLabeling = Utils.asImgLabeling( seeds );
+		final ArrayList< PositionAndValue > localMaxima =
+				computeSortedLocalIntensityMaxima(
+						2 * minimalObjectWidth,
+						maskedAndCroppedIntensities,
+						showSplittingAttempts );
 
-				opService.image().watershed(
-						watershedImgLabeling,
-						Utils.invertedView( maskedAndCroppedIntensities ),
-						seedsImgLabeling,
-						true,
-						true,
-						labelRegionMask );
+		if ( localMaxima.size() < numObjects )
+		{
+			Utils.log( "\n\nERROR: Not enough local maxima found for object: " + label + "\n\n");
+			return false; // TODO: check these cases
+		}
 
+		final RandomAccessibleInterval< IntType > seeds =
+				positionsAsLabelImage( numObjects,
+							maskedAndCroppedIntensities,
+							localMaxima );
 
-				LabelRegions< Integer > splitObjects = new LabelRegions( watershedImgLabeling );
+		final SeededWatershed< T > watershed = new SeededWatershed<>(
+				maskedAndCroppedIntensities,
+				seeds,
+				labelRegionMask,
+				true,
+				true,
+				true );
+		watershed.run();
 
-				if ( ! splitObjects.getExistingLabels().contains( -1 ) )
-				{
-					Utils.log( "\n\nERROR DURING OBJECT SPLITTING\n\n" );
-					continue; // TODO: examine these cases
-				}
+		final ImgLabeling< Integer, IntType > watershedImgLabeling = watershed.getImgLabeling();
 
+		LabelRegions< Integer > splitObjects = new LabelRegions( watershedImgLabeling );
 
-				boolean isValidSplit;
+		if ( ! splitObjects.getExistingLabels().contains( -1 ) )
+		{
+			Utils.log( "\n\nERROR DURING OBJECT SPLITTING\n\n" );
+			return false; // TODO: examine these cases
+		}
 
-				if ( forceSplit )
-				{
-					isValidSplit = true;
-				}
-				else
-				{
-					// TODO: add integrated intensity along watershed as criterium
-					isValidSplit = checkSplittingValidity(
-							splitObjects,
-							minimalObjectSize,
-							maximalWatershedBoundaryLength );
-				}
+		boolean isValidSplit;
 
-				Utils.log( "Valid split found: " + isValidSplit );
+		if ( forceSplit )
+		{
+			isValidSplit = true;
+		}
+		else
+		{
+			// TODO: add integrated intensity along watershed as criterium
+			isValidSplit = checkSplittingValidity(
+					splitObjects,
+					minimalObjectSize,
+					maximalWatershedBoundaryLength );
+		}
 
-				if ( showSplittingAttempts )
-				{
-					ImageJFunctions.show( watershedImgLabeling.getSource(), "" + label + "-" + isValidSplit );
-				}
+		Utils.debug( "Valid split found: " + isValidSplit );
 
-				if ( isValidSplit )
-				{
-					drawWatershedIntoMask( mask, labelRegions, label, splitObjects );
-					// sometimes the watershed is weirdly placed such that very small (single pixel) objects can occur
-					removeSmallRegionsInMask( mask, minimalObjectSize, 1 );
-				}
+		if ( showSplittingAttempts )
+		{
+			ImageJFunctions.show( watershed.getLabelImg(), "" + label + "-" + isValidSplit );
+		}
 
-			}
+		if ( isValidSplit )
+		{
+			splitObjectsPerLabel.put( label, splitObjects );
 		}
 
+		return isValidSplit;
 	}
 
 
@@ -713,11 +742,12 @@ public class Algorithms
 		RandomAccessibleInterval< BitType > skeletons = ArrayImgs.bits( Intervals.dimensionsAsLongArray( imgLabeling ) );
 		skeletons = Transforms.getWithAdjustedOrigin( imgLabeling.getSource(), skeletons );
 
-		final LabelRegions< IntType > labelRegions = new LabelRegions( imgLabeling );
+		final LabelRegions< Integer > labelRegions = new LabelRegions<>( imgLabeling );
+		final RegionRaster raster = new RegionRaster( imgLabeling );
 
-		for ( LabelRegion< IntType > labelRegion : labelRegions )
+		for ( LabelRegion< Integer > labelRegion : labelRegions )
 		{
-			RandomAccessibleInterval< BitType > labelRegionMask = Views.zeroMin( Regions.labelRegionAsMask( labelRegion ) );
+			RandomAccessibleInterval< BitType > labelRegionMask = Views.zeroMin( raster.asMask( labelRegion ) );
 
 			labelRegionMask = Algorithms.close(  labelRegionMask, closingRadius );
 
@@ -792,20 +822,20 @@ public class Algorithms
 	}
 
 	private static < T extends RealType< T > & NativeType< T > >
-	RandomAccessibleInterval< BitType > positionsAsBinaryImage( int numPositions,
+	RandomAccessibleInterval< IntType > positionsAsLabelImage( int numPositions,
 														  RandomAccessibleInterval< T > maskedAndCropped,
 														  ArrayList< PositionAndValue > positions )
 	{
-		RandomAccessibleInterval< BitType > binaryImage = ArrayImgs.bits( Intervals.dimensionsAsLongArray(  maskedAndCropped ) );
-		binaryImage = Transforms.getWithAdjustedOrigin( maskedAndCropped, binaryImage );
+		RandomAccessibleInterval< IntType > labelImage = ArrayImgs.ints( Intervals.dimensionsAsLongArray(  maskedAndCropped ) );
+		labelImage = Transforms.getWithAdjustedOrigin( maskedAndCropped, labelImage );
 
-		final RandomAccess< BitType > randomAccess = binaryImage.randomAccess();
+		final RandomAccess< IntType > randomAccess = labelImage.randomAccess();
 		for ( int i = 0; i < numPositions; ++i )
 		{
 			randomAccess.setPosition( Utils.asLongs( positions.get( i ).position ) );
-			randomAccess.get().setOne();
+			randomAccess.get().set( i + 1 );
 		}
-		return binaryImage;
+		return labelImage;
 	}
 
 	public static boolean checkSplittingValidity(
@@ -906,7 +936,14 @@ public class Algorithms
 											  int label,
 											  LabelRegions< Integer > splitObjects )
 	{
-		final long[] regionOffset = Intervals.minAsLongArray( labelRegions.getLabelRegion( label ) );
+		drawWatershedIntoMask( mask, labelRegions.getLabelRegion( label ), splitObjects );
+	}
+
+	public static void drawWatershedIntoMask( RandomAccessibleInterval< BitType > mask,
+											  LabelRegion labelRegion,
+											  LabelRegions< Integer > splitObjects )
+	{
+		final long[] regionOffset = Intervals.minAsLongArray( labelRegion );
 		LabelRegion watershed = splitObjects.getLabelRegion( -1 );
 		final LabelRegionCursor cursor = watershed.cursor();
 		final RandomAccess< BitType > maskRandomAccess = mask.randomAccess();
@@ -992,6 +1029,7 @@ public class Algorithms
 			int radius )
 	{
 		RandomAccessibleInterval< BitType > morphed = ArrayImgs.bits( Intervals.dimensionsAsLongArray( mask ) );
+		morphed = Transforms.getWithAdjustedOrigin( mask, morphed );
 
 		if ( radius > 0 )
 		{
@@ -0,0 +1,94 @@
+package de.embl.cba.morphometry;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Saves images on a background thread, such that computation and disk I/O overlap.
+ *
+ * Lazy images (e.g. transformed views) are only materialized while being written,
+ * thus the data they are backed by must not be modified before {@link #awaitPendingWrites()} returned.
+ */
+public class AsyncImageWriter
+{
+	private final ExecutorService executorService;
+	private final ArrayList< Future< ? > > pendingWrites;
+
+	public AsyncImageWriter()
+	{
+		executorService = Executors.newSingleThreadExecutor( runnable -> {
+			final Thread thread = new Thread( runnable, "Image writer" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		pendingWrites = new ArrayList<>();
+	}
+
+	public synchronized void saveAsTiff( ImagePlus imagePlus, String path )
+	{
+		pendingWrites.add( executorService.submit( AsyncLogger.withCurrentContext( () -> {
+			new File( path ).getParentFile().mkdirs();
+			Utils.log( "Saving: " + path );
+			if ( ! IJ.saveAsTiff( imagePlus, path ) ) throw new RuntimeException( "Could not save " + path );
+		} ) ) );
+	}
+
+	/**
+	 * Waits for all pending writes, also if some of them failed.
+	 *
+	 * @throws RuntimeException if any of the writes failed; further failures are added as suppressed exceptions
+	 */
+	public synchronized void awaitPendingWrites()
+	{
+		RuntimeException failure = null;
+
+		for ( Future< ? > pendingWrite : pendingWrites )
+		{
+			try
+			{
+				pendingWrite.get();
+			}
+			catch ( ExecutionException e )
+			{
+				final RuntimeException exception = new RuntimeException( "Could not save image", e.getCause() );
+				if ( failure == null ) failure = exception;
+				else failure.addSuppressed( exception );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				pendingWrites.clear();
+				throw new RuntimeException( "Interrupted while waiting for images to be saved", e );
+			}
+		}
+
+		pendingWrites.clear();
+
+		if ( failure != null ) throw failure;
+	}
+
+	/**
+	 * Waits for all pending writes and stops the writer thread.
+	 *
+	 * @throws RuntimeException if any of the writes failed
+	 */
+	public void close()
+	{
+		try
+		{
+			awaitPendingWrites();
+		}
+		finally
+		{
+			executorService.shutdown();
+		}
+	}
+}
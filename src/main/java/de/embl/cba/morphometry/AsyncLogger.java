@@ -0,0 +1,304 @@
+package de.embl.cba.morphometry;
+
+import ij.IJ;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Logs messages to the ImageJ log window and, optionally, to a log file, on a background thread.
+ *
+ * Messages are put into a bounded buffer, from which the writer thread removes them in batches;
+ * each log file is thus opened once per batch rather than once per message.
+ * If the buffer is full, logging blocks until the writer caught up, such that no message is lost.
+ *
+ * The log file and the level are given by the {@link Context} of the logging thread,
+ * such that concurrently processed files can be logged into separate files.
+ * Threads without a context of their own use the default context; thus tasks that are run on other threads
+ * (e.g. by executors or parallel streams) must be wrapped by {@link #withCurrentContext(Runnable)}
+ * or run via {@link #callWithContext(Context, Supplier)} to log into the context of the submitting thread.
+ */
+public class AsyncLogger
+{
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARNING = 2;
+	public static final int ERROR = 3;
+
+	public static final int BUFFER_CAPACITY = 10000;
+	public static final long FLUSH_INTERVAL_MILLIS = 100;
+
+	private static final ArrayBlockingQueue< Entry > buffer = new ArrayBlockingQueue<>( BUFFER_CAPACITY );
+	private static final ThreadLocal< Context > contexts = new ThreadLocal<>();
+	private static volatile Context defaultContext = new Context( null, INFO );
+
+	private static final Object writeMonitor = new Object();
+	private static long numLogged = 0;
+	private static long numWritten = 0;
+	private static Thread writer;
+
+	public static class Context
+	{
+		public final String logFilePath;
+		private volatile int level;
+		private boolean isLogFileCreated;
+
+		/**
+		 * @param logFilePath the file to log into, in addition to the ImageJ log window; may be null
+		 * @param level the minimal level of the messages to be logged
+		 */
+		public Context( String logFilePath, int level )
+		{
+			this.logFilePath = logFilePath;
+			this.level = level;
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+	}
+
+	private static class Entry
+	{
+		final Context context;
+		final String message;
+
+		Entry( Context context, String message )
+		{
+			this.context = context;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Sets the context of the current thread, typically for the processing of one input file.
+	 *
+	 * @param logFilePath the file to log into, which is overwritten; may be null
+	 */
+	public static void beginContext( String logFilePath, int level )
+	{
+		contexts.set( new Context( logFilePath, level ) );
+	}
+
+	/**
+	 * Removes the context of the current thread, which then logs into the default context again,
+	 * and waits until all messages of the context were written.
+	 */
+	public static void endContext()
+	{
+		contexts.remove();
+		flush();
+	}
+
+	/**
+	 * @return the task, running with the context of the current thread, or the task itself if the current thread has no context
+	 */
+	public static Runnable withCurrentContext( Runnable task )
+	{
+		final Context context = contexts.get();
+		if ( context == null ) return task;
+
+		return () -> callWithContext( context, () -> {
+			task.run();
+			return null;
+		} );
+	}
+
+	/**
+	 * Runs the task with the given context, typically captured by {@link #getContext()} on the thread that submits the task,
+	 * and afterwards restores the context of the current thread.
+	 */
+	public static < V > V callWithContext( Context context, Supplier< V > task )
+	{
+		final Context previous = contexts.get();
+		contexts.set( context );
+
+		try
+		{
+			return task.get();
+		}
+		finally
+		{
+			if ( previous == null ) contexts.remove();
+			else contexts.set( previous );
+		}
+	}
+
+	/**
+	 * @param logFilePath the file to log into from threads without a context, which is overwritten; may be null
+	 */
+	public static synchronized void setDefaultLogFilePath( String logFilePath )
+	{
+		defaultContext = new Context( logFilePath, defaultContext.level );
+	}
+
+	/**
+	 * Sets the level of threads without a context; the default is {@link #INFO}.
+	 */
+	public static synchronized void setDefaultLevel( int level )
+	{
+		defaultContext.level = level;
+	}
+
+	public static Context getContext()
+	{
+		final Context context = contexts.get();
+		return context != null ? context : defaultContext;
+	}
+
+	public static boolean isEnabled( int level )
+	{
+		return level >= getContext().level;
+	}
+
+	public static void log( int level, String message )
+	{
+		final Context context = getContext();
+
+		if ( level < context.level ) return;
+
+		startWriter();
+
+		synchronized ( writeMonitor )
+		{
+			numLogged++;
+		}
+
+		try
+		{
+			buffer.put( new Entry( context, message ) );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			synchronized ( writeMonitor )
+			{
+				numLogged--;
+			}
+		}
+	}
+
+	/**
+	 * Waits until all messages logged so far were written.
+	 */
+	public static void flush()
+	{
+		synchronized ( writeMonitor )
+		{
+			final long numToBeWritten = numLogged;
+
+			while ( numWritten < numToBeWritten && writer != null )
+			{
+				try
+				{
+					writeMonitor.wait( FLUSH_INTERVAL_MILLIS );
+				}
+				catch ( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private static synchronized void startWriter()
+	{
+		if ( writer != null ) return;
+
+		writer = new Thread( AsyncLogger::writeEntries, "Log writer" );
+		writer.setDaemon( true );
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook( new Thread( AsyncLogger::flush ) );
+	}
+
+	private static void writeEntries()
+	{
+		final ArrayList< Entry > entries = new ArrayList<>();
+
+		while ( true )
+		{
+			try
+			{
+				final Entry first = buffer.poll( FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+				if ( first == null ) continue;
+				entries.add( first );
+			}
+			catch ( InterruptedException e )
+			{
+				continue;
+			}
+
+			buffer.drainTo( entries );
+
+			write( entries );
+
+			synchronized ( writeMonitor )
+			{
+				numWritten += entries.size();
+				writeMonitor.notifyAll();
+			}
+
+			entries.clear();
+		}
+	}
+
+	private static void write( ArrayList< Entry > entries )
+	{
+		final LinkedHashMap< Context, StringBuilder > fileContents = new LinkedHashMap<>();
+
+		for ( Entry entry : entries )
+		{
+			IJ.log( entry.message );
+
+			if ( entry.context.logFilePath != null )
+			{
+				fileContents.computeIfAbsent( entry.context, context -> new StringBuilder() )
+						.append( entry.message ).append( "\n" );
+			}
+		}
+
+		for ( Map.Entry< Context, StringBuilder > fileContent : fileContents.entrySet() )
+		{
+			appendToLogFile( fileContent.getKey(), fileContent.getValue() );
+		}
+	}
+
+	private static void appendToLogFile( Context context, StringBuilder content )
+	{
+		try
+		{
+			if ( ! context.isLogFileCreated )
+			{
+				content.insert( 0, "Start logging...\n" );
+				Files.write( Paths.get( context.logFilePath ), new byte[ 0 ] );
+				context.isLogFileCreated = true;
+			}
+
+			try ( Writer out = Files.newBufferedWriter(
+					Paths.get( context.logFilePath ),
+					StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND ) )
+			{
+				out.append( content );
+			}
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
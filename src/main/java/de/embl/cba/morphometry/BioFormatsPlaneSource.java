@@ -0,0 +1,631 @@
+package de.embl.cba.morphometry;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import loci.formats.in.TiffReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Exposes the planes of the first series of a Bio-Formats readable file
+ * as a cell image with dimension order XYCZT, one cell per plane.
+ *
+ * Planes are read on demand and kept in a least recently used cache, which holds at least
+ * all planes of one time point, such that e.g. projections along Z read each plane only once.
+ * After a plane was read, the following planes along Z (and then T) of the same channel are
+ * read ahead on a background thread.
+ *
+ * Uncompressed, untiled, single channel TIFF files are read via memory mapping,
+ * bypassing the decoding of Bio-Formats.
+ */
+public class BioFormatsPlaneSource< T extends RealType< T > & NativeType< T > >
+{
+	public static final int NUM_PREFETCHED_PLANES = 4;
+
+	private final String path;
+	private final ImageReader reader;
+	private final int sizeX, sizeY, sizeC, sizeZ, sizeT;
+	private final int pixelType;
+	private final int bytesPerPixel;
+	private final boolean isLittleEndian;
+	private final double[] calibration;
+
+	private final LinkedHashMap< Integer, Object > cache;
+	private final ConcurrentHashMap< Integer, FutureTask< Object > > pendingReads;
+	private final HashSet< Integer > prefetchedPlanes;
+	private final ExecutorService prefetcher;
+	private long numPlaneReads;
+
+	private FileChannel fileChannel;
+	private long[][] stripOffsets;
+	private long[][] stripByteCounts;
+	private ByteOrder mappedByteOrder;
+
+	private RandomAccessibleInterval< T > image;
+
+	public BioFormatsPlaneSource( String path ) throws IOException, FormatException
+	{
+		this( path, getDefaultCacheSizeBytes() );
+	}
+
+	/**
+	 * @param maxCacheSizeBytes the size of the plane cache, which is enlarged
+	 *                          if it cannot hold all planes of one time point
+	 */
+	public BioFormatsPlaneSource( String path, long maxCacheSizeBytes ) throws IOException, FormatException
+	{
+		this.path = path;
+
+		reader = new ImageReader();
+		final IMetadata metadata = createMetadata();
+		reader.setMetadataStore( metadata );
+		reader.setId( path );
+		reader.setSeries( 0 );
+
+		if ( reader.isRGB() )
+		{
+			reader.close();
+			throw new FormatException( "RGB images are not supported: " + path );
+		}
+
+		sizeX = reader.getSizeX();
+		sizeY = reader.getSizeY();
+		sizeC = reader.getSizeC();
+		sizeZ = reader.getSizeZ();
+		sizeT = reader.getSizeT();
+		pixelType = reader.getPixelType();
+		bytesPerPixel = FormatTools.getBytesPerPixel( pixelType );
+		isLittleEndian = reader.isLittleEndian();
+
+		calibration = new double[]{
+				getCalibration( metadata.getPixelsPhysicalSizeX( 0 ) ),
+				getCalibration( metadata.getPixelsPhysicalSizeY( 0 ) ),
+				getCalibration( metadata.getPixelsPhysicalSizeZ( 0 ) ) };
+
+		final long planeSizeBytes = ( long ) sizeX * sizeY * bytesPerPixel;
+		final int maxNumCachedPlanes = ( int ) Math.max(
+				sizeC * sizeZ + NUM_PREFETCHED_PLANES,
+				Math.min( Integer.MAX_VALUE, maxCacheSizeBytes / planeSizeBytes ) );
+
+		cache = new LinkedHashMap< Integer, Object >( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< Integer, Object > eldest )
+			{
+				return size() > maxNumCachedPlanes;
+			}
+		};
+
+		pendingReads = new ConcurrentHashMap<>();
+		prefetchedPlanes = new HashSet<>();
+
+		prefetcher = Executors.newSingleThreadExecutor( runnable -> {
+			final Thread thread = new Thread( runnable, "Plane prefetcher" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		initMemoryMapping();
+	}
+
+	/**
+	 * @return the planes, with dimension order XYCZT; singleton dimensions are kept
+	 */
+	public synchronized RandomAccessibleInterval< T > getImage()
+	{
+		if ( image == null ) image = createImage();
+		return image;
+	}
+
+	/**
+	 * @return the voxel size along X, Y and Z, in micrometer
+	 */
+	public double[] getCalibration()
+	{
+		return calibration.clone();
+	}
+
+	public int getBitDepth()
+	{
+		return pixelType == FormatTools.FLOAT ? 32 : 8 * bytesPerPixel;
+	}
+
+	public int getNChannels()
+	{
+		return sizeC;
+	}
+
+	public int getNSlices()
+	{
+		return sizeZ;
+	}
+
+	public int getNFrames()
+	{
+		return sizeT;
+	}
+
+	/**
+	 * Computes the maximum projections along Z of one channel, for the time points tMin to tMax (zero-based).
+	 *
+	 * Only the planes of this channel and time range are read, one after the other, while the
+	 * previously read plane is accumulated into the projection; the plane cache is bypassed.
+	 *
+	 * @return one 2D array image per time point
+	 */
+	public ArrayList< RandomAccessibleInterval< T > > createMaximumProjections( int c, int tMin, int tMax )
+	{
+		final ArrayList< RandomAccessibleInterval< T > > projections = new ArrayList<>();
+
+		Future< Object > nextPlane = readAhead( reader.getIndex( 0, c, tMin ) );
+
+		for ( int t = tMin; t <= tMax; ++t )
+		{
+			Object maximum = null;
+
+			for ( int z = 0; z < sizeZ; ++z )
+			{
+				final Object plane = await( nextPlane );
+
+				if ( z < sizeZ - 1 ) nextPlane = readAhead( reader.getIndex( z + 1, c, t ) );
+				else if ( t < tMax ) nextPlane = readAhead( reader.getIndex( 0, c, t + 1 ) );
+
+				if ( maximum == null ) maximum = plane;
+				else accumulateMaximum( maximum, plane );
+			}
+
+			projections.add( wrap( maximum ) );
+		}
+
+		return projections;
+	}
+
+	public boolean isMemoryMapped()
+	{
+		return fileChannel != null;
+	}
+
+	/**
+	 * @return the number of planes read from the file so far, including the prefetched ones
+	 */
+	public synchronized long getNumPlaneReads()
+	{
+		return numPlaneReads;
+	}
+
+	public void close()
+	{
+		prefetcher.shutdownNow();
+
+		try
+		{
+			synchronized ( reader )
+			{
+				reader.close();
+			}
+			if ( fileChannel != null ) fileChannel.close();
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+		}
+
+		synchronized ( this )
+		{
+			cache.clear();
+			prefetchedPlanes.clear();
+		}
+	}
+
+	private RandomAccessibleInterval< T > createImage()
+	{
+		final CellGrid grid = new CellGrid(
+				new long[]{ sizeX, sizeY, sizeC, sizeZ, sizeT },
+				new int[]{ sizeX, sizeY, 1, 1, 1 } );
+
+		final int[] cellDimensions = { sizeX, sizeY, 1, 1, 1 };
+
+		final LazyCellImg.Get< Cell< Object > > get = index ->
+		{
+			final int c = ( int ) ( index % sizeC );
+			final int z = ( int ) ( ( index / sizeC ) % sizeZ );
+			final int t = ( int ) ( index / ( ( long ) sizeC * sizeZ ) );
+
+			final Object data = getPlane( c, z, t );
+
+			return new Cell<>( cellDimensions, new long[]{ 0, 0, c, z, t }, asAccess( data ) );
+		};
+
+		return new LazyCellImg( grid, ( NativeType ) createType(), get );
+	}
+
+	/**
+	 * Starts reading ahead whenever a plane is accessed for the first time,
+	 * i.e. when it had to be read or was read ahead.
+	 */
+	private Object getPlane( int c, int z, int t )
+	{
+		final int planeIndex = reader.getIndex( z, c, t );
+
+		Object data;
+
+		synchronized ( this )
+		{
+			data = cache.get( planeIndex );
+			if ( data != null && ! prefetchedPlanes.remove( planeIndex ) ) return data;
+		}
+
+		if ( data == null ) data = readPlane( planeIndex, false );
+
+		prefetch( c, z, t );
+
+		return data;
+	}
+
+	/**
+	 * Reads the plane, unless it is already being read by another thread,
+	 * in which case that read is awaited.
+	 */
+	private Object readPlane( int planeIndex, boolean isPrefetch )
+	{
+		final FutureTask< Object > read = new FutureTask<>( () -> readPlaneFromFile( planeIndex ) );
+		FutureTask< Object > pendingRead = pendingReads.putIfAbsent( planeIndex, read );
+
+		if ( pendingRead == null )
+		{
+			pendingRead = read;
+			read.run();
+		}
+
+		try
+		{
+			final Object data = pendingRead.get();
+
+			synchronized ( this )
+			{
+				if ( pendingReads.remove( planeIndex, pendingRead ) )
+				{
+					cache.put( planeIndex, data );
+					if ( isPrefetch ) prefetchedPlanes.add( planeIndex );
+					numPlaneReads++;
+				}
+			}
+
+			return data;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			pendingReads.remove( planeIndex, pendingRead );
+			throw new RuntimeException( "Could not read plane " + planeIndex + " of " + path, e );
+		}
+	}
+
+	private void prefetch( int c, int z, int t )
+	{
+		for ( int i = 1; i <= NUM_PREFETCHED_PLANES; ++i )
+		{
+			int prefetchZ = z + i;
+			int prefetchT = t;
+			if ( prefetchZ >= sizeZ )
+			{
+				prefetchZ -= sizeZ;
+				prefetchT++;
+			}
+			if ( prefetchT >= sizeT ) return;
+
+			final int planeIndex = reader.getIndex( prefetchZ, c, prefetchT );
+
+			synchronized ( this )
+			{
+				if ( cache.containsKey( planeIndex ) || pendingReads.containsKey( planeIndex ) ) continue;
+			}
+
+			if ( prefetcher.isShutdown() ) return;
+			prefetcher.submit( () -> {
+				synchronized ( this )
+				{
+					if ( cache.containsKey( planeIndex ) ) return;
+				}
+				readPlane( planeIndex, true );
+			} );
+		}
+	}
+
+	private Object readPlaneFromFile( int planeIndex ) throws IOException, FormatException
+	{
+		final int numPixels = sizeX * sizeY;
+
+		if ( fileChannel != null )
+		{
+			final Object data = createArray( numPixels );
+			int pixelOffset = 0;
+
+			for ( int s = 0; s < stripOffsets[ planeIndex ].length; ++s )
+			{
+				final MappedByteBuffer strip = fileChannel.map(
+						FileChannel.MapMode.READ_ONLY,
+						stripOffsets[ planeIndex ][ s ],
+						stripByteCounts[ planeIndex ][ s ] );
+				strip.order( mappedByteOrder );
+
+				final int numStripPixels = Math.min(
+						( int ) ( stripByteCounts[ planeIndex ][ s ] / bytesPerPixel ),
+						numPixels - pixelOffset );
+				copy( strip, data, pixelOffset, numStripPixels );
+				pixelOffset += numStripPixels;
+			}
+
+			return data;
+		}
+		else
+		{
+			final byte[] bytes;
+			synchronized ( reader )
+			{
+				bytes = reader.openBytes( planeIndex );
+			}
+
+			final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+			buffer.order( isLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+
+			final Object data = createArray( numPixels );
+			copy( buffer, data, 0, numPixels );
+			return data;
+		}
+	}
+
+	private Future< Object > readAhead( int planeIndex )
+	{
+		return prefetcher.submit( () -> {
+			final Object data = readPlaneFromFile( planeIndex );
+			synchronized ( this )
+			{
+				numPlaneReads++;
+			}
+			return data;
+		} );
+	}
+
+	private Object await( Future< Object > plane )
+	{
+		try
+		{
+			return plane.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( "Could not read plane of " + path, e );
+		}
+	}
+
+	private void accumulateMaximum( Object maximum, Object plane )
+	{
+		final boolean isUnsigned = pixelType == FormatTools.UINT8
+				|| pixelType == FormatTools.UINT16
+				|| pixelType == FormatTools.UINT32;
+
+		if ( maximum instanceof byte[] )
+		{
+			final byte[] m = ( byte[] ) maximum;
+			final byte[] p = ( byte[] ) plane;
+			final int mask = isUnsigned ? 0xff : -1;
+			for ( int i = 0; i < m.length; ++i )
+				if ( ( p[ i ] & mask ) > ( m[ i ] & mask ) ) m[ i ] = p[ i ];
+		}
+		else if ( maximum instanceof short[] )
+		{
+			final short[] m = ( short[] ) maximum;
+			final short[] p = ( short[] ) plane;
+			final int mask = isUnsigned ? 0xffff : -1;
+			for ( int i = 0; i < m.length; ++i )
+				if ( ( p[ i ] & mask ) > ( m[ i ] & mask ) ) m[ i ] = p[ i ];
+		}
+		else if ( maximum instanceof int[] )
+		{
+			final int[] m = ( int[] ) maximum;
+			final int[] p = ( int[] ) plane;
+			for ( int i = 0; i < m.length; ++i )
+				if ( ( isUnsigned ? Integer.compareUnsigned( p[ i ], m[ i ] ) : Integer.compare( p[ i ], m[ i ] ) ) > 0 ) m[ i ] = p[ i ];
+		}
+		else if ( maximum instanceof float[] )
+		{
+			final float[] m = ( float[] ) maximum;
+			final float[] p = ( float[] ) plane;
+			for ( int i = 0; i < m.length; ++i )
+				if ( p[ i ] > m[ i ] ) m[ i ] = p[ i ];
+		}
+		else
+		{
+			final double[] m = ( double[] ) maximum;
+			final double[] p = ( double[] ) plane;
+			for ( int i = 0; i < m.length; ++i )
+				if ( p[ i ] > m[ i ] ) m[ i ] = p[ i ];
+		}
+	}
+
+	private RandomAccessibleInterval< T > wrap( Object data )
+	{
+		switch ( pixelType )
+		{
+			case FormatTools.INT8: return ( RandomAccessibleInterval ) ArrayImgs.bytes( ( byte[] ) data, sizeX, sizeY );
+			case FormatTools.UINT8: return ( RandomAccessibleInterval ) ArrayImgs.unsignedBytes( ( byte[] ) data, sizeX, sizeY );
+			case FormatTools.INT16: return ( RandomAccessibleInterval ) ArrayImgs.shorts( ( short[] ) data, sizeX, sizeY );
+			case FormatTools.UINT16: return ( RandomAccessibleInterval ) ArrayImgs.unsignedShorts( ( short[] ) data, sizeX, sizeY );
+			case FormatTools.INT32: return ( RandomAccessibleInterval ) ArrayImgs.ints( ( int[] ) data, sizeX, sizeY );
+			case FormatTools.UINT32: return ( RandomAccessibleInterval ) ArrayImgs.unsignedInts( ( int[] ) data, sizeX, sizeY );
+			case FormatTools.FLOAT: return ( RandomAccessibleInterval ) ArrayImgs.floats( ( float[] ) data, sizeX, sizeY );
+			default: return ( RandomAccessibleInterval ) ArrayImgs.doubles( ( double[] ) data, sizeX, sizeY );
+		}
+	}
+
+	/**
+	 * Enables memory mapped reading if the file is a plain TIFF whose planes are stored
+	 * uncompressed, untiled and with one sample per pixel, one plane per IFD.
+	 */
+	private void initMemoryMapping()
+	{
+		if ( reader.getReader().getClass() != TiffReader.class ) return;
+
+		try
+		{
+			final TiffParser parser = new TiffParser( path );
+
+			try
+			{
+				final IFDList ifds = parser.getIFDs();
+				if ( ifds.size() != reader.getImageCount() ) return;
+
+				final long[][] offsets = new long[ ifds.size() ][];
+				final long[][] byteCounts = new long[ ifds.size() ][];
+
+				for ( int i = 0; i < ifds.size(); ++i )
+				{
+					final IFD ifd = ifds.get( i );
+
+					if ( ifd.getCompression() != TiffCompression.UNCOMPRESSED
+							|| ifd.isTiled()
+							|| ifd.getSamplesPerPixel() != 1
+							|| ifd.getBitsPerSample()[ 0 ] != 8 * bytesPerPixel
+							|| ifd.getImageWidth() != sizeX
+							|| ifd.getImageLength() != sizeY )
+					{
+						return;
+					}
+
+					offsets[ i ] = ifd.getStripOffsets();
+					byteCounts[ i ] = ifd.getStripByteCounts();
+				}
+
+				mappedByteOrder = ifds.get( 0 ).isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+				stripOffsets = offsets;
+				stripByteCounts = byteCounts;
+				fileChannel = FileChannel.open( Paths.get( path ), StandardOpenOption.READ );
+			}
+			finally
+			{
+				parser.getStream().close();
+			}
+		}
+		catch ( IOException | FormatException e )
+		{
+			Utils.log( "[WARNING] Could not memory map " + path + ", reading via Bio-Formats: " + e.getMessage() );
+			fileChannel = null;
+		}
+	}
+
+	private NativeType< ? > createType()
+	{
+		switch ( pixelType )
+		{
+			case FormatTools.INT8: return new ByteType();
+			case FormatTools.UINT8: return new UnsignedByteType();
+			case FormatTools.INT16: return new ShortType();
+			case FormatTools.UINT16: return new UnsignedShortType();
+			case FormatTools.INT32: return new IntType();
+			case FormatTools.UINT32: return new UnsignedIntType();
+			case FormatTools.FLOAT: return new FloatType();
+			case FormatTools.DOUBLE: return new DoubleType();
+			default: throw new UnsupportedOperationException( "Pixel type not supported: " + FormatTools.getPixelTypeString( pixelType ) );
+		}
+	}
+
+	private Object createArray( int numPixels )
+	{
+		switch ( bytesPerPixel )
+		{
+			case 1: return new byte[ numPixels ];
+			case 2: return new short[ numPixels ];
+			case 4: return pixelType == FormatTools.FLOAT ? new float[ numPixels ] : new int[ numPixels ];
+			default: return new double[ numPixels ];
+		}
+	}
+
+	private static Object asAccess( Object data )
+	{
+		if ( data instanceof byte[] ) return new ByteArray( ( byte[] ) data );
+		if ( data instanceof short[] ) return new ShortArray( ( short[] ) data );
+		if ( data instanceof int[] ) return new IntArray( ( int[] ) data );
+		if ( data instanceof float[] ) return new FloatArray( ( float[] ) data );
+		return new DoubleArray( ( double[] ) data );
+	}
+
+	private static void copy( ByteBuffer buffer, Object data, int offset, int length )
+	{
+		if ( data instanceof byte[] ) buffer.get( ( byte[] ) data, offset, length );
+		else if ( data instanceof short[] ) buffer.asShortBuffer().get( ( short[] ) data, offset, length );
+		else if ( data instanceof int[] ) buffer.asIntBuffer().get( ( int[] ) data, offset, length );
+		else if ( data instanceof float[] ) buffer.asFloatBuffer().get( ( float[] ) data, offset, length );
+		else buffer.asDoubleBuffer().get( ( double[] ) data, offset, length );
+	}
+
+	private static double getCalibration( Length length )
+	{
+		if ( length == null ) return 1.0;
+
+		final Number micrometer = length.value( UNITS.MICROMETER );
+		return micrometer != null ? micrometer.doubleValue() : length.value().doubleValue();
+	}
+
+	private static IMetadata createMetadata() throws FormatException
+	{
+		try
+		{
+			return new ServiceFactory().getInstance( OMEXMLService.class ).createOMEXMLMetadata();
+		}
+		catch ( Exception e )
+		{
+			throw new FormatException( "Could not create OME-XML metadata", e );
+		}
+	}
+
+	private static long getDefaultCacheSizeBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+}
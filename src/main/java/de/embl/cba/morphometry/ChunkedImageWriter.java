@@ -0,0 +1,319 @@
+package de.embl.cba.morphometry;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves images as gzip compressed blocks of an N5 container, in the setup/timepoint/s0 layout of BigDataViewer,
+ * together with a BigDataViewer XML that refers to the container with the "bdv.n5" image loader.
+ * The blocks can be read lazily with any N5 reader; opening the XML needs a BigDataViewer version with N5 support.
+ *
+ * The blocks are read from the images, compressed and written by a pool of threads;
+ * lazily computed images (e.g. transformed or permuted views) are thus computed block-wise
+ * while being saved, without first copying them into an array image.
+ *
+ * If a block or the metadata cannot be written, the remaining blocks are cancelled
+ * and a RuntimeException is thrown.
+ */
+public class ChunkedImageWriter
+{
+	public static final int[] DEFAULT_BLOCK_SIZE = { 64, 64, 64 };
+
+	private final int[] blockSize;
+	private final int numThreads;
+
+	public ChunkedImageWriter()
+	{
+		this( DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public ChunkedImageWriter( int[] blockSize, int numThreads )
+	{
+		this.blockSize = blockSize;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * @param images with dimension order XYZC, of one time point
+	 * @param xmlPath the BigDataViewer XML file; the blocks are saved next to it, with the extension ".n5"
+	 */
+	public void saveChannels( RandomAccessibleInterval< ? extends RealType< ? > > images, double[] voxelSize, String unit, String xmlPath )
+	{
+		final ArrayList< List< ? extends RandomAccessibleInterval< ? extends RealType< ? > > > > channels = new ArrayList<>();
+
+		for ( long c = images.min( 3 ); c <= images.max( 3 ); ++c )
+		{
+			final ArrayList< RandomAccessibleInterval< ? extends RealType< ? > > > timepoints = new ArrayList<>();
+			timepoints.add( ( RandomAccessibleInterval ) Views.hyperSlice( images, 3, c ) );
+			channels.add( timepoints );
+		}
+
+		save( channels, voxelSize, unit, xmlPath );
+	}
+
+	/**
+	 * @param channels per channel the 2D (XY) or 3D (XYZ) images of all time points;
+	 *                 all channels must have the same number of time points
+	 * @param xmlPath the BigDataViewer XML file; the blocks are saved next to it, with the extension ".n5"
+	 */
+	public void save( List< ? extends List< ? extends RandomAccessibleInterval< ? extends RealType< ? > > > > channels, double[] voxelSize, String unit, String xmlPath )
+	{
+		final File n5Directory = new File( xmlPath.replaceFirst( "\\.xml$", "" ) + ".n5" );
+
+		Utils.log( "Saving: " + xmlPath );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Future< ? > > blockWrites = new ArrayList<>();
+		final ArrayList< long[] > setupDimensions = new ArrayList<>();
+
+		try
+		{
+			writeAttributes( n5Directory, "{\"n5\":\"2.0.0\"}" );
+
+			for ( int setup = 0; setup < channels.size(); ++setup )
+			{
+				final List< ? extends RandomAccessibleInterval< ? extends RealType< ? > > > timepoints = channels.get( setup );
+				final String dataType = getDataType( Util.getTypeFromInterval( timepoints.get( 0 ) ) );
+				final File setupDirectory = new File( n5Directory, "setup" + setup );
+
+				writeAttributes( setupDirectory, "{\"downsamplingFactors\":[[1,1,1]],\"dataType\":\"" + dataType + "\"}" );
+
+				for ( int t = 0; t < timepoints.size(); ++t )
+				{
+					final RandomAccessibleInterval< ? extends RealType< ? > > image = asXYZ( timepoints.get( t ) );
+					final long[] dimensions = new long[ 3 ];
+					image.dimensions( dimensions );
+					if ( t == 0 ) setupDimensions.add( dimensions );
+
+					final File datasetDirectory = new File( setupDirectory, "timepoint" + t + File.separator + "s0" );
+					writeAttributes( datasetDirectory, getDatasetAttributes( dimensions, dataType ) );
+
+					for ( long[] gridPosition : getGridPositions( dimensions ) )
+					{
+						blockWrites.add( executorService.submit( () -> {
+							writeBlock( image, gridPosition, dataType, datasetDirectory );
+							return null;
+						} ) );
+					}
+				}
+			}
+
+			for ( Future< ? > blockWrite : blockWrites ) blockWrite.get();
+
+			writeXml( xmlPath, n5Directory.getName(), setupDimensions, channels.get( 0 ).size(), voxelSize, unit );
+		}
+		catch ( IOException | ExecutionException e )
+		{
+			throw new RuntimeException( "Could not save " + xmlPath, e );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while saving " + xmlPath, e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	private static RandomAccessibleInterval< ? extends RealType< ? > > asXYZ( RandomAccessibleInterval< ? extends RealType< ? > > image )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > zeroMin = Views.zeroMin( image );
+		if ( zeroMin.numDimensions() == 2 ) return Views.addDimension( zeroMin, 0, 0 );
+		return zeroMin;
+	}
+
+	private ArrayList< long[] > getGridPositions( long[] dimensions )
+	{
+		final long[] gridDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d ) gridDimensions[ d ] = ( dimensions[ d ] - 1 ) / blockSize[ d ] + 1;
+
+		final ArrayList< long[] > gridPositions = new ArrayList<>();
+		for ( long z = 0; z < gridDimensions[ 2 ]; ++z )
+			for ( long y = 0; y < gridDimensions[ 1 ]; ++y )
+				for ( long x = 0; x < gridDimensions[ 0 ]; ++x )
+					gridPositions.add( new long[]{ x, y, z } );
+
+		return gridPositions;
+	}
+
+	/**
+	 * Writes one block in the N5 default block format: an uncompressed header
+	 * with the mode, the number of dimensions and the size of the (possibly truncated) block,
+	 * followed by the gzip compressed, big endian voxel values in flat iteration order.
+	 */
+	private void writeBlock(
+			RandomAccessibleInterval< ? extends RealType< ? > > image,
+			long[] gridPosition,
+			String dataType,
+			File datasetDirectory ) throws IOException
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		final int[] size = new int[ 3 ];
+		int numElements = 1;
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = gridPosition[ d ] * blockSize[ d ];
+			max[ d ] = Math.min( min[ d ] + blockSize[ d ], image.dimension( d ) ) - 1;
+			size[ d ] = ( int ) ( max[ d ] - min[ d ] + 1 );
+			numElements *= size[ d ];
+		}
+
+		final int bytesPerElement = getBytesPerElement( dataType );
+		final boolean isFloat = dataType.startsWith( "float" );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( numElements * bytesPerElement );
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( Views.interval( image, new FinalInterval( min, max ) ) ).cursor();
+
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+
+			if ( bytesPerElement == 1 ) buffer.put( ( byte ) ( long ) value );
+			else if ( bytesPerElement == 2 ) buffer.putShort( ( short ) ( long ) value );
+			else if ( bytesPerElement == 8 ) buffer.putDouble( value );
+			else if ( isFloat ) buffer.putFloat( ( float ) value );
+			else buffer.putInt( ( int ) ( long ) value );
+		}
+
+		final File blockFile = new File( datasetDirectory,
+				gridPosition[ 0 ] + File.separator + gridPosition[ 1 ] + File.separator + gridPosition[ 2 ] );
+		blockFile.getParentFile().mkdirs();
+
+		try ( OutputStream out = new FileOutputStream( blockFile ) )
+		{
+			final DataOutputStream header = new DataOutputStream( out );
+			header.writeShort( 0 );
+			header.writeShort( 3 );
+			for ( int d = 0; d < 3; ++d ) header.writeInt( size[ d ] );
+			header.flush();
+
+			final GZIPOutputStream compressed = new GZIPOutputStream( out );
+			compressed.write( buffer.array() );
+			compressed.finish();
+		}
+	}
+
+	private String getDatasetAttributes( long[] dimensions, String dataType )
+	{
+		return String.format( Locale.US,
+				"{\"dimensions\":[%d,%d,%d],\"blockSize\":[%d,%d,%d],\"dataType\":\"%s\",\"compression\":{\"type\":\"gzip\",\"useZlib\":false,\"level\":-1}}",
+				dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ],
+				blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ],
+				dataType );
+	}
+
+	private static void writeAttributes( File directory, String json ) throws IOException
+	{
+		directory.mkdirs();
+
+		try ( PrintWriter out = new PrintWriter( new File( directory, "attributes.json" ), "UTF-8" ) )
+		{
+			out.print( json );
+		}
+	}
+
+	private static void writeXml( String xmlPath, String n5Name, ArrayList< long[] > setupDimensions, int numTimepoints, double[] voxelSize, String unit ) throws IOException
+	{
+		final double[] calibration = { voxelSize[ 0 ], voxelSize[ 1 ], voxelSize.length > 2 ? voxelSize[ 2 ] : 1.0 };
+
+		try ( PrintWriter out = new PrintWriter( xmlPath, "UTF-8" ) )
+		{
+			out.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+			out.println( "<SpimData version=\"0.2\">" );
+			out.println( "  <BasePath type=\"relative\">.</BasePath>" );
+			out.println( "  <SequenceDescription>" );
+			out.println( "    <ImageLoader format=\"bdv.n5\" version=\"1.0\">" );
+			out.println( "      <n5 type=\"relative\">" + n5Name + "</n5>" );
+			out.println( "    </ImageLoader>" );
+			out.println( "    <ViewSetups>" );
+			for ( int setup = 0; setup < setupDimensions.size(); ++setup )
+			{
+				final long[] dimensions = setupDimensions.get( setup );
+				out.println( "      <ViewSetup>" );
+				out.println( "        <id>" + setup + "</id>" );
+				out.println( "        <name>channel " + ( setup + 1 ) + "</name>" );
+				out.println( "        <size>" + dimensions[ 0 ] + " " + dimensions[ 1 ] + " " + dimensions[ 2 ] + "</size>" );
+				out.println( "        <voxelSize>" );
+				out.println( "          <unit>" + unit + "</unit>" );
+				out.println( String.format( Locale.US, "          <size>%s %s %s</size>", calibration[ 0 ], calibration[ 1 ], calibration[ 2 ] ) );
+				out.println( "        </voxelSize>" );
+				out.println( "      </ViewSetup>" );
+			}
+			out.println( "    </ViewSetups>" );
+			out.println( "    <Timepoints type=\"range\">" );
+			out.println( "      <first>0</first>" );
+			out.println( "      <last>" + ( numTimepoints - 1 ) + "</last>" );
+			out.println( "    </Timepoints>" );
+			out.println( "  </SequenceDescription>" );
+			out.println( "  <ViewRegistrations>" );
+			for ( int t = 0; t < numTimepoints; ++t )
+			{
+				for ( int setup = 0; setup < setupDimensions.size(); ++setup )
+				{
+					out.println( "    <ViewRegistration timepoint=\"" + t + "\" setup=\"" + setup + "\">" );
+					out.println( "      <ViewTransform type=\"affine\">" );
+					out.println( String.format( Locale.US, "        <affine>%s 0.0 0.0 0.0 0.0 %s 0.0 0.0 0.0 0.0 %s 0.0</affine>",
+							calibration[ 0 ], calibration[ 1 ], calibration[ 2 ] ) );
+					out.println( "      </ViewTransform>" );
+					out.println( "    </ViewRegistration>" );
+				}
+			}
+			out.println( "  </ViewRegistrations>" );
+			out.println( "</SpimData>" );
+		}
+	}
+
+	private static String getDataType( Object type )
+	{
+		if ( type instanceof UnsignedByteType ) return "uint8";
+		if ( type instanceof ByteType ) return "int8";
+		if ( type instanceof UnsignedShortType ) return "uint16";
+		if ( type instanceof ShortType ) return "int16";
+		if ( type instanceof UnsignedIntType ) return "uint32";
+		if ( type instanceof IntType ) return "int32";
+		if ( type instanceof DoubleType ) return "float64";
+		return "float32";
+	}
+
+	private static int getBytesPerElement( String dataType )
+	{
+		switch ( dataType )
+		{
+			case "uint8": case "int8": return 1;
+			case "uint16": case "int16": return 2;
+			case "float64": return 8;
+			default: return 4;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package de.embl.cba.morphometry;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Average intensities of cubic blocks, computed in one flat pass over the image.
+ *
+ * The blocks at the upper borders may be smaller than blockSize in some dimensions.
+ */
+public class CoarseIntensities
+{
+	private final double[] values;
+	private double[] sortedValues;
+
+	private CoarseIntensities( double[] values )
+	{
+		this.values = values;
+	}
+
+	public static < T extends RealType< T > >
+	CoarseIntensities compute( RandomAccessibleInterval< T > rai, int blockSize )
+	{
+		final int n = rai.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		rai.min( min );
+		rai.max( max );
+
+		final long[] blockStrides = new long[ n ];
+		long numBlocks = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			blockStrides[ d ] = numBlocks;
+			numBlocks *= ( rai.dimension( d ) + blockSize - 1 ) / blockSize;
+		}
+
+		final double[] sums = new double[ ( int ) numBlocks ];
+		final long[] counts = new long[ ( int ) numBlocks ];
+
+		final Cursor< T > cursor = Views.flatIterable( rai ).cursor();
+		final long[] position = new long[ n ];
+
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+
+			int block = 0;
+			for ( int d = 0; d < n; ++d )
+			{
+				block += ( position[ d ] / blockSize ) * blockStrides[ d ];
+			}
+
+			sums[ block ] += value;
+			counts[ block ]++;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] - min[ d ] ) break;
+				position[ d ] = 0;
+			}
+		}
+
+		for ( int i = 0; i < sums.length; ++i )
+		{
+			sums[ i ] /= counts[ i ];
+		}
+
+		return new CoarseIntensities( sums );
+	}
+
+	public double[] getValues()
+	{
+		return values;
+	}
+
+	public double getMaximum()
+	{
+		double maximum = - Double.MAX_VALUE;
+		for ( double value : values )
+		{
+			if ( value > maximum ) maximum = value;
+		}
+		return maximum;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return value of the block at the percentile (nearest rank)
+	 */
+	public double getPercentile( double percentile )
+	{
+		final double[] sorted = getSortedValues();
+		final int rank = ( int ) Math.ceil( percentile / 100.0 * sorted.length ) - 1;
+		return sorted[ Math.min( sorted.length - 1, Math.max( 0, rank ) ) ];
+	}
+
+	/**
+	 * @param numBins
+	 * @return Otsu threshold of the block values; values above the threshold belong to the foreground
+	 */
+	public double getOtsuThreshold( int numBins )
+	{
+		final double[] sorted = getSortedValues();
+		final double minValue = sorted[ 0 ];
+		final double maxValue = sorted[ sorted.length - 1 ];
+
+		if ( maxValue == minValue ) return maxValue;
+
+		final double binWidth = ( maxValue - minValue ) / numBins;
+
+		final long[] frequencies = new long[ numBins ];
+		double totalSum = 0;
+		for ( double value : values )
+		{
+			frequencies[ Math.min( numBins - 1, ( int ) ( ( value - minValue ) / binWidth ) ) ]++;
+		}
+
+		for ( int i = 0; i < numBins; ++i )
+		{
+			totalSum += i * frequencies[ i ];
+		}
+
+		long backgroundCount = 0;
+		double backgroundSum = 0;
+		double maxBetweenClassVariance = -1;
+		int thresholdBin = 0;
+
+		for ( int i = 0; i < numBins - 1; ++i )
+		{
+			backgroundCount += frequencies[ i ];
+			backgroundSum += i * frequencies[ i ];
+
+			final long foregroundCount = values.length - backgroundCount;
+			if ( backgroundCount == 0 || foregroundCount == 0 ) continue;
+
+			final double backgroundMean = backgroundSum / backgroundCount;
+			final double foregroundMean = ( totalSum - backgroundSum ) / foregroundCount;
+			final double betweenClassVariance = ( double ) backgroundCount * foregroundCount
+					* ( backgroundMean - foregroundMean ) * ( backgroundMean - foregroundMean );
+
+			if ( betweenClassVariance > maxBetweenClassVariance )
+			{
+				maxBetweenClassVariance = betweenClassVariance;
+				thresholdBin = i;
+			}
+		}
+
+		return minValue + ( thresholdBin + 1 ) * binWidth;
+	}
+
+	private double[] getSortedValues()
+	{
+		if ( sortedValues == null )
+		{
+			sortedValues = values.clone();
+			Arrays.sort( sortedValues );
+		}
+
+		return sortedValues;
+	}
+}
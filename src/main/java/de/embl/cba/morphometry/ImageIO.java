@@ -6,6 +6,8 @@ import loci.formats.FormatException;
 import loci.plugins.in.ImagePlusReader;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -39,6 +41,24 @@ public class ImageIO
 	}
 
 
+	/**
+	 * @return the planes of the first series as a cached cell image source, or null if the file could not be opened
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	BioFormatsPlaneSource< T > openCachedWithBioFormats( String path )
+	{
+		try
+		{
+			return new BioFormatsPlaneSource<>( path );
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+
 	public static void saveImages( String inputPath, ArrayList< ImagePlus > imps )
 	{
 		for ( ImagePlus imp : imps )
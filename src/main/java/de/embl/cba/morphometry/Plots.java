@@ -13,6 +13,12 @@ public class Plots
 	}
 
 
+	public static void plot( double[] xValues , double[] yValues, String xLab, String yLab )
+	{
+		Plot plot = new Plot("", xLab, yLab,  xValues, yValues );
+		plot.show();
+	}
+
 	public static void plot( ArrayList< Double > xValues , ArrayList< Double >  yValues, String xLab, String yLab )
 	{
 		Plot plot = new Plot("", xLab, yLab,  xValues.stream().mapToDouble(d -> d).toArray(), yValues.stream().mapToDouble(d -> d).toArray() );
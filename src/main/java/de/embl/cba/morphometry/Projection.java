@@ -139,7 +139,13 @@ public class Projection< T extends RealType< T > & NativeType< T > >
         setOutputDimensions();
         final ImgFactory< T > factory = new ArrayImgFactory< >( input.randomAccess().get().createVariable() );
         output = factory.create( outputDimensions );
-        output = Views.translate( output,  outputOffset() );
+
+        // keep the array image if possible, such that its pixel array can be shared, e.g. with ImageJ1
+        final long[] offset = outputOffset();
+        if ( Arrays.stream( offset ).anyMatch( o -> o != 0 ) )
+        {
+            output = Views.translate( output, offset );
+        }
     }
 
     private long[] outputOffset()
@@ -0,0 +1,360 @@
+package de.embl.cba.morphometry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nested timing and memory spans of the processing stages of one input file.
+ *
+ * A profiler is bound to the thread that called {@link #begin(String)}; the static
+ * {@link #start(String)} and {@link #stop(String)} are no-ops on threads without a profiler,
+ * such that the pipelines can be instrumented unconditionally.
+ *
+ * Starting a stage whose name equals the name of an already stopped sibling reopens that sibling,
+ * such that e.g. the stages of a per-frame loop are summed up into one stage; the number of
+ * times a stage was run is reported as its count.
+ *
+ * Per stage the wall time, the CPU time of the profiled thread and of the whole process,
+ * the bytes allocated by the profiled thread and the peak heap usage are recorded.
+ * Work done by other threads (e.g. parallel streams) is thus only included in the process CPU time
+ * and the peak heap usage. The heap usage, which is dominated by the images, is sampled every
+ * {@value #MEMORY_SAMPLING_INTERVAL_MILLIS} ms and is shared by all concurrently profiled files.
+ */
+public class StageProfiler
+{
+	public static final long MEMORY_SAMPLING_INTERVAL_MILLIS = 10;
+
+	private static final ThreadLocal< StageProfiler > profilers = new ThreadLocal<>();
+	private static final ConcurrentLinkedQueue< StageProfiler > activeProfilers = new ConcurrentLinkedQueue<>();
+	private static ScheduledExecutorService memorySampler;
+
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private static final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+	private static final OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+
+	private final Stage root;
+	private final ArrayDeque< Stage > openStages;
+
+	public static class Stage
+	{
+		public final String name;
+		public final int depth;
+		public final ArrayList< Stage > children = new ArrayList<>();
+
+		private long startNanos;
+		private long startThreadCpuNanos;
+		private long startProcessCpuNanos;
+		private long startAllocatedBytes;
+
+		public int count;
+		public long wallTimeNanos;
+		public long threadCpuTimeNanos;
+		public long processCpuTimeNanos;
+		public long allocatedBytes;
+		public volatile long peakHeapBytes;
+
+		private Stage( String name, int depth )
+		{
+			this.name = name;
+			this.depth = depth;
+		}
+
+		private void start()
+		{
+			startNanos = System.nanoTime();
+			startThreadCpuNanos = getThreadCpuNanos();
+			startProcessCpuNanos = getProcessCpuNanos();
+			startAllocatedBytes = getAllocatedBytes();
+			updatePeakHeapBytes( memoryMXBean.getHeapMemoryUsage().getUsed() );
+		}
+
+		private void stop()
+		{
+			count++;
+			wallTimeNanos += System.nanoTime() - startNanos;
+			threadCpuTimeNanos += difference( getThreadCpuNanos(), startThreadCpuNanos );
+			processCpuTimeNanos += difference( getProcessCpuNanos(), startProcessCpuNanos );
+			allocatedBytes += difference( getAllocatedBytes(), startAllocatedBytes );
+			updatePeakHeapBytes( memoryMXBean.getHeapMemoryUsage().getUsed() );
+		}
+
+		private Stage getChild( String name )
+		{
+			for ( Stage child : children )
+			{
+				if ( child.name.equals( name ) ) return child;
+			}
+			return null;
+		}
+
+		private void updatePeakHeapBytes( long heapBytes )
+		{
+			if ( heapBytes > peakHeapBytes ) peakHeapBytes = heapBytes;
+		}
+
+		private static long difference( long end, long start )
+		{
+			return end < 0 || start < 0 ? 0 : end - start;
+		}
+	}
+
+	private StageProfiler( String name )
+	{
+		root = new Stage( name, 0 );
+		root.start();
+		openStages = new ArrayDeque<>();
+		openStages.push( root );
+	}
+
+	/**
+	 * Starts profiling on the current thread, typically for one input file.
+	 *
+	 * @param name of the root stage, e.g. the file name
+	 */
+	public static StageProfiler begin( String name )
+	{
+		final StageProfiler profiler = new StageProfiler( name );
+		profilers.set( profiler );
+		activeProfilers.add( profiler );
+		startMemorySampler();
+		return profiler;
+	}
+
+	/**
+	 * Stops all open stages and the profiling on the current thread.
+	 *
+	 * @return the profiler, or null if the current thread is not profiled
+	 */
+	public static StageProfiler end()
+	{
+		final StageProfiler profiler = profilers.get();
+		if ( profiler == null ) return null;
+
+		profiler.stopUntil( profiler.root );
+		profilers.remove();
+		activeProfilers.remove( profiler );
+
+		return profiler;
+	}
+
+	/**
+	 * Starts a stage, nested in the currently open stage.
+	 */
+	public static void start( String name )
+	{
+		final StageProfiler profiler = profilers.get();
+		if ( profiler == null ) return;
+
+		synchronized ( profiler )
+		{
+			final Stage parent = profiler.openStages.peek();
+
+			Stage stage = parent.getChild( name );
+			if ( stage == null || profiler.openStages.contains( stage ) )
+			{
+				stage = new Stage( name, parent.depth + 1 );
+				parent.children.add( stage );
+			}
+
+			stage.start();
+			profiler.openStages.push( stage );
+		}
+	}
+
+	/**
+	 * Stops the most recently started open stage of the given name,
+	 * together with all stages nested in it that are still open (e.g. due to an early return).
+	 */
+	public static void stop( String name )
+	{
+		final StageProfiler profiler = profilers.get();
+		if ( profiler == null ) return;
+
+		synchronized ( profiler )
+		{
+			for ( Stage stage : profiler.openStages )
+			{
+				if ( stage != profiler.root && stage.name.equals( name ) )
+				{
+					profiler.stopUntil( stage );
+					return;
+				}
+			}
+		}
+
+		Utils.log( "[WARNING] Profiling stage is not open: " + name );
+	}
+
+	private synchronized void stopUntil( Stage stage )
+	{
+		while ( ! openStages.isEmpty() )
+		{
+			final Stage open = openStages.pop();
+			open.stop();
+			if ( open == stage ) return;
+		}
+	}
+
+	private synchronized void updatePeakHeapBytes( long heapBytes )
+	{
+		for ( Stage stage : openStages ) stage.updatePeakHeapBytes( heapBytes );
+	}
+
+	public Stage getRoot()
+	{
+		return root;
+	}
+
+	public String toJson()
+	{
+		final StringBuilder json = new StringBuilder();
+		appendJson( json, root, "" );
+		return json.toString();
+	}
+
+	private static void appendJson( StringBuilder json, Stage stage, String indent )
+	{
+		json.append( indent ).append( "{\n" );
+		json.append( indent ).append( "\t\"name\": \"" ).append( escapeJson( stage.name ) ).append( "\",\n" );
+		json.append( indent ).append( "\t\"count\": " ).append( stage.count ).append( ",\n" );
+		json.append( indent ).append( "\t\"wallTimeMillis\": " ).append( stage.wallTimeNanos / 1000000 ).append( ",\n" );
+		json.append( indent ).append( "\t\"threadCpuTimeMillis\": " ).append( stage.threadCpuTimeNanos / 1000000 ).append( ",\n" );
+		json.append( indent ).append( "\t\"processCpuTimeMillis\": " ).append( stage.processCpuTimeNanos / 1000000 ).append( ",\n" );
+		json.append( indent ).append( "\t\"allocatedBytes\": " ).append( stage.allocatedBytes ).append( ",\n" );
+		json.append( indent ).append( "\t\"peakHeapBytes\": " ).append( stage.peakHeapBytes ).append( ",\n" );
+		json.append( indent ).append( "\t\"stages\": [" );
+
+		final Iterator< Stage > children = stage.children.iterator();
+		if ( children.hasNext() ) json.append( "\n" );
+		while ( children.hasNext() )
+		{
+			appendJson( json, children.next(), indent + "\t\t" );
+			json.append( children.hasNext() ? ",\n" : "\n" + indent + "\t" );
+		}
+
+		json.append( "]\n" );
+		json.append( indent ).append( "}" );
+	}
+
+	/**
+	 * @return one row per stage, in the order the stages were started;
+	 * the stage column holds the path of the stage names, separated by "/"
+	 */
+	public ArrayList< String > asTableRows()
+	{
+		final ArrayList< String > rows = new ArrayList<>();
+		rows.add( "Stage,Depth,Count,WallTime_Milliseconds,ThreadCpuTime_Milliseconds,ProcessCpuTime_Milliseconds,Allocated_Bytes,PeakHeap_Bytes" );
+		appendTableRows( rows, root, "" );
+		return rows;
+	}
+
+	private static void appendTableRows( ArrayList< String > rows, Stage stage, String parentPath )
+	{
+		final String path = parentPath.isEmpty() ? stage.name : parentPath + "/" + stage.name;
+
+		rows.add( String.format( Locale.US, "\"%s\",%d,%d,%d,%d,%d,%d,%d",
+				path.replace( "\"", "\"\"" ),
+				stage.depth,
+				stage.count,
+				stage.wallTimeNanos / 1000000,
+				stage.threadCpuTimeNanos / 1000000,
+				stage.processCpuTimeNanos / 1000000,
+				stage.allocatedBytes,
+				stage.peakHeapBytes ) );
+
+		for ( Stage child : stage.children ) appendTableRows( rows, child, path );
+	}
+
+	/**
+	 * Saves the report as pathStump + "-profile.json" and pathStump + "-profile.csv".
+	 */
+	public void saveReport( String pathStump )
+	{
+		new File( pathStump ).getAbsoluteFile().getParentFile().mkdirs();
+
+		try ( PrintWriter out = new PrintWriter( pathStump + "-profile.json" ) )
+		{
+			out.println( toJson() );
+		}
+		catch ( FileNotFoundException e )
+		{
+			e.printStackTrace();
+		}
+
+		try ( PrintWriter out = new PrintWriter( pathStump + "-profile.csv" ) )
+		{
+			for ( String row : asTableRows() ) out.println( row );
+		}
+		catch ( FileNotFoundException e )
+		{
+			e.printStackTrace();
+		}
+
+		Utils.log( "Saved profile to: " + pathStump + "-profile.json" );
+	}
+
+	private static String escapeJson( String string )
+	{
+		final StringBuilder escaped = new StringBuilder();
+		for ( char c : string.toCharArray() )
+		{
+			if ( c == '"' || c == '\\' ) escaped.append( '\\' ).append( c );
+			else if ( c < 0x20 ) escaped.append( String.format( "\\u%04x", ( int ) c ) );
+			else escaped.append( c );
+		}
+		return escaped.toString();
+	}
+
+	private static synchronized void startMemorySampler()
+	{
+		if ( memorySampler != null ) return;
+
+		memorySampler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			final Thread thread = new Thread( runnable, "Memory sampler" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+
+		memorySampler.scheduleAtFixedRate( () -> {
+			if ( activeProfilers.isEmpty() ) return;
+			final long heapBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+			for ( StageProfiler profiler : activeProfilers ) profiler.updatePeakHeapBytes( heapBytes );
+		}, 0, MEMORY_SAMPLING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+	}
+
+	private static long getThreadCpuNanos()
+	{
+		return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : -1;
+	}
+
+	private static long getProcessCpuNanos()
+	{
+		if ( osMXBean instanceof com.sun.management.OperatingSystemMXBean )
+		{
+			return ( ( com.sun.management.OperatingSystemMXBean ) osMXBean ).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	private static long getAllocatedBytes()
+	{
+		if ( threadMXBean instanceof com.sun.management.ThreadMXBean )
+		{
+			return ( ( com.sun.management.ThreadMXBean ) threadMXBean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+		return -1;
+	}
+}
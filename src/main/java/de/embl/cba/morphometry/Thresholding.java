@@ -0,0 +1,408 @@
+package de.embl.cba.morphometry;
+
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Thresholds images into bit masks, setting all pixels with a value strictly larger than the threshold.
+ *
+ * The mask is written directly as the 64 bit words of a {@link BitType} ArrayImg, in chunks of words
+ * that are processed in parallel. ArrayImgs of the common primitive types are read from their storage arrays,
+ * all other images (e.g. views) through a cursor, which is slower but gives the same result.
+ *
+ * The number of foreground pixels and their bounding box can be computed in the same pass,
+ * from the words of each chunk while they are still in the cache.
+ */
+public class Thresholding
+{
+	public static final int NUM_CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Number and bounding box of the foreground pixels of a mask, in the coordinates of the thresholded image.
+	 */
+	public static class Statistics
+	{
+		public long numForegroundPixels;
+		public long[] min;
+		public long[] max;
+
+		private void reset( int numDimensions )
+		{
+			numForegroundPixels = 0;
+			min = new long[ numDimensions ];
+			max = new long[ numDimensions ];
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				min[ d ] = Long.MAX_VALUE;
+				max[ d ] = Long.MIN_VALUE;
+			}
+		}
+
+		private void add( Statistics statistics )
+		{
+			numForegroundPixels += statistics.numForegroundPixels;
+			for ( int d = 0; d < min.length; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], statistics.min[ d ] );
+				max[ d ] = Math.max( max[ d ], statistics.max[ d ] );
+			}
+		}
+
+		/**
+		 * @return the bounding box of the foreground pixels, or null if there are none
+		 */
+		public FinalInterval getBoundingBox()
+		{
+			if ( numForegroundPixels == 0 ) return null;
+			return new FinalInterval( min, max );
+		}
+	}
+
+	private interface WordKernel
+	{
+		/**
+		 * Thresholds the pixels of the words [ fromWord, toWord ) of the mask.
+		 */
+		void threshold( long[] words, int fromWord, int toWord );
+	}
+
+	public static < T extends RealType< T > >
+	RandomAccessibleInterval< BitType > createMask( RandomAccessibleInterval< T > input, double threshold )
+	{
+		return createMask( input, threshold, null );
+	}
+
+	/**
+	 * @param statistics if not null, is set to the number and bounding box of the foreground pixels
+	 * @return mask with the same interval as the input
+	 */
+	public static < T extends RealType< T > >
+	RandomAccessibleInterval< BitType > createMask(
+			RandomAccessibleInterval< T > input,
+			double threshold,
+			Statistics statistics )
+	{
+		final long numPixels = Intervals.numElements( input );
+
+		final ArrayImg< BitType, LongArray > mask = ArrayImgs.bits( Intervals.dimensionsAsLongArray( input ) );
+		final long[] words = mask.update( null ).getCurrentStorageArray();
+
+		final int numWords = ( int ) ( ( numPixels + 63 ) / 64 );
+		final int numChunks = ( int ) Math.min( numWords, Runtime.getRuntime().availableProcessors() * NUM_CHUNKS_PER_THREAD );
+
+		if ( numChunks > 0 )
+		{
+			final WordKernel kernel = createKernel( input, threshold, numPixels );
+			final int chunkSize = ( numWords + numChunks - 1 ) / numChunks;
+
+			final List< Statistics > chunkStatistics = IntStream.range( 0, numChunks ).parallel().mapToObj( c ->
+			{
+				final int fromWord = c * chunkSize;
+				final int toWord = Math.min( numWords, fromWord + chunkSize );
+				if ( fromWord >= toWord ) return null;
+
+				kernel.threshold( words, fromWord, toWord );
+
+				if ( statistics == null ) return null;
+
+				return computeStatistics( input, words, ( long ) fromWord * 64, Math.min( numPixels, ( long ) toWord * 64 ) );
+			} ).collect( Collectors.toList() );
+
+			if ( statistics != null )
+			{
+				statistics.reset( input.numDimensions() );
+				for ( Statistics s : chunkStatistics ) if ( s != null ) statistics.add( s );
+			}
+		}
+		else if ( statistics != null )
+		{
+			statistics.reset( input.numDimensions() );
+		}
+
+		return Transforms.getWithAdjustedOrigin( input, mask );
+	}
+
+	private static < T extends RealType< T > >
+	WordKernel createKernel( RandomAccessibleInterval< T > input, double threshold, long numPixels )
+	{
+		final Object pixels = getStorageArray( input );
+
+		if ( pixels != null )
+		{
+			final T type = ( ( ArrayImg< T, ? > ) input ).firstElement();
+			final long t = integerThreshold( threshold );
+
+			// v > t is computed as the sign bit of ( t - v ), which avoids branches in the inner loops
+
+			if ( type instanceof UnsignedByteType && pixels instanceof byte[] )
+			{
+				final byte[] a = ( byte[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( ( t - ( a[ i ] & 0xff ) ) >>> 63 ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof ByteType && pixels instanceof byte[] )
+			{
+				final byte[] a = ( byte[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( ( t - a[ i ] ) >>> 63 ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof UnsignedShortType && pixels instanceof short[] )
+			{
+				final short[] a = ( short[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( ( t - ( a[ i ] & 0xffff ) ) >>> 63 ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof ShortType && pixels instanceof short[] )
+			{
+				final short[] a = ( short[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( ( t - a[ i ] ) >>> 63 ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof UnsignedIntType && pixels instanceof int[] )
+			{
+				final int[] a = ( int[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( ( t - ( a[ i ] & 0xffffffffL ) ) >>> 63 ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof IntType && pixels instanceof int[] )
+			{
+				final int[] a = ( int[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( ( t - a[ i ] ) >>> 63 ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof LongType && pixels instanceof long[] )
+			{
+				// the difference could overflow, thus the comparison is done directly
+				final long[] a = ( long[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( a[ i ] > threshold ? 1L : 0L ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof FloatType && pixels instanceof float[] )
+			{
+				final float[] a = ( float[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( a[ i ] > threshold ? 1L : 0L ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+			else if ( type instanceof DoubleType && pixels instanceof double[] )
+			{
+				final double[] a = ( double[] ) pixels;
+				return ( words, fromWord, toWord ) -> {
+					for ( int w = fromWord; w < toWord; ++w )
+					{
+						final int from = w << 6, to = ( int ) Math.min( numPixels, ( long ) from + 64 );
+						long word = 0;
+						for ( int i = from; i < to; ++i ) word |= ( a[ i ] > threshold ? 1L : 0L ) << ( i - from );
+						words[ w ] = word;
+					}
+				};
+			}
+		}
+
+		return ( words, fromWord, toWord ) -> {
+			final Cursor< T > cursor = Views.flatIterable( input ).cursor();
+			cursor.jumpFwd( ( long ) fromWord * 64 );
+			for ( int w = fromWord; w < toWord; ++w )
+			{
+				final int n = ( int ) Math.min( 64, numPixels - ( long ) w * 64 );
+				long word = 0;
+				for ( int b = 0; b < n; ++b ) word |= ( cursor.next().getRealDouble() > threshold ? 1L : 0L ) << b;
+				words[ w ] = word;
+			}
+		};
+	}
+
+	/**
+	 * For integer values v, v > threshold is equivalent to v > floor( threshold ).
+	 * The result is clamped to the range of the integer types up to 32 bit,
+	 * such that ( t - v ) does not overflow.
+	 */
+	private static long integerThreshold( double threshold )
+	{
+		final double limit = 1L << 33;
+		if ( Double.isNaN( threshold ) ) return ( long ) limit; // nothing is larger than NaN
+		return ( long ) Math.max( -limit, Math.min( limit, Math.floor( threshold ) ) );
+	}
+
+	/**
+	 * @return the storage array of an ArrayImg with one primitive entry per pixel, in flat iteration order, or null
+	 */
+	private static Object getStorageArray( RandomAccessibleInterval< ? > image )
+	{
+		if ( ! ( image instanceof ArrayImg ) ) return null;
+
+		final Object access = ( ( ArrayImg< ?, ? > ) image ).update( null );
+		if ( access instanceof ArrayDataAccess ) return ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+
+		return null;
+	}
+
+	/**
+	 * Computes the statistics of the mask pixels [ fromPixel, toPixel ), row by row along dimension 0,
+	 * using only the first and last set bit of each row.
+	 */
+	private static Statistics computeStatistics(
+			RandomAccessibleInterval< ? > input,
+			long[] words,
+			long fromPixel,
+			long toPixel )
+	{
+		final int n = input.numDimensions();
+		final Statistics statistics = new Statistics();
+		statistics.reset( n );
+
+		for ( int w = ( int ) ( fromPixel >>> 6 ); w < ( int ) ( ( toPixel + 63 ) >>> 6 ); ++w )
+		{
+			statistics.numForegroundPixels += Long.bitCount( words[ w ] );
+		}
+
+		if ( statistics.numForegroundPixels == 0 ) return statistics;
+
+		final long rowLength = input.dimension( 0 );
+
+		for ( long row = fromPixel / rowLength; row * rowLength < toPixel; ++row )
+		{
+			final long rowStart = row * rowLength;
+			final long from = Math.max( fromPixel, rowStart );
+			final long to = Math.min( toPixel, rowStart + rowLength );
+
+			final long first = firstSetBit( words, from, to );
+			if ( first < 0 ) continue;
+			final long last = lastSetBit( words, from, to );
+
+			statistics.min[ 0 ] = Math.min( statistics.min[ 0 ], input.min( 0 ) + first - rowStart );
+			statistics.max[ 0 ] = Math.max( statistics.max[ 0 ], input.min( 0 ) + last - rowStart );
+
+			long index = row;
+			for ( int d = 1; d < n; ++d )
+			{
+				final long position = input.min( d ) + index % input.dimension( d );
+				index /= input.dimension( d );
+				statistics.min[ d ] = Math.min( statistics.min[ d ], position );
+				statistics.max[ d ] = Math.max( statistics.max[ d ], position );
+			}
+		}
+
+		return statistics;
+	}
+
+	/**
+	 * @return the index of the first set bit in [ from, to ), or -1
+	 */
+	private static long firstSetBit( long[] words, long from, long to )
+	{
+		int w = ( int ) ( from >>> 6 );
+		long word = words[ w ] & ( -1L << ( from & 63 ) );
+
+		while ( true )
+		{
+			if ( word != 0 )
+			{
+				final long index = ( ( long ) w << 6 ) + Long.numberOfTrailingZeros( word );
+				return index < to ? index : -1;
+			}
+
+			if ( ( ( long ) ++w << 6 ) >= to ) return -1;
+			word = words[ w ];
+		}
+	}
+
+	/**
+	 * @return the index of the last set bit in [ from, to ), or -1
+	 */
+	private static long lastSetBit( long[] words, long from, long to )
+	{
+		int w = ( int ) ( ( to - 1 ) >>> 6 );
+		long word = words[ w ] & ( -1L >>> ( 63 - ( ( to - 1 ) & 63 ) ) );
+
+		while ( true )
+		{
+			if ( word != 0 )
+			{
+				final long index = ( ( long ) w << 6 ) + 63 - Long.numberOfLeadingZeros( word );
+				return index >= from ? index : -1;
+			}
+
+			if ( ( ( long ) w << 6 ) <= from ) return -1;
+			word = words[ --w ];
+		}
+	}
+}
@@ -2,13 +2,21 @@ package de.embl.cba.morphometry;
 
 import de.embl.cba.morphometry.geometry.CentroidsParameters;
 import de.embl.cba.morphometry.geometry.CoordinatesAndValues;
+import de.embl.cba.morphometry.geometry.AxisProfile;
 import de.embl.cba.morphometry.geometry.CurveAnalysis;
+import de.embl.cba.morphometry.regions.ConnectedComponentLabeling;
+import de.embl.cba.morphometry.regions.Regions;
 import de.embl.cba.transforms.utils.Transforms;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ij.process.LUT;
+import ij.process.ShortProcessor;
 import net.imagej.Dataset;
 import net.imagej.axis.LinearAxis;
 import net.imglib2.*;
@@ -25,7 +33,7 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.outofbounds.OutOfBounds;
@@ -37,7 +45,9 @@ import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.AbstractIntegerType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.LinAlgHelpers;
 import net.imglib2.view.IntervalView;
@@ -46,9 +56,6 @@ import org.scijava.log.LogService;
 
 import java.awt.*;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
 
@@ -60,65 +67,25 @@ public class Utils
 {
 	public static int imagePlusChannelDimension = 2;
 
-	public static String logFilePath = null;
-
-
 	public static void setNewLogFilePath( String aLogFilePath )
 	{
-		logFilePath = aLogFilePath;
-		createLogFile();
+		AsyncLogger.setDefaultLogFilePath( aLogFilePath );
 	}
 
 	public static void log( String message )
 	{
-		IJ.log( message );
-
-		if ( logFilePath != null )
-		{
-			File logFile = new File( logFilePath );
-
-			if ( ! logFile.exists() )
-			{
-				createLogFile();
-			}
-			else
-			{
-				writeToLogFile( message + "\n" );
-			}
-		}
-
+		AsyncLogger.log( AsyncLogger.INFO, message );
 	}
 
-	public static void writeToLogFile( String message )
-	{
-		try {
-			Files.write( Paths.get( logFilePath ), message.getBytes(), StandardOpenOption.APPEND);
-		}
-		catch (IOException e) {
-			//exception handling left as an exercise for the reader
-		}
-	}
-
-	public static void createLogFile()
+	/**
+	 * Logs detailed, e.g. per object, messages, which are only shown
+	 * if the log level of the current {@link AsyncLogger.Context} is {@link AsyncLogger#DEBUG}.
+	 */
+	public static void debug( String message )
 	{
-		PrintWriter writer = null;
-		try
-		{
-			writer = new PrintWriter( logFilePath, "UTF-8" );
-			writer.println( "Start logging..." );
-		}
-		catch ( FileNotFoundException e )
-		{
-			e.printStackTrace();
-		}
-		catch ( UnsupportedEncodingException e )
-		{
-			e.printStackTrace();
-		}
-		writer.close();
+		AsyncLogger.log( AsyncLogger.DEBUG, message );
 	}
 
-
 	public static void log( String message, LogService logService )
 	{
 		logService.info( message );
@@ -128,32 +95,14 @@ public class Utils
 	CoordinatesAndValues computeAverageIntensitiesAlongAxis(
 			RandomAccessibleInterval< T > rai, double maxAxisDist, int axis, double calibration )
 	{
-		final CoordinatesAndValues coordinatesAndValues = new CoordinatesAndValues();
-
-		for ( long coordinate = rai.min( axis ); coordinate <= rai.max( axis ); ++coordinate )
-		{
-			final IntervalView< T > intensitySlice = Views.hyperSlice( rai, axis, coordinate );
-			coordinatesAndValues.coordinates.add( (double) coordinate * calibration );
-			coordinatesAndValues.values.add( computeAverage( intensitySlice, maxAxisDist ) );
-		}
-
-		return coordinatesAndValues;
+		return AxisProfile.compute( rai, null, axis, maxAxisDist, calibration ).getAverages();
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
 	CoordinatesAndValues computeMaximumIntensitiesAlongAxis(
 			RandomAccessibleInterval< T > rai, double maxAxisDist, int axis, double calibration )
 	{
-		final CoordinatesAndValues coordinatesAndValues = new CoordinatesAndValues();
-
-		for ( long coordinate = rai.min( axis ); coordinate <= rai.max( axis ); ++coordinate )
-		{
-			final IntervalView< T > intensitySlice = Views.hyperSlice( rai, axis, coordinate );
-			coordinatesAndValues.coordinates.add( (double) coordinate * calibration );
-			coordinatesAndValues.values.add( computeMaximum( intensitySlice, maxAxisDist ) );
-		}
-
-		return coordinatesAndValues;
+		return AxisProfile.compute( rai, null, axis, maxAxisDist, calibration ).getMaxima();
 	}
 
 
@@ -192,34 +141,14 @@ public class Utils
 	public static < T extends RealType< T > & NativeType< T > >
 	CoordinatesAndValues computeAverageIntensitiesAlongAxisWithinMask( RandomAccessibleInterval< T > rai, RandomAccessibleInterval< BitType > mask, int axis, double calibration )
 	{
-		final CoordinatesAndValues coordinatesAndValues = new CoordinatesAndValues();
-
-		for ( long coordinate = rai.min( axis ); coordinate <= rai.max( axis ); ++coordinate )
-		{
-			final IntervalView< T > intensitySlice = Views.hyperSlice( rai, axis, coordinate );
-			final IntervalView< BitType > maskSlice = Views.hyperSlice( mask, axis, coordinate );
-
-			coordinatesAndValues.coordinates.add( (double) coordinate * calibration );
-			coordinatesAndValues.values.add( computeAverage( intensitySlice, maskSlice ) );
-		}
-
-		return coordinatesAndValues;
+		return AxisProfile.compute( rai, mask, axis, Double.POSITIVE_INFINITY, calibration ).getAverages();
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
 	CoordinatesAndValues computeAverageIntensitiesAlongAxis(
 			RandomAccessibleInterval< T > rai, int axis, double calibration )
 	{
-		final CoordinatesAndValues coordinatesAndValues = new CoordinatesAndValues();
-
-		for ( long coordinate = rai.min( axis ); coordinate <= rai.max( axis ); ++coordinate )
-		{
-			final IntervalView< T > intensitySlice = Views.hyperSlice( rai, axis, coordinate );
-			coordinatesAndValues.coordinates.add( (double) coordinate * calibration );
-			coordinatesAndValues.values.add( computeAverage( intensitySlice ) );
-		}
-
-		return coordinatesAndValues;
+		return AxisProfile.compute( rai, null, axis, Double.POSITIVE_INFINITY, calibration ).getAverages();
 	}
 
 
@@ -459,22 +388,19 @@ public class Utils
 
 	public static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< BitType > createBinaryImage( RandomAccessibleInterval< T > input, double doubleThreshold )
 	{
-		final ArrayImg< BitType, LongArray > binaryImage = ArrayImgs.bits( Intervals.dimensionsAsLongArray( input ) );
+		return createBinaryImage( input, doubleThreshold, null );
+	}
 
+	/**
+	 * @param statistics if not null, is set to the number and bounding box of the foreground pixels
+	 */
+	public static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< BitType > createBinaryImage( RandomAccessibleInterval< T > input, double doubleThreshold, Thresholding.Statistics statistics )
+	{
+		// the threshold is compared in the pixel type, e.g. rounded for integer types
 		T threshold = input.randomAccess().get().copy();
 		threshold.setReal( doubleThreshold );
 
-		final BitType one = new BitType( true );
-		final BitType zero = new BitType( false );
-
-		LoopBuilder.setImages( input, binaryImage ).forEachPixel( ( i, b ) ->
-				{
-					b.set( i.compareTo( threshold ) > 0 ?  one : zero );
-				}
-		);
-
-		return binaryImage;
-
+		return Thresholding.createMask( input, threshold.getRealDouble(), statistics );
 	}
 
 	public static < T extends RealType< T > & NativeType< T > >
@@ -485,16 +411,16 @@ public class Utils
 
 		final CoordinatesAndValues coordinatesAndValues = computeAverageIntensitiesAlongAxis( rai, longAxisDimension, calibration );
 
-		ArrayList< Double > absoluteDerivatives = CurveAnalysis.computeAbsoluteDerivatives( coordinatesAndValues.values, (int) (derivativeDelta / calibration ));
+		double[] absoluteDerivatives = CurveAnalysis.computeAbsoluteDerivatives( coordinatesAndValues.getValues(), (int) (derivativeDelta / calibration ));
 
-		double maxLoc = computeMaxLoc( coordinatesAndValues.coordinates, absoluteDerivatives, null );
+		double maxLoc = computeMaxLoc( coordinatesAndValues.getCoordinates(), absoluteDerivatives, null );
 
 		System.out.println( "maxLoc = " + maxLoc );
 
 		if ( showPlots )
 		{
-			Plots.plot( coordinatesAndValues.coordinates, coordinatesAndValues.values, "x", "intensity" );
-			Plots.plot( coordinatesAndValues.coordinates, absoluteDerivatives, "x", "abs( derivative )" );
+			Plots.plot( coordinatesAndValues.getCoordinates(), coordinatesAndValues.getValues(), "x", "intensity" );
+			Plots.plot( coordinatesAndValues.getCoordinates(), absoluteDerivatives, "x", "abs( derivative )" );
 		}
 
 		if ( maxLoc > 0 )
@@ -513,26 +439,26 @@ public class Utils
 
 	public static double computeMaxLoc( CoordinatesAndValues coordinatesAndValues )
 	{
-		return computeMaxLoc( coordinatesAndValues.coordinates, coordinatesAndValues.values, null );
+		return computeMaxLoc( coordinatesAndValues.getCoordinates(), coordinatesAndValues.getValues(), null );
 	}
 
-	public static double computeMaxLoc( ArrayList< Double > coordinates, ArrayList< Double > values, double[] coordinateRangeMinMax )
+	public static double computeMaxLoc( double[] coordinates, double[] values, double[] coordinateRangeMinMax )
 	{
 		double max = Double.MIN_VALUE;
-		double maxLoc = coordinates.get( 0 );
+		double maxLoc = coordinates[ 0 ];
 
-		for ( int i = 0; i < values.size(); ++i )
+		for ( int i = 0; i < values.length; ++i )
 		{
 			if ( coordinateRangeMinMax != null )
 			{
-				if ( coordinates.get( i ) < coordinateRangeMinMax[ 0 ] ) continue;
-				if ( coordinates.get( i ) > coordinateRangeMinMax[ 1 ] ) continue;
+				if ( coordinates[ i ] < coordinateRangeMinMax[ 0 ] ) continue;
+				if ( coordinates[ i ] > coordinateRangeMinMax[ 1 ] ) continue;
 			}
 
-			if ( values.get( i ) > max )
+			if ( values[ i ] > max )
 			{
-				max = values.get( i );
-				maxLoc = coordinates.get( i );
+				max = values[ i ];
+				maxLoc = coordinates[ i ];
 			}
 		}
 
@@ -540,23 +466,23 @@ public class Utils
 	}
 
 
-	public static double computeMinLoc( ArrayList< Double > coordinates, ArrayList< Double > values, double[] coordinateRangeMinMax )
+	public static double computeMinLoc( double[] coordinates, double[] values, double[] coordinateRangeMinMax )
 	{
 		double minValue = Double.MAX_VALUE;
-		double minLoc = coordinates.get( 0 );
+		double minLoc = coordinates[ 0 ];
 
-		for ( int i = 0; i < values.size(); ++i )
+		for ( int i = 0; i < values.length; ++i )
 		{
 			if ( coordinateRangeMinMax != null )
 			{
-				if ( coordinates.get( i ) < coordinateRangeMinMax[ 0 ] ) continue;
-				if ( coordinates.get( i ) > coordinateRangeMinMax[ 1 ] ) continue;
+				if ( coordinates[ i ] < coordinateRangeMinMax[ 0 ] ) continue;
+				if ( coordinates[ i ] > coordinateRangeMinMax[ 1 ] ) continue;
 			}
 
-			if ( values.get( i ) < minValue )
+			if ( values[ i ] < minValue )
 			{
-				minValue = values.get( i );
-				minLoc = coordinates.get( i );
+				minValue = values[ i ];
+				minLoc = coordinates[ i ];
 			}
 		}
 
@@ -997,30 +923,15 @@ public class Utils
 	public static < T extends RealType< T > & NativeType< T >  >
 	ImgLabeling< Integer, IntType > asImgLabeling( RandomAccessibleInterval< T > rai )
 	{
-		RandomAccessibleInterval< IntType > labelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( rai ) );
-		labelImg = Transforms.getWithAdjustedOrigin( rai, labelImg );
-		final ImgLabeling< Integer, IntType > imgLabeling = new ImgLabeling<>( labelImg );
-
-		final java.util.Iterator< Integer > labelCreator = new java.util.Iterator< Integer >()
-		{
-			int id = 1;
-
-			@Override
-			public boolean hasNext()
-			{
-				return true;
-			}
-
-			@Override
-			public synchronized Integer next()
-			{
-				return id++;
-			}
-		};
-
-		ConnectedComponents.labelAllConnectedComponents( ( RandomAccessible ) Views.extendBorder( rai ), imgLabeling, labelCreator, ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		return asImgLabeling( rai, ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+	}
 
-		return imgLabeling;
+	public static < T extends RealType< T > & NativeType< T >  >
+	ImgLabeling< Integer, IntType > asImgLabeling( RandomAccessibleInterval< T > rai, ConnectedComponents.StructuringElement structuringElement )
+	{
+		final ConnectedComponentLabeling< T > connectedComponentLabeling = new ConnectedComponentLabeling<>( rai, structuringElement );
+		connectedComponentLabeling.run();
+		return connectedComponentLabeling.getImgLabeling();
 	}
 
 	public static ImgLabeling< Integer, IntType > labelMapAsImgLabeling( RandomAccessibleInterval< IntType > labelMap )
@@ -1089,15 +1000,7 @@ public class Utils
 								   LabelRegion labelRegion,
 								   int value )
 	{
-		final Cursor< Void > regionCursor = labelRegion.cursor();
-		final RandomAccess< IntType > access = img.randomAccess();
-		BitType bitTypeTrue = new BitType( true );
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( value );
-		}
+		Regions.forEachPixel( labelRegion, img, pixel -> pixel.set( value ) );
 	}
 
 	public static RandomAccessibleInterval<BitType> asMask( ImgLabeling<Integer, IntType> imgLabeling )
@@ -1134,22 +1037,80 @@ public class Utils
 
 	public static int getNumObjects( RandomAccessibleInterval< BitType > mask )
 	{
-		final LabelRegions labelRegions = new LabelRegions( asImgLabeling( mask )  );
-		return labelRegions.getExistingLabels().size() - 1;
+		return new ConnectedComponentLabeling<>( mask, ConnectedComponents.StructuringElement.FOUR_CONNECTED ).count();
 	}
 
+	/**
+	 * Creates a movie from 2D frames, whose processors share the pixel arrays of the frames where possible,
+	 * see {@link #asImageProcessor(RandomAccessibleInterval)}; changing the movie thus changes these frames.
+	 */
 	public static < T extends RealType< T > & NativeType< T > >
-	ImagePlus createIJ1Movie( ArrayList< RandomAccessibleInterval< T > > labelings, String title )
-	{
-		RandomAccessibleInterval movie = Views.stack( labelings );
-		movie = Views.addDimension( movie, 0, 0);
-		movie = Views.addDimension( movie, 0, 0);
-		movie = Views.permute( movie, 2,4 );
-		final ImagePlus imp = new Duplicator().run( ImageJFunctions.wrap( movie, title ) );
-		imp.setTitle( title );
+	ImagePlus createIJ1Movie( ArrayList< RandomAccessibleInterval< T > > frames, String title )
+	{
+		final ImageStack stack = new ImageStack( ( int ) frames.get( 0 ).dimension( 0 ), ( int ) frames.get( 0 ).dimension( 1 ) );
+
+		for ( RandomAccessibleInterval< T > frame : frames )
+		{
+			stack.addSlice( asImageProcessor( frame ) );
+		}
+
+		final ImagePlus imp = new ImagePlus( title, stack );
+		imp.setDimensions( 1, 1, frames.size() );
+		imp.setOpenAsHyperStack( true );
 		return imp;
 	}
 
+	/**
+	 * Array images of unsigned byte, unsigned short and float type share their pixel array with the returned processor.
+	 * Other images are copied into a processor of the same type, or into a float processor for all other types.
+	 *
+	 * @param image 2D
+	 */
+	public static < T extends RealType< T > > ImageProcessor asImageProcessor( RandomAccessibleInterval< T > image )
+	{
+		final int width = ( int ) image.dimension( 0 );
+		final int height = ( int ) image.dimension( 1 );
+		final T type = Views.iterable( image ).firstElement();
+		final Object pixels = getPixelArray( image );
+
+		final ImageProcessor processor;
+
+		if ( type instanceof UnsignedByteType )
+		{
+			if ( pixels instanceof byte[] ) return new ByteProcessor( width, height, ( byte[] ) pixels );
+			processor = new ByteProcessor( width, height );
+		}
+		else if ( type instanceof UnsignedShortType )
+		{
+			if ( pixels instanceof short[] ) return new ShortProcessor( width, height, ( short[] ) pixels, null );
+			processor = new ShortProcessor( width, height );
+		}
+		else
+		{
+			if ( type instanceof FloatType && pixels instanceof float[] ) return new FloatProcessor( width, height, ( float[] ) pixels );
+			processor = new FloatProcessor( width, height );
+		}
+
+		int i = 0;
+		for ( T value : Views.flatIterable( image ) )
+		{
+			processor.setf( i++, value.getRealFloat() );
+		}
+		processor.resetMinAndMax();
+
+		return processor;
+	}
+
+	private static Object getPixelArray( RandomAccessibleInterval< ? > image )
+	{
+		if ( ! ( image instanceof ArrayImg ) || image.numDimensions() != 2 ) return null;
+
+		final Object access = ( ( ArrayImg< ?, ? > ) image ).update( null );
+		if ( access instanceof ArrayDataAccess ) return ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray();
+
+		return null;
+	}
+
 	public static boolean acceptFile( String fileNameEndsWith, String file )
 	{
 		final String[] fileNameEndsWithList = fileNameEndsWith.split( "," );
@@ -1172,8 +1133,17 @@ public class Utils
 
 	public static ImagePlus asLabelImagePlus( RandomAccessibleInterval< IntType > indexImg )
 	{
-		final Duplicator duplicator = new Duplicator();
-		final ImagePlus labelImagePlus = duplicator.run( ImageJFunctions.wrap( indexImg, "mask" ) );
+		final ImagePlus labelImagePlus;
+
+		if ( indexImg.numDimensions() == 2 )
+		{
+			labelImagePlus = new ImagePlus( "mask", asImageProcessor( indexImg ) );
+		}
+		else
+		{
+			labelImagePlus = new Duplicator().run( ImageJFunctions.wrap( indexImg, "mask" ) );
+		}
+
 		labelImagePlus.setLut( getGoldenAngleLUT() );
 		return labelImagePlus;
 	}
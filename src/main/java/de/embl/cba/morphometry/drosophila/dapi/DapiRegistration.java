@@ -4,10 +4,12 @@ import de.embl.cba.morphometry.Algorithms;
 import de.embl.cba.morphometry.Angles;
 import de.embl.cba.morphometry.refractiveindexmismatch.RefractiveIndexMismatchCorrectionSettings;
 import de.embl.cba.morphometry.refractiveindexmismatch.RefractiveIndexMismatchCorrections;
+import de.embl.cba.morphometry.Thresholding;
 import de.embl.cba.morphometry.Utils;
 import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidsMLJ;
 import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMLJ;
 import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
@@ -63,11 +65,14 @@ public class DapiRegistration
 		// TODO!!
 		RefractiveIndexMismatchCorrections.correctIntensity( binned, new RefractiveIndexMismatchCorrectionSettings() );
 
-		final RandomAccessibleInterval< BitType > binaryImage = Utils.createBinaryImage( binned, settings.threshold );
+		final Thresholding.Statistics foreground = new Thresholding.Statistics();
+		final RandomAccessibleInterval< BitType > binaryImage = Utils.createBinaryImage( binned, settings.threshold, foreground );
 
 		if ( settings.showIntermediateResults ) show( binaryImage, "binary", null, calibration, false );
 
-		final EllipsoidMLJ ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( binaryImage );
+		// the moments only need the bounding box of the foreground, which the thresholding computed in the same pass
+		final Interval foregroundInterval = foreground.numForegroundPixels > 0 ? foreground.getBoundingBox() : binaryImage;
+		final EllipsoidMLJ ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( binaryImage, foregroundInterval );
 
 		registration.preConcatenate( EllipsoidsMLJ.createAlignmentTransform( ellipsoidParameters ) );
 
@@ -7,6 +7,7 @@ import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMLJ;
 import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidsMLJ;
 import de.embl.cba.morphometry.refractiveindexmismatch.RefractiveIndexMismatchCorrectionSettings;
 import de.embl.cba.morphometry.refractiveindexmismatch.RefractiveIndexMismatchCorrections;
+import de.embl.cba.morphometry.segmentation.SeededWatershed;
 import de.embl.cba.transforms.utils.Transforms;
 import net.imagej.ops.OpService;
 import net.imglib2.*;
@@ -52,7 +53,7 @@ public class ShavenBabyRegistration
 	private RandomAccessibleInterval< BitType > embryoMask;
 	private double coverslipPosition;
 	private AffineTransform3D transformAtRegistrationResolution;
-	private Img< IntType > watershedLabelImg;
+	private RandomAccessibleInterval< IntType > watershedLabelImg;
 	private double[] correctedCalibration;
 
 	public ShavenBabyRegistration( ShavenBabyRegistrationSettings settings, OpService opService )
@@ -66,7 +67,7 @@ public class ShavenBabyRegistration
 			  RandomAccessibleInterval< T > other, //
 			  double[] inputCalibration )
 	{
-
+		StageProfiler.start( "Registration" );
 
 		if ( settings.showIntermediateResults ) show( svb, "input image", null, inputCalibration, false );
 
@@ -102,12 +103,15 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Down-sampling to registration resolution..." );
+		StageProfiler.start( "Down-sampling" );
 
 		final RandomAccessibleInterval< T > downscaledSvb = createRescaledArrayImg( svb, getScalingFactors( correctedCalibration, settings.registrationResolution ) );
 		final RandomAccessibleInterval< T > downscaledOther = createRescaledArrayImg( other, getScalingFactors( correctedCalibration, settings.registrationResolution ) );
 
 		double[] registrationCalibration = Utils.as3dDoubleArray( settings.registrationResolution );
 
+		StageProfiler.stop( "Down-sampling" );
+
 		if ( settings.showIntermediateResults ) show( downscaledSvb, "isotropic sampled at registration resolution", null, registrationCalibration, false );
 
 
@@ -116,6 +120,7 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Offset and threshold..." );
+		StageProfiler.start( "Offset and coverslip" );
 
 		final IntensityHistogram downscaledSvbIntensityHistogram = new IntensityHistogram( downscaledSvb, 65535.0, 5.0 );
 
@@ -130,19 +135,21 @@ public class ShavenBabyRegistration
 
 		final CoordinatesAndValues averageSvbIntensitiesAlongZ = Utils.computeAverageIntensitiesAlongAxis( downscaledSvb, 2, settings.registrationResolution );
 
-		if ( settings.showIntermediateResults ) Plots.plot( averageSvbIntensitiesAlongZ.coordinates, averageSvbIntensitiesAlongZ.values, "z [um]", "average intensities" );
+		if ( settings.showIntermediateResults ) Plots.plot( averageSvbIntensitiesAlongZ.getCoordinates(), averageSvbIntensitiesAlongZ.getValues(), "z [um]", "average intensities" );
 
 		final double embryoCenterPosition = Utils.computeMaxLoc( averageSvbIntensitiesAlongZ );
 		coverslipPosition = embryoCenterPosition - ShavenBabyRegistrationSettings.drosophilaWidth / 2.0;
 
 		Utils.log( "Approximate coverslip coordinate [um]: " + coverslipPosition );
 		Utils.log( "Approximate axial embryo center coordinate [um]: " + embryoCenterPosition );
+		StageProfiler.stop( "Offset and coverslip" );
 
 		/**
 		 *  Refractive index corrections
 		 */
 		
 		Utils.log( "Refractive index intensity correction..." );
+		StageProfiler.start( "Intensity correction" );
 
 		final RefractiveIndexMismatchCorrectionSettings correctionSettings = new RefractiveIndexMismatchCorrectionSettings();
 		correctionSettings.intensityOffset = intensityHistogramMode.coordinate;
@@ -155,6 +162,7 @@ public class ShavenBabyRegistration
 
 		final RandomAccessibleInterval< T > intensityCorrectedOther = Utils.copyAsArrayImg( downscaledOther );
 		RefractiveIndexMismatchCorrections.correctIntensity( intensityCorrectedOther, correctionSettings );
+		StageProfiler.stop( "Intensity correction" );
 
 		if ( settings.showIntermediateResults ) show( intensityCorrectedSvb, "intensity corrected svb", null, registrationCalibration, false );
 
@@ -165,6 +173,8 @@ public class ShavenBabyRegistration
 		 *  - TODO: find some more scientific method to determine threshold...
 		 */
 
+		StageProfiler.start( "Threshold and mask" );
+
 		final Histogram1d< T > histogram = opService.image().histogram( Views.iterable( intensityCorrectedSvb ) );
 		final double huang = opService.threshold().huang( histogram ).getRealDouble();
 		final double otsu = opService.threshold().otsu( histogram ).getRealDouble();
@@ -197,6 +207,8 @@ public class ShavenBabyRegistration
 			mask = Algorithms.fillHoles3Din2D( mask, d, opService );
 		}
 
+		StageProfiler.stop( "Threshold and mask" );
+
 		if ( settings.showIntermediateResults ) show( mask, "small objects removed and holes closed", null, registrationCalibration, false );
 
 
@@ -206,9 +218,12 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Distance transform..." );
+		StageProfiler.start( "Distance transform" );
 
 		final RandomAccessibleInterval< DoubleType > distances = Algorithms.computeDistanceTransform( mask );
 
+		StageProfiler.stop( "Distance transform" );
+
 		if ( settings.showIntermediateResults ) show( distances, "squared distances", null, registrationCalibration, false );
 
 
@@ -223,6 +238,8 @@ public class ShavenBabyRegistration
 		 * - due to the elongated shape of the embryos there might not be a clear maximum => use also a global threshold
 		 */
 
+		StageProfiler.start( "Watershed" );
+
 		final ImgLabeling< Integer, IntType > seedsLabelImg = createWatershedSeeds( distances );
 
 		/**
@@ -231,6 +248,8 @@ public class ShavenBabyRegistration
 
 		final ImgLabeling< Integer, IntType > watershedLabeling = computeWatershed( mask, distances, seedsLabelImg );
 
+		StageProfiler.stop( "Watershed" );
+
 		if ( settings.showIntermediateResults ) show( watershedLabelImg, "watershed", null, registrationCalibration, false );
 
 		/**
@@ -239,10 +258,15 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Extract main embryo..." );
+		StageProfiler.start( "Main embryo" );
 
 		final LabelRegion< Integer > centralObjectRegion = getCentralObjectLabelRegion( watershedLabeling );
 
-		if ( centralObjectRegion == null ) return;
+		if ( centralObjectRegion == null )
+		{
+			StageProfiler.stop( "Registration" );
+			return;
+		}
 
 		embryoMask = Algorithms.createMaskFromLabelRegion( centralObjectRegion, Intervals.dimensionsAsLongArray( downscaledSvb ) );
 
@@ -257,6 +281,8 @@ public class ShavenBabyRegistration
 
 		embryoMask = Algorithms.open( embryoMask, ( int ) ( 40.0 / settings.registrationResolution ) );
 
+		StageProfiler.stop( "Main embryo" );
+
 		if ( settings.showIntermediateResults ) show( embryoMask, "embryo mask - processed", null, registrationCalibration, false );
 
 
@@ -266,6 +292,7 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Fit ellipsoid..." );
+		StageProfiler.start( "Ellipsoid alignment" );
 
 		final EllipsoidMLJ ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( embryoMask );
 
@@ -275,6 +302,8 @@ public class ShavenBabyRegistration
 
 		final RandomAccessibleInterval yawAlignedIntensities = Utils.copyAsArrayImg( Transforms.createTransformedView( downscaledSvb, registration ) );
 
+		StageProfiler.stop( "Ellipsoid alignment" );
+
 
 
 		/**
@@ -282,6 +311,7 @@ public class ShavenBabyRegistration
 		 */
 
 		Utils.log( "Computing long axis orientation..." );
+		StageProfiler.start( "Long axis orientation" );
 
 		final AffineTransform3D orientationTransform = computeFlippingTransform( yawAlignedMask, yawAlignedIntensities, settings.registrationResolution );
 
@@ -289,6 +319,8 @@ public class ShavenBabyRegistration
 
 		final RandomAccessibleInterval< BitType > yawAndOrientationAlignedMask = Utils.copyAsArrayImg( Transforms.createTransformedView( embryoMask, registration, new NearestNeighborInterpolatorFactory() ) );
 
+		StageProfiler.stop( "Long axis orientation" );
+
 		if ( settings.showIntermediateResults ) show( yawAndOrientationAlignedMask, "long axis aligned and oriented", Transforms.origin(), registrationCalibration, false );
 
 
@@ -296,6 +328,8 @@ public class ShavenBabyRegistration
 		 *  Roll transform
 		 */
 
+		StageProfiler.start( "Roll transform" );
+
 		final AffineTransform3D rollTransform = computeRollTransform( registration, registrationCalibration, intensityCorrectedOther, yawAndOrientationAlignedMask, settings.rollAngleComputationMethod );
 		rollTransform.rotate( X, Math.PI ); // this changes whether the found structure should be at the top or bottom
 
@@ -308,6 +342,8 @@ public class ShavenBabyRegistration
 
 		registration = registration.preConcatenate( rollTransform  );
 
+		StageProfiler.stop( "Roll transform" );
+
 		if ( settings.showIntermediateResults ) show( Transforms.createTransformedView( intensityCorrectedSvb, registration ), "aligned svb at registration resolution", Transforms.origin(), registrationCalibration, false );
 
 
@@ -317,25 +353,26 @@ public class ShavenBabyRegistration
 
 		transformAtRegistrationResolution = registration;
 
+		StageProfiler.stop( "Registration" );
 	}
 
 	public ImgLabeling< Integer, IntType > computeWatershed( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< DoubleType > distances, ImgLabeling< Integer, IntType > seedsLabelImg )
 	{
 		Utils.log( "Watershed..." );
 
-		// prepare result label image
-		watershedLabelImg = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
-		final ImgLabeling< Integer, IntType > watershedLabeling = new ImgLabeling<>( watershedLabelImg );
+		// squared distances of voxels are (close to) integers, thus rounding them yields exact flooding levels
+		final RandomAccessibleInterval< IntType > quantizedDistances =
+				Converters.convert( distances, ( i, o ) -> o.set( ( int ) Math.round( i.get() ) ), new IntType() );
 
-		opService.image().watershed(
-				watershedLabeling,
-				Utils.invertedView( distances ),
-				seedsLabelImg,
+		watershedLabelImg = SeededWatershed.floodMaskComponents(
+				quantizedDistances,
+				seedsLabelImg.getIndexImg(),
+				mask,
+				true,
 				false,
 				false );
 
-		Utils.applyMask( watershedLabelImg, mask );
-		return watershedLabeling;
+		return Utils.labelMapAsImgLabeling( watershedLabelImg );
 	}
 
 
@@ -349,7 +386,7 @@ public class ShavenBabyRegistration
 		return coverslipPosition;
 	}
 
-	public Img< IntType > getWatershedLabelImg()
+	public RandomAccessibleInterval< IntType > getWatershedLabelImg()
 	{
 		return watershedLabelImg;
 	}
@@ -482,9 +519,7 @@ public class ShavenBabyRegistration
 	{
 		Utils.log( "Creating mask...");
 
-		RandomAccessibleInterval< BitType > mask = Converters.convert( downscaled, ( i, o ) -> o.set( i.getRealDouble() > threshold ? true : false ), new BitType() );
-
-		return mask;
+		return Thresholding.createMask( downscaled, threshold );
 	}
 
 	public < T extends RealType< T > & NativeType< T > > double getThreshold( RandomAccessibleInterval< T > downscaled )
@@ -533,9 +568,9 @@ public class ShavenBabyRegistration
 	{
 		final CoordinatesAndValues coordinatesAndValues = Utils.computeAverageIntensitiesAlongAxisWithinMask( yawAlignedIntensities, yawAlignedMask, X, calibration );
 
-		if ( settings.showIntermediateResults ) Plots.plot( coordinatesAndValues.coordinates, coordinatesAndValues.values, "x", "average intensity" );
+		if ( settings.showIntermediateResults ) Plots.plot( coordinatesAndValues.getCoordinates(), coordinatesAndValues.getValues(), "x", "average intensity" );
 
-		double maxLoc = Utils.computeMaxLoc( coordinatesAndValues.coordinates, coordinatesAndValues.values, null );
+		double maxLoc = Utils.computeMaxLoc( coordinatesAndValues.getCoordinates(), coordinatesAndValues.getValues(), null );
 
 		AffineTransform3D affineTransform3D = new AffineTransform3D();
 
@@ -631,32 +666,12 @@ public class ShavenBabyRegistration
 
 	private Img< BitType > createMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
 	{
-		final Img< BitType > centralObjectImg = ArrayImgs.bits( dimensions );
-
-		final Cursor< Void > regionCursor = centralObjectRegion.cursor();
-		final net.imglib2.RandomAccess< BitType > access = centralObjectImg.randomAccess();
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( true );
-		}
-		return centralObjectImg;
+		return Algorithms.createMaskFromLabelRegion( centralObjectRegion, dimensions );
 	}
 
 	private Img< UnsignedByteType > createUnsignedByteTypeMaskFromLabelRegion( LabelRegion< Integer > centralObjectRegion, long[] dimensions )
 	{
-		final Img< UnsignedByteType > centralObjectImg = ArrayImgs.unsignedBytes( dimensions );
-
-		final Cursor< Void > regionCursor = centralObjectRegion.cursor();
-		final net.imglib2.RandomAccess< UnsignedByteType > access = centralObjectImg.randomAccess();
-		while ( regionCursor.hasNext() )
-		{
-			regionCursor.fwd();
-			access.setPosition( regionCursor );
-			access.get().set( 255 );
-		}
-		return centralObjectImg;
+		return Algorithms.createUnsignedByteTypeMaskFromLabelRegion( centralObjectRegion, dimensions );
 	}
 
 
@@ -2,6 +2,10 @@ package de.embl.cba.morphometry.drosophila.shavenbaby;
 
 import bdv.util.*;
 import de.embl.cba.morphometry.Projection;
+import de.embl.cba.morphometry.AsyncLogger;
+import de.embl.cba.morphometry.BioFormatsPlaneSource;
+import de.embl.cba.morphometry.ChunkedImageWriter;
+import de.embl.cba.morphometry.StageProfiler;
 import de.embl.cba.morphometry.refractiveindexmismatch.RefractiveIndexMismatchCorrectionSettings;
 import de.embl.cba.morphometry.refractiveindexmismatch.RefractiveIndexMismatchCorrections;
 import de.embl.cba.morphometry.Utils;
@@ -29,7 +33,7 @@ import java.io.File;
 import java.util.ArrayList;
 
 import static de.embl.cba.morphometry.Constants.*;
-import static de.embl.cba.morphometry.ImageIO.openWithBioFormats;
+import static de.embl.cba.morphometry.ImageIO.openCachedWithBioFormats;
 
 
 @Plugin(type = Command.class, menuPath = "Plugins>Registration>EMBL>Drosophila Shavenbaby" )
@@ -91,6 +95,11 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 	@Parameter
 	public int otherChannelIndexOneBased = settings.otherChannelIndexOneBased;
 
+	@Parameter( choices = {
+			ShavenBabyRegistrationSettings.REGISTERED_IMAGE_TIFF,
+			ShavenBabyRegistrationSettings.REGISTERED_IMAGE_BDV_N5 })
+	public String registeredImageFormat = settings.registeredImageFormat;
+
 
 
 //	@Parameter
@@ -131,62 +140,120 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 				{
 					final String outputFilePathStump = outputDirectory + File.separator + file;
 
-					Utils.setNewLogFilePath( outputFilePathStump + ".log.txt" );
+					AsyncLogger.beginContext( outputFilePathStump + ".log.txt", AsyncLogger.getContext().getLevel() );
 
-					// Open
-					final String inputPath = inputDirectory + File.separator + file;
-					Utils.log( " " );
-					Utils.log( "Reading: " + inputPath + "..." );
-					final ImagePlus inputImagePlus = openWithBioFormats( inputPath );
+					StageProfiler.begin( file );
 
-					if ( inputImagePlus == null )
+					try
+					{
+						registerFile( file, outputFilePathStump, registration );
+					}
+					finally
 					{
-						logService.error( "Error opening inputImageFile: " + inputPath );
-						continue;
+						StageProfiler.end().saveReport( outputFilePathStump );
+						AsyncLogger.endContext();
 					}
+				}
+			}
+		}
 
-					RandomAccessibleInterval< T > registeredImages = alignAndMaskImages( inputImagePlus, registration );
+		Utils.log( "Done!" );
 
-					// Save watershed
-					RandomAccessibleInterval< T > watershed = (RandomAccessibleInterval) registration.getWatershedLabelImg();
-					new FileSaver( ImageJFunctions.wrap( watershed, "" ) ).saveAsTiff( outputFilePathStump + "-watershed.tif" );
 
-					if ( registeredImages == null )
-					{
-						Utils.log( "ERROR: Could not find central embryo" );
-						continue;
-					}
+	}
 
-					Utils.log( "Creating projections..." );
-					final ArrayList< ImagePlus > projections = createProjections( registeredImages );
+	/**
+	 * @param file name of the file in the input directory
+	 */
+	private void registerFile( String file, String outputFilePathStump, ShavenBabyRegistration registration )
+	{
+		// Open
+		final String inputPath = inputDirectory + File.separator + file;
+		Utils.log( " " );
+		Utils.log( "Reading: " + inputPath + "..." );
+		StageProfiler.start( "Reading" );
+		final BioFormatsPlaneSource< T > input = openCachedWithBioFormats( inputPath );
+		StageProfiler.stop( "Reading" );
+
+		if ( input == null )
+		{
+			logService.error( "Error opening inputImageFile: " + inputPath );
+			return;
+		}
 
-					Utils.log( "Saving projections..." );
-					saveImages( outputFilePathStump, projections );
+		try
+		{
+			registerImages( input, outputFilePathStump, registration );
+		}
+		finally
+		{
+			input.close();
+		}
+	}
 
-					// Save full registered stack
-					final RandomAccessibleInterval< T > transformedWithImagePlusDimensionOrder = Utils.copyAsArrayImg( Views.permute( registeredImages, 2, 3 ) );
-					final ImagePlus transformedImagePlus = ImageJFunctions.wrap( transformedWithImagePlusDimensionOrder, "transformed" );
-					final String outputPath = outputFilePathStump + "-registered.tif";
-					Utils.log( "Saving registered image: " + outputPath );
-					new FileSaver( transformedImagePlus ).saveAsTiff( outputPath );
+	/**
+	 * The images of the input are read lazily, thus the input must stay open until all outputs are saved.
+	 */
+	private void registerImages( BioFormatsPlaneSource< T > input, String outputFilePathStump, ShavenBabyRegistration registration )
+	{
+		final RandomAccessibleInterval< T > inputImages = getImages( input );
 
-					// Save svb non-registered projection
-					RandomAccessibleInterval< T > shavenbaby = getShavenBabyImage( getImages( inputImagePlus ) );
-					RandomAccessibleInterval shavenbabyMaximum = new Projection( shavenbaby, Z ).maximum();
-					new FileSaver( ImageJFunctions.wrap( shavenbabyMaximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch1-raw.tif" );
+		RandomAccessibleInterval< T > registeredImages = alignAndMaskImages( inputImages, input.getCalibration(), registration );
 
-					// Save ch2 non-registered projection
-					RandomAccessibleInterval< T > ch2 = getChannel2Image( getImages( inputImagePlus ) );
-					RandomAccessibleInterval ch2Maximum = new Projection( ch2, Z ).maximum();
-					new FileSaver( ImageJFunctions.wrap( ch2Maximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch2-raw.tif" );
+		// Save watershed
+		StageProfiler.start( "Saving" );
+		RandomAccessibleInterval< T > watershed = (RandomAccessibleInterval) registration.getWatershedLabelImg();
+		new FileSaver( ImageJFunctions.wrap( watershed, "" ) ).saveAsTiff( outputFilePathStump + "-watershed.tif" );
+		StageProfiler.stop( "Saving" );
 
-				}
-			}
+		if ( registeredImages == null )
+		{
+			Utils.log( "ERROR: Could not find central embryo" );
+			return;
 		}
 
-		Utils.log( "Done!" );
+		Utils.log( "Creating projections..." );
+		StageProfiler.start( "Projections" );
+		final ArrayList< ImagePlus > projections = createProjections( registeredImages );
+		StageProfiler.stop( "Projections" );
 
+		Utils.log( "Saving projections..." );
+		StageProfiler.start( "Saving" );
+		saveImages( outputFilePathStump, projections );
 
+		// Save full registered stack
+		saveRegisteredImages( registeredImages, outputFilePathStump );
+
+		// Save svb non-registered projection
+		RandomAccessibleInterval< T > shavenbaby = getShavenBabyImage( inputImages );
+		RandomAccessibleInterval shavenbabyMaximum = new Projection( shavenbaby, Z ).maximum();
+		new FileSaver( ImageJFunctions.wrap( shavenbabyMaximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch1-raw.tif" );
+
+		// Save ch2 non-registered projection
+		RandomAccessibleInterval< T > ch2 = getChannel2Image( inputImages );
+		RandomAccessibleInterval ch2Maximum = new Projection( ch2, Z ).maximum();
+		new FileSaver( ImageJFunctions.wrap( ch2Maximum, "" ) ).saveAsTiff( outputFilePathStump + "-projection-ch2-raw.tif" );
+		StageProfiler.stop( "Saving" );
+	}
+
+	/**
+	 * @param registeredImages with dimension order XYZC
+	 */
+	public void saveRegisteredImages( RandomAccessibleInterval< T > registeredImages, String outputFilePathStump )
+	{
+		if ( settings.registeredImageFormat.equals( ShavenBabyRegistrationSettings.REGISTERED_IMAGE_BDV_N5 ) )
+		{
+			final double[] voxelSize = { settings.outputResolution, settings.outputResolution, settings.outputResolution };
+			new ChunkedImageWriter().saveChannels( registeredImages, voxelSize, "micrometer", outputFilePathStump + "-registered.xml" );
+		}
+		else
+		{
+			final RandomAccessibleInterval< T > transformedWithImagePlusDimensionOrder = Utils.copyAsArrayImg( Views.permute( registeredImages, 2, 3 ) );
+			final ImagePlus transformedImagePlus = ImageJFunctions.wrap( transformedWithImagePlusDimensionOrder, "transformed" );
+			final String outputPath = outputFilePathStump + "-registered.tif";
+			Utils.log( "Saving registered image: " + outputPath );
+			new FileSaver( transformedImagePlus ).saveAsTiff( outputPath );
+		}
 	}
 
 	public boolean acceptFile( String fileNameEndsWith, String file )
@@ -268,8 +335,17 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 			ImagePlus imagePlus,
 			ShavenBabyRegistration registration )
 	{
-		final double[] inputCalibration = Utils.getCalibration( imagePlus );
-		RandomAccessibleInterval< T > images = getImages( imagePlus );
+		return alignAndMaskImages( getImages( imagePlus ), Utils.getCalibration( imagePlus ), registration );
+	}
+
+	/**
+	 * @param images with dimension order XYZC
+	 */
+	public RandomAccessibleInterval< T > alignAndMaskImages(
+			RandomAccessibleInterval< T > images,
+			double[] inputCalibration,
+			ShavenBabyRegistration registration )
+	{
 		RandomAccessibleInterval< T > shavenbaby = getShavenBabyImage( images );
 		RandomAccessibleInterval< T > channel2 = getChannel2Image( images );
 
@@ -291,6 +367,7 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		 * Get transformation for demanded output resolution
 		 */
 		Utils.log( "Applying intensity correction to all channels...." );
+		StageProfiler.start( "Registered and masked images" );
 		final RandomAccessibleInterval< T > intensityCorrectedImages =
 				createIntensityCorrectedImages(
 						images,
@@ -309,6 +386,7 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		final RandomAccessibleInterval< BitType > alignedMaskAtOutputResolution
 				= registration.createAlignedMask( settings.outputResolution, settings.getOutputImageInterval() );
 		registeredImages = Utils.maskAllChannels( registeredImages, alignedMaskAtOutputResolution, settings.showIntermediateResults );
+		StageProfiler.stop( "Registered and masked images" );
 
 		return Views.stack( registeredImages );
 	}
@@ -345,6 +423,14 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		return images;
 	}
 
+	/**
+	 * @return the first time point, with dimension order XYZC
+	 */
+	public RandomAccessibleInterval< T > getImages( BioFormatsPlaneSource< T > source )
+	{
+		return Views.permute( Views.hyperSlice( source.getImage(), 4, 0 ), 2, 3 );
+	}
+
 	private RandomAccessibleInterval< T > getShavenBabyImage( RandomAccessibleInterval< T > images )
 	{
 		RandomAccessibleInterval< T > rai = Views.hyperSlice( images, 3, settings.svbChannelIndexOneBased - 1 );
@@ -372,6 +458,7 @@ public class ShavenBabyRegistrationCommand <T extends RealType<T> & NativeType<
 		settings.rollAngleComputationMethod = rollAngleComputationMethod;
 		settings.otherChannelIndexOneBased = otherChannelIndexOneBased;
 		settings.svbChannelIndexOneBased = svbChannelIndexOneBased;
+		settings.registeredImageFormat = registeredImageFormat;
 	}
 
 
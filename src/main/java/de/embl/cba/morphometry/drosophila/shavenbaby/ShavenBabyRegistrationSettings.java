@@ -9,6 +9,8 @@ public class ShavenBabyRegistrationSettings
 	public static final String CENTROID_SHAPE_BASED_ROLL_TRANSFORM = "Shape - Centroids";
 	public static final String INTENSITY_BASED_ROLL_TRANSFORM = "Intensity - Other Channel";
 	public static final String PROJECTION_SHAPE_BASED_ROLL_TRANSFORM = "Shape - Projection";
+	public static final String REGISTERED_IMAGE_TIFF = "Tiff";
+	public static final String REGISTERED_IMAGE_BDV_N5 = "BigDataViewer N5 (chunked, compressed)";
 
 	// all spatial values are in micrometer
 	// morphometry length: 420
@@ -52,6 +54,7 @@ public class ShavenBabyRegistrationSettings
 	public double finalProjectionMinDistanceToCenter = 60;
 	public String rollAngleComputationMethod = CENTROID_SHAPE_BASED_ROLL_TRANSFORM;
 	public double watershedSeedsLocalMaximaSearchRadius = 2 * registrationResolution;
+	public String registeredImageFormat = REGISTERED_IMAGE_TIFF;
 
 	public FinalInterval getOutputImageInterval()
 	{
@@ -0,0 +1,141 @@
+package de.embl.cba.morphometry.geometry;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Average and maximal intensities of all slices perpendicular to an axis,
+ * computed in one flat pass over the image.
+ *
+ * Only voxels within maxAxisDist to the axis (and within the optional mask) are considered,
+ * where the distance is measured to the origin of the slice coordinates.
+ */
+public class AxisProfile
+{
+	public final double[] coordinates;
+	public final double[] averages;
+	public final double[] maxima;
+	public final long[] counts;
+
+	private int argMaxOfAverages;
+
+	private AxisProfile( int numSlices )
+	{
+		coordinates = new double[ numSlices ];
+		averages = new double[ numSlices ];
+		maxima = new double[ numSlices ];
+		counts = new long[ numSlices ];
+	}
+
+	/**
+	 * @param rai
+	 * @param mask only voxels within the mask are considered; may be null
+	 * @param axis
+	 * @param maxAxisDist use Double.POSITIVE_INFINITY to consider all voxels
+	 * @param calibration
+	 * @return profile, with NaN averages and - Double.MAX_VALUE maxima for slices without any considered voxel
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	AxisProfile compute( RandomAccessibleInterval< T > rai,
+						 RandomAccessibleInterval< BitType > mask,
+						 int axis,
+						 double maxAxisDist,
+						 double calibration )
+	{
+		final int n = rai.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		rai.min( min );
+		rai.max( max );
+
+		final int numSlices = ( int ) rai.dimension( axis );
+		final AxisProfile profile = new AxisProfile( numSlices );
+
+		for ( int i = 0; i < numSlices; ++i )
+		{
+			profile.coordinates[ i ] = ( min[ axis ] + i ) * calibration;
+			profile.maxima[ i ] = - Double.MAX_VALUE;
+		}
+
+		final double maxSquaredAxisDist = maxAxisDist * maxAxisDist;
+
+		final Cursor< T > cursor = Views.flatIterable( rai ).cursor();
+		final Cursor< BitType > maskCursor = mask == null ? null : Views.flatIterable( mask ).cursor();
+
+		final long[] position = min.clone();
+
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+			final boolean isInMask = maskCursor == null || maskCursor.next().get();
+
+			if ( isInMask && squaredAxisDistance( position, axis ) <= maxSquaredAxisDist )
+			{
+				final int slice = ( int ) ( position[ axis ] - min[ axis ] );
+				profile.averages[ slice ] += value;
+				profile.counts[ slice ]++;
+				if ( value > profile.maxima[ slice ] ) profile.maxima[ slice ] = value;
+			}
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] ) break;
+				position[ d ] = min[ d ];
+			}
+		}
+
+		for ( int i = 0; i < numSlices; ++i )
+		{
+			profile.averages[ i ] /= profile.counts[ i ];
+
+			if ( isLarger( profile.averages, i, profile.argMaxOfAverages ) ) profile.argMaxOfAverages = i;
+		}
+
+		return profile;
+	}
+
+	/**
+	 * NaN, i.e. the average of an empty slice, is smaller than any other value.
+	 */
+	private static boolean isLarger( double[] values, int i, int j )
+	{
+		if ( Double.isNaN( values[ i ] ) ) return false;
+		return Double.isNaN( values[ j ] ) || values[ i ] > values[ j ];
+	}
+
+	private static double squaredAxisDistance( long[] position, int axis )
+	{
+		double squaredDistance = 0;
+
+		for ( int d = 0; d < position.length; ++d )
+		{
+			if ( d != axis ) squaredDistance += position[ d ] * position[ d ];
+		}
+
+		return squaredDistance;
+	}
+
+	public int getArgMaxOfAverages()
+	{
+		return argMaxOfAverages;
+	}
+
+	public CoordinatesAndValues getAverages()
+	{
+		return asCoordinatesAndValues( averages );
+	}
+
+	public CoordinatesAndValues getMaxima()
+	{
+		return asCoordinatesAndValues( maxima );
+	}
+
+	private CoordinatesAndValues asCoordinatesAndValues( double[] values )
+	{
+		return new CoordinatesAndValues( coordinates.clone(), values.clone() );
+	}
+}
@@ -1,11 +1,87 @@
 package de.embl.cba.morphometry.geometry;
 
-import net.imglib2.img.array.ArrayImgFactory;
-
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class CoordinatesAndValues
 {
-	public ArrayList< Double > coordinates = new ArrayList<>(  );
-	public ArrayList< Double > values = new ArrayList<>(  );
+	private double[] coordinates;
+	private double[] values;
+	private int size;
+
+	public CoordinatesAndValues()
+	{
+		this( 16 );
+	}
+
+	public CoordinatesAndValues( int initialCapacity )
+	{
+		coordinates = new double[ initialCapacity ];
+		values = new double[ initialCapacity ];
+		size = 0;
+	}
+
+	/**
+	 * Wraps the arrays, without copying them.
+	 */
+	public CoordinatesAndValues( double[] coordinates, double[] values )
+	{
+		this.coordinates = coordinates;
+		this.values = values;
+		this.size = values.length;
+	}
+
+	public void add( double coordinate, double value )
+	{
+		if ( size == values.length )
+		{
+			final int capacity = Math.max( 16, 2 * size );
+			coordinates = Arrays.copyOf( coordinates, capacity );
+			values = Arrays.copyOf( values, capacity );
+		}
+
+		coordinates[ size ] = coordinate;
+		values[ size ] = value;
+		size++;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public double getCoordinate( int i )
+	{
+		return coordinates[ i ];
+	}
+
+	public double getValue( int i )
+	{
+		return values[ i ];
+	}
+
+	/**
+	 * @return the backing array, trimmed to the size
+	 */
+	public double[] getCoordinates()
+	{
+		trimToSize();
+		return coordinates;
+	}
+
+	/**
+	 * @return the backing array, trimmed to the size
+	 */
+	public double[] getValues()
+	{
+		trimToSize();
+		return values;
+	}
+
+	private void trimToSize()
+	{
+		if ( values.length == size ) return;
+
+		coordinates = Arrays.copyOf( coordinates, size );
+		values = Arrays.copyOf( values, size );
+	}
 }
@@ -1,61 +1,87 @@
 package de.embl.cba.morphometry.geometry;
 
-import de.embl.cba.morphometry.geometry.CoordinatesAndValues;
-
-import java.util.ArrayList;
-
 import static java.lang.Math.abs;
 
 public abstract class CurveAnalysis
 {
 	public static CoordinatesAndValues computeDerivatives( CoordinatesAndValues coordinatesAndValues, int di )
 	{
-		final CoordinatesAndValues derivative = new CoordinatesAndValues();
+		final double[] coordinates = coordinatesAndValues.getCoordinates();
+		final double[] values = coordinatesAndValues.getValues();
+
+		final int start = di / 2 + 1;
+		final int end = values.length - di / 2 - 1;
+		final int n = Math.max( 0, end - start );
+
+		final double[] derivativeCoordinates = new double[ n ];
+		final double[] derivativeValues = new double[ n ];
 
-		for ( int i = di / 2 + 1; i < coordinatesAndValues.values.size() - di / 2 - 1; ++i )
+		for ( int i = start; i < end; ++i )
 		{
-			derivative.values.add( coordinatesAndValues.values.get( i + di / 2 ) - coordinatesAndValues.values.get( i - di / 2 ) );
-			derivative.coordinates.add( 0.5 * ( coordinatesAndValues.coordinates.get( i + di / 2 ) + coordinatesAndValues.coordinates.get( i - di / 2 ) ));
+			derivativeValues[ i - start ] = values[ i + di / 2 ] - values[ i - di / 2 ];
+			derivativeCoordinates[ i - start ] = 0.5 * ( coordinates[ i + di / 2 ] + coordinates[ i - di / 2 ] );
 		}
 
-		return derivative;
+		return new CoordinatesAndValues( derivativeCoordinates, derivativeValues );
 	}
 
-	public static ArrayList< Double > computeAbsoluteDerivatives( ArrayList< Double > values, int di )
+	public static double[] computeAbsoluteDerivatives( double[] values, int di )
 	{
-		final ArrayList< Double > derivatives = new ArrayList<>();
+		final int start = di / 2 + 1;
+		final int end = values.length - di / 2 - 1;
 
-		for ( int i = di / 2 + 1; i < values.size() - di / 2 - 1; ++i )
+		final double[] derivatives = new double[ Math.max( 0, end - start ) ];
+
+		for ( int i = start; i < end; ++i )
 		{
-			derivatives.add( abs( values.get( i + di / 2 ) - values.get( i - di / 2 ) ) );
+			derivatives[ i - start ] = abs( values[ i + di / 2 ] - values[ i - di / 2 ] );
 		}
 
 		return derivatives;
 	}
 
+	/**
+	 * The half maximum locations are linearly interpolated between the samples.
+	 * If the curve does not drop below half maximum on one side, its last coordinate on that side is used.
+	 */
 	public static double computeFWHM( CoordinatesAndValues coordinatesAndValues )
 	{
+		final double[] values = coordinatesAndValues.getValues();
+		return computeFWHM( coordinatesAndValues, computeMaximumIndexAndValue( values, 0, values.length ).index );
+	}
+
+	/**
+	 * @param maximumIndex index of the maximum of the values, if already known, e.g. from an {@link AxisProfile}
+	 */
+	public static double computeFWHM( CoordinatesAndValues coordinatesAndValues, int maximumIndex )
+	{
+		final double[] coordinates = coordinatesAndValues.getCoordinates();
+		final double[] values = coordinatesAndValues.getValues();
+		final int n = values.length;
 
-		final IndexAndValue indexAndValue = computeMaximumIndexAndValue( coordinatesAndValues );
+		final IndexAndValue indexAndValue = new IndexAndValue();
+		indexAndValue.index = maximumIndex;
+		indexAndValue.value = values[ maximumIndex ];
 
-		final int n = coordinatesAndValues.values.size();
+		final double halfMax = indexAndValue.value / 2.0;
 
-		double halfMaxLoc1 = 0.0, halfMaxLoc2 = 0.0;
+		double halfMaxLoc1 = coordinates[ 0 ];
+		double halfMaxLoc2 = coordinates[ n - 1 ];
 
-		for ( int i = indexAndValue.index; i < n; i++ )
+		for ( int i = indexAndValue.index + 1; i < n; i++ )
 		{
-			if ( coordinatesAndValues.values.get( i ) < indexAndValue.value / 2.0 )
+			if ( values[ i ] < halfMax )
 			{
-				halfMaxLoc2 = 0.5 * ( coordinatesAndValues.values.get( i - 1 ) + coordinatesAndValues.values.get( i ) );
+				halfMaxLoc2 = interpolate( coordinates, values, i - 1, i, halfMax );
 				break;
 			}
 		}
 
-		for ( int i = indexAndValue.index; i >= 0; i-- )
+		for ( int i = indexAndValue.index - 1; i >= 0; i-- )
 		{
-			if ( coordinatesAndValues.values.get( i ) < indexAndValue.value / 2.0 )
+			if ( values[ i ] < halfMax )
 			{
-				halfMaxLoc1 = 0.5 * ( coordinatesAndValues.values.get( i + 1 ) + coordinatesAndValues.values.get( i ) );
+				halfMaxLoc1 = interpolate( coordinates, values, i + 1, i, halfMax );
 				break;
 			}
 		}
@@ -63,20 +89,36 @@ public abstract class CurveAnalysis
 		return Math.abs( halfMaxLoc2 - halfMaxLoc1 );
 	}
 
+	/**
+	 * @return coordinate between sample i and j at which the linearly interpolated curve equals the value
+	 */
+	private static double interpolate( double[] coordinates, double[] values, int i, int j, double value )
+	{
+		final double fraction = ( values[ i ] - value ) / ( values[ i ] - values[ j ] );
+		return coordinates[ i ] + fraction * ( coordinates[ j ] - coordinates[ i ] );
+	}
 
 	public static IndexAndValue computeMaximumIndexAndValue( CoordinatesAndValues coordinatesAndValues )
 	{
+		return computeMaximumIndexAndValue( coordinatesAndValues.getValues(), 0, coordinatesAndValues.size() );
+	}
 
-		final int n = coordinatesAndValues.coordinates.size();
-
+	/**
+	 * @param values
+	 * @param start first index (inclusive)
+	 * @param end last index (exclusive)
+	 * @return index and value of the maximum within the range
+	 */
+	public static IndexAndValue computeMaximumIndexAndValue( double[] values, int start, int end )
+	{
 		final IndexAndValue indexAndValue = new IndexAndValue();
 		indexAndValue.value = - Double.MAX_VALUE;
 
-		for ( int i = 0; i < n; i++ )
+		for ( int i = start; i < end; i++ )
 		{
-			if ( coordinatesAndValues.values.get( i ) > indexAndValue.value )
+			if ( values[ i ] > indexAndValue.value )
 			{
-				indexAndValue.value = coordinatesAndValues.values.get( i );
+				indexAndValue.value = values[ i ];
 				indexAndValue.index = i;
 			}
 		}
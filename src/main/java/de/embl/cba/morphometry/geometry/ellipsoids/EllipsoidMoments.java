@@ -0,0 +1,159 @@
+package de.embl.cba.morphometry.geometry.ellipsoids;
+
+import mcib3d.geom.Vector3D;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.view.Views;
+
+import java.util.stream.LongStream;
+
+import static de.embl.cba.morphometry.Constants.*;
+import static java.lang.Math.sqrt;
+
+/**
+ * Streaming accumulator of the first and second moments of the voxel positions of a 3D object.
+ *
+ * Sums and cross-products are accumulated exactly as longs, such that partial
+ * accumulators (e.g. of different slices) can be combined in any order.
+ */
+public class EllipsoidMoments
+{
+	private long numVoxels;
+	private final long[] sums = new long[ 3 ];
+	private final long[] sumSquares = new long[ 6 ];
+
+	public void add( long x, long y, long z )
+	{
+		numVoxels++;
+
+		sums[ X ] += x;
+		sums[ Y ] += y;
+		sums[ Z ] += z;
+
+		sumSquares[ X ] += x * x;
+		sumSquares[ Y ] += y * y;
+		sumSquares[ Z ] += z * z;
+		sumSquares[ XY ] += x * y;
+		sumSquares[ XZ ] += x * z;
+		sumSquares[ YZ ] += y * z;
+	}
+
+	public void add( EllipsoidMoments other )
+	{
+		numVoxels += other.numVoxels;
+
+		for ( int i = 0; i < 3; ++i ) sums[ i ] += other.sums[ i ];
+		for ( int i = 0; i < 6; ++i ) sumSquares[ i ] += other.sumSquares[ i ];
+	}
+
+	/**
+	 * Accumulates all voxels that are true, in parallel over the z-slices.
+	 * Works on bit masks as well as on LabelRegions.
+	 *
+	 * @param mask
+	 * @return moments, with positions in the coordinates of the mask
+	 */
+	public static < B extends BooleanType< B > > EllipsoidMoments compute( RandomAccessibleInterval< B > mask )
+	{
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		mask.min( min );
+		mask.max( max );
+
+		return LongStream.rangeClosed( min[ Z ], max[ Z ] ).parallel().mapToObj( z -> {
+
+			final EllipsoidMoments moments = new EllipsoidMoments();
+
+			final FinalInterval slice = new FinalInterval( new long[]{ min[ X ], min[ Y ], z }, new long[]{ max[ X ], max[ Y ], z } );
+			final Cursor< B > cursor = Views.flatIterable( Views.interval( mask, slice ) ).cursor();
+
+			long x = min[ X ];
+			long y = min[ Y ];
+
+			while ( cursor.hasNext() )
+			{
+				if ( cursor.next().get() ) moments.add( x, y, z );
+
+				if ( ++x > max[ X ] )
+				{
+					x = min[ X ];
+					y++;
+				}
+			}
+
+			return moments;
+
+		} ).collect( EllipsoidMoments::new, EllipsoidMoments::add, EllipsoidMoments::add );
+	}
+
+	public long getNumVoxels()
+	{
+		return numVoxels;
+	}
+
+	public double[] getCenter()
+	{
+		final double[] center = new double[ 3 ];
+
+		for ( int d : XYZ )
+		{
+			center[ d ] = ( double ) sums[ d ] / numVoxels;
+		}
+
+		return center;
+	}
+
+	/**
+	 * @return central second moments, indexed as in {@link EllipsoidsMLJ#computeMoments}
+	 */
+	public double[] getCentralMoments()
+	{
+		final double[] sumSquares = new double[ 6 ];
+		for ( int i = 0; i < 6; ++i ) sumSquares[ i ] = this.sumSquares[ i ];
+
+		return EllipsoidsMLJ.computeMoments( sumSquares, getCenter(), numVoxels );
+	}
+
+	/**
+	 * @return principal axes, sorted from shortest to longest, and the center
+	 */
+	public EllipsoidVectors getEllipsoidVectors()
+	{
+		final double[] eigenvalues = new double[ 3 ];
+		final double[][] eigenvectors = new double[ 3 ][ 3 ];
+		SymmetricEigenSolver.solve3D( getCentralMoments(), eigenvalues, eigenvectors );
+
+		final EllipsoidVectors ellipsoidVectors = new EllipsoidVectors();
+		ellipsoidVectors.shortestAxis = asVector3D( eigenvectors[ 0 ] );
+		ellipsoidVectors.middleAxis = asVector3D( eigenvectors[ 1 ] );
+		ellipsoidVectors.longestAxis = asVector3D( eigenvectors[ 2 ] );
+		ellipsoidVectors.center = getCenter();
+
+		return ellipsoidVectors;
+	}
+
+	/**
+	 * @return radii of the ellipsoid with the same second moments, sorted from shortest to longest
+	 */
+	public double[] getRadii()
+	{
+		final double[] eigenvalues = new double[ 3 ];
+		SymmetricEigenSolver.solve3D( getCentralMoments(), eigenvalues, new double[ 3 ][ 3 ] );
+
+		final double[] radii = new double[ 3 ];
+
+		for ( int d : XYZ )
+		{
+			radii[ d ] = sqrt( 5 ) * sqrt( Math.max( 0, eigenvalues[ d ] ) );
+		}
+
+		return radii;
+	}
+
+	private static Vector3D asVector3D( double[] vector )
+	{
+		return new Vector3D( vector[ X ], vector[ Y ], vector[ Z ] );
+	}
+}
@@ -3,6 +3,7 @@ package de.embl.cba.morphometry.geometry.ellipsoids;
 import Jama.Matrix;
 import Jama.SingularValueDecomposition;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.logic.BitType;
@@ -21,11 +22,20 @@ public abstract class EllipsoidsMLJ
 
 
 	public static EllipsoidMLJ computeParametersFromBinaryImage( RandomAccessibleInterval< BitType > binaryImg )
+	{
+		return computeParametersFromBinaryImage( binaryImg, binaryImg );
+	}
+
+	/**
+	 * @param foregroundInterval interval that contains all foreground pixels, e.g. their bounding box;
+	 *                           only this interval of the binary image is scanned
+	 */
+	public static EllipsoidMLJ computeParametersFromBinaryImage( RandomAccessibleInterval< BitType > binaryImg, Interval foregroundInterval )
 	{
 		double[] sums = new double[ 3 ];
 		double[] sumSquares = new double[ 6 ];
 
-		final long numPixels = computeSumsAndSumSquares( binaryImg, sums, sumSquares );
+		final long numPixels = computeSumsAndSumSquares( Views.interval( binaryImg, foregroundInterval ), sums, sumSquares );
 
 		final double[] center = computeCenter( sums, numPixels );
 
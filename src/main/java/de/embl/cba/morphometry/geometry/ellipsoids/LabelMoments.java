@@ -0,0 +1,221 @@
+package de.embl.cba.morphometry.geometry.ellipsoids;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * First and second moments of the voxel positions of all labels of a 2D or 3D labeling,
+ * accumulated in one pass over the index image.
+ *
+ * All sums are held in primitive arrays, indexed by the labeling index.
+ * The second moments are ordered { xx, yy, xy } in 2D and { xx, yy, zz, xy, xz, yz } in 3D,
+ * as expected by the {@link SymmetricEigenSolver}.
+ */
+public class LabelMoments
+{
+	private final int numDimensions;
+	private final int numMoments;
+	private final int numIndices;
+
+	private final long[] counts;
+	private final long[] sums;
+	private final long[] sumSquares;
+
+	private LabelMoments( int numDimensions, int numIndices )
+	{
+		this.numDimensions = numDimensions;
+		this.numMoments = numDimensions * ( numDimensions + 1 ) / 2;
+		this.numIndices = numIndices;
+
+		counts = new long[ numIndices ];
+		sums = new long[ numIndices * numDimensions ];
+		sumSquares = new long[ numIndices * numMoments ];
+	}
+
+	public static < I extends IntegerType< I > > LabelMoments compute( ImgLabeling< Integer, I > imgLabeling )
+	{
+		return compute( imgLabeling.getIndexImg(), imgLabeling.getMapping().numSets() );
+	}
+
+	/**
+	 * The index image is split into chunks along its last dimension,
+	 * which are accumulated in parallel and then summed up.
+	 *
+	 * @param indexImg
+	 * @param numIndices larger than the largest index
+	 * @return moments; index 0 is accumulated as well and typically is the background
+	 */
+	public static < I extends IntegerType< I > > LabelMoments compute( RandomAccessibleInterval< I > indexImg, int numIndices )
+	{
+		final int n = indexImg.numDimensions();
+
+		if ( n != 2 && n != 3 )
+		{
+			throw new UnsupportedOperationException( "Only 2D and 3D labelings are supported." );
+		}
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		indexImg.min( min );
+		indexImg.max( max );
+
+		final int numChunks = ( int ) Math.min( indexImg.dimension( n - 1 ), Runtime.getRuntime().availableProcessors() );
+		final long chunkSize = ( indexImg.dimension( n - 1 ) + numChunks - 1 ) / numChunks;
+
+		final ArrayList< LabelMoments > chunkMoments = new ArrayList<>();
+		for ( int c = 0; c < numChunks; ++c ) chunkMoments.add( new LabelMoments( n, numIndices ) );
+
+		IntStream.range( 0, numChunks ).parallel().forEach( c ->
+		{
+			final long[] chunkMin = min.clone();
+			final long[] chunkMax = max.clone();
+			chunkMin[ n - 1 ] = min[ n - 1 ] + c * chunkSize;
+			chunkMax[ n - 1 ] = Math.min( max[ n - 1 ], chunkMin[ n - 1 ] + chunkSize - 1 );
+
+			if ( chunkMin[ n - 1 ] <= chunkMax[ n - 1 ] )
+			{
+				chunkMoments.get( c ).accumulate( Views.interval( indexImg, new FinalInterval( chunkMin, chunkMax ) ) );
+			}
+		} );
+
+		final LabelMoments moments = chunkMoments.get( 0 );
+		for ( int c = 1; c < numChunks; ++c ) moments.add( chunkMoments.get( c ) );
+
+		return moments;
+	}
+
+	private < I extends IntegerType< I > > void accumulate( RandomAccessibleInterval< I > indexImg )
+	{
+		final long[] min = new long[ numDimensions ];
+		final long[] max = new long[ numDimensions ];
+		indexImg.min( min );
+		indexImg.max( max );
+
+		final long[] position = min.clone();
+		final Cursor< I > cursor = Views.flatIterable( indexImg ).cursor();
+
+		while ( cursor.hasNext() )
+		{
+			final int index = cursor.next().getInteger();
+
+			counts[ index ]++;
+
+			final int sumsOffset = index * numDimensions;
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				sums[ sumsOffset + d ] += position[ d ];
+			}
+
+			final int momentsOffset = index * numMoments;
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				sumSquares[ momentsOffset + d ] += position[ d ] * position[ d ];
+			}
+
+			sumSquares[ momentsOffset + numDimensions ] += position[ 0 ] * position[ 1 ];
+
+			if ( numDimensions == 3 )
+			{
+				sumSquares[ momentsOffset + 4 ] += position[ 0 ] * position[ 2 ];
+				sumSquares[ momentsOffset + 5 ] += position[ 1 ] * position[ 2 ];
+			}
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] ) break;
+				position[ d ] = min[ d ];
+			}
+		}
+	}
+
+	private void add( LabelMoments other )
+	{
+		for ( int i = 0; i < counts.length; ++i ) counts[ i ] += other.counts[ i ];
+		for ( int i = 0; i < sums.length; ++i ) sums[ i ] += other.sums[ i ];
+		for ( int i = 0; i < sumSquares.length; ++i ) sumSquares[ i ] += other.sumSquares[ i ];
+	}
+
+	public int numDimensions()
+	{
+		return numDimensions;
+	}
+
+	public int getNumIndices()
+	{
+		return numIndices;
+	}
+
+	public long getCount( int index )
+	{
+		return counts[ index ];
+	}
+
+	public double[] getCenter( int index )
+	{
+		final double[] center = new double[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			center[ d ] = ( double ) sums[ index * numDimensions + d ] / counts[ index ];
+		}
+
+		return center;
+	}
+
+	public double[] getCentralMoments( int index )
+	{
+		final double[] center = getCenter( index );
+		final double[] moments = new double[ numMoments ];
+		final long count = counts[ index ];
+		final int offset = index * numMoments;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			moments[ d ] = ( double ) sumSquares[ offset + d ] / count - center[ d ] * center[ d ];
+		}
+
+		moments[ numDimensions ] = ( double ) sumSquares[ offset + numDimensions ] / count - center[ 0 ] * center[ 1 ];
+
+		if ( numDimensions == 3 )
+		{
+			moments[ 4 ] = ( double ) sumSquares[ offset + 4 ] / count - center[ 0 ] * center[ 2 ];
+			moments[ 5 ] = ( double ) sumSquares[ offset + 5 ] / count - center[ 1 ] * center[ 2 ];
+		}
+
+		return moments;
+	}
+
+	/**
+	 * @param index
+	 * @param radii output, sorted ascending; radii of the ellipse (ellipsoid) with the same second moments
+	 * @param axes output, axes[ i ] is the unit direction of radii[ i ]
+	 */
+	public void getEllipsoid( int index, double[] radii, double[][] axes )
+	{
+		SymmetricEigenSolver.solve( getCentralMoments( index ), radii, axes );
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			radii[ d ] = Math.sqrt( numDimensions + 2 ) * Math.sqrt( Math.max( 0, radii[ d ] ) );
+		}
+	}
+
+	/**
+	 * @return label of the index, or null if the index is not mapped to exactly one label
+	 */
+	public static Integer getLabel( LabelingMapping< Integer > mapping, int index )
+	{
+		final Set< Integer > labels = mapping.labelsAtIndex( index );
+		if ( labels.size() != 1 ) return null;
+		return labels.iterator().next();
+	}
+}
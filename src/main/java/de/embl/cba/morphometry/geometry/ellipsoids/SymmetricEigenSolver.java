@@ -0,0 +1,161 @@
+package de.embl.cba.morphometry.geometry.ellipsoids;
+
+/**
+ * Closed-form eigen decomposition of symmetric 2x2 and 3x3 matrices,
+ * e.g. second moment matrices, without allocating a matrix object per call.
+ *
+ * The matrix entries are given as { xx, yy, xy } and { xx, yy, zz, xy, xz, yz }, respectively.
+ * Eigenvalues are returned in ascending order, and eigenvectors[ i ] is the unit eigenvector of eigenvalues[ i ].
+ */
+public abstract class SymmetricEigenSolver
+{
+	private static final double EPSILON = 1.0E-12;
+
+	public static void solve( double[] matrix, double[] eigenvalues, double[][] eigenvectors )
+	{
+		if ( matrix.length == 3 ) solve2D( matrix, eigenvalues, eigenvectors );
+		else solve3D( matrix, eigenvalues, eigenvectors );
+	}
+
+	public static void solve2D( double[] matrix, double[] eigenvalues, double[][] eigenvectors )
+	{
+		final double xx = matrix[ 0 ], yy = matrix[ 1 ], xy = matrix[ 2 ];
+
+		final double mean = ( xx + yy ) / 2.0;
+		final double radius = Math.hypot( ( xx - yy ) / 2.0, xy );
+
+		eigenvalues[ 0 ] = mean - radius;
+		eigenvalues[ 1 ] = mean + radius;
+
+		final double angle = 0.5 * Math.atan2( 2.0 * xy, xx - yy );
+
+		eigenvectors[ 1 ][ 0 ] = Math.cos( angle );
+		eigenvectors[ 1 ][ 1 ] = Math.sin( angle );
+		eigenvectors[ 0 ][ 0 ] = - eigenvectors[ 1 ][ 1 ];
+		eigenvectors[ 0 ][ 1 ] = eigenvectors[ 1 ][ 0 ];
+	}
+
+	/**
+	 * Trigonometric solution of the characteristic polynomial (Smith, 1961);
+	 * the eigenvectors are cross products of the rows of ( A - lambda * I ).
+	 */
+	public static void solve3D( double[] matrix, double[] eigenvalues, double[][] eigenvectors )
+	{
+		final double xx = matrix[ 0 ], yy = matrix[ 1 ], zz = matrix[ 2 ];
+		final double xy = matrix[ 3 ], xz = matrix[ 4 ], yz = matrix[ 5 ];
+
+		final double offDiagonal = xy * xy + xz * xz + yz * yz;
+		final double q = ( xx + yy + zz ) / 3.0;
+		final double p = Math.sqrt( ( ( xx - q ) * ( xx - q ) + ( yy - q ) * ( yy - q ) + ( zz - q ) * ( zz - q ) + 2.0 * offDiagonal ) / 6.0 );
+
+		if ( p == 0 )
+		{
+			// multiple of the identity
+			for ( int i = 0; i < 3; ++i )
+			{
+				eigenvalues[ i ] = q;
+				for ( int d = 0; d < 3; ++d ) eigenvectors[ i ][ d ] = i == d ? 1 : 0;
+			}
+			return;
+		}
+
+		// B = ( A - q * I ) / p has eigenvalues 2 * cos( phi + k * 2 pi / 3 )
+		final double bxx = ( xx - q ) / p, byy = ( yy - q ) / p, bzz = ( zz - q ) / p;
+		final double bxy = xy / p, bxz = xz / p, byz = yz / p;
+
+		final double halfDeterminant = 0.5 * (
+				bxx * ( byy * bzz - byz * byz )
+				- bxy * ( bxy * bzz - byz * bxz )
+				+ bxz * ( bxy * byz - byy * bxz ) );
+
+		final double phi = Math.acos( Math.max( -1.0, Math.min( 1.0, halfDeterminant ) ) ) / 3.0;
+
+		final double largest = 2.0 * Math.cos( phi );
+		final double smallest = 2.0 * Math.cos( phi + 2.0 * Math.PI / 3.0 );
+		final double middle = - largest - smallest;
+
+		eigenvalues[ 0 ] = q + p * smallest;
+		eigenvalues[ 1 ] = q + p * middle;
+		eigenvalues[ 2 ] = q + p * largest;
+
+		final boolean isSmallestFound = eigenvector( bxx, byy, bzz, bxy, bxz, byz, smallest, eigenvectors[ 0 ] );
+		final boolean isLargestFound = eigenvector( bxx, byy, bzz, bxy, bxz, byz, largest, eigenvectors[ 2 ] );
+
+		// a degenerate eigenvalue has a plane of eigenvectors; any orthonormal basis of it will do
+		if ( ! isSmallestFound ) orthogonal( eigenvectors[ 2 ], eigenvectors[ 0 ] );
+		if ( ! isLargestFound ) orthogonal( eigenvectors[ 0 ], eigenvectors[ 2 ] );
+
+		cross( eigenvectors[ 2 ], eigenvectors[ 0 ], eigenvectors[ 1 ] );
+		normalize( eigenvectors[ 1 ] );
+	}
+
+	/**
+	 * @return false if the eigenvalue is degenerate, in which case the eigenvector is undefined
+	 */
+	private static boolean eigenvector(
+			double bxx, double byy, double bzz,
+			double bxy, double bxz, double byz,
+			double eigenvalue,
+			double[] eigenvector )
+	{
+		final double[] row0 = { bxx - eigenvalue, bxy, bxz };
+		final double[] row1 = { bxy, byy - eigenvalue, byz };
+		final double[] row2 = { bxz, byz, bzz - eigenvalue };
+
+		final double[] candidate = new double[ 3 ];
+		double maxNorm = 0;
+
+		final double[][][] pairs = { { row0, row1 }, { row0, row2 }, { row1, row2 } };
+		for ( double[][] pair : pairs )
+		{
+			cross( pair[ 0 ], pair[ 1 ], candidate );
+			final double norm = dot( candidate, candidate );
+			if ( norm > maxNorm )
+			{
+				maxNorm = norm;
+				System.arraycopy( candidate, 0, eigenvector, 0, 3 );
+			}
+		}
+
+		if ( maxNorm <= EPSILON ) return false;
+
+		normalize( eigenvector );
+		return true;
+	}
+
+	/**
+	 * Sets orthogonal to a unit vector that is orthogonal to the given unit vector.
+	 */
+	private static void orthogonal( double[] vector, double[] orthogonal )
+	{
+		// cross with the axis that is least aligned with the vector
+		final double[] axis = new double[ 3 ];
+		int minD = 0;
+		for ( int d = 1; d < 3; ++d )
+		{
+			if ( Math.abs( vector[ d ] ) < Math.abs( vector[ minD ] ) ) minD = d;
+		}
+		axis[ minD ] = 1;
+
+		cross( vector, axis, orthogonal );
+		normalize( orthogonal );
+	}
+
+	private static void cross( double[] a, double[] b, double[] result )
+	{
+		result[ 0 ] = a[ 1 ] * b[ 2 ] - a[ 2 ] * b[ 1 ];
+		result[ 1 ] = a[ 2 ] * b[ 0 ] - a[ 0 ] * b[ 2 ];
+		result[ 2 ] = a[ 0 ] * b[ 1 ] - a[ 1 ] * b[ 0 ];
+	}
+
+	private static double dot( double[] a, double[] b )
+	{
+		return a[ 0 ] * b[ 0 ] + a[ 1 ] * b[ 1 ] + a[ 2 ] * b[ 2 ];
+	}
+
+	private static void normalize( double[] vector )
+	{
+		final double norm = Math.sqrt( dot( vector, vector ) );
+		for ( int d = 0; d < 3; ++d ) vector[ d ] /= norm;
+	}
+}
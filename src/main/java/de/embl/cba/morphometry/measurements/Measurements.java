@@ -1,7 +1,9 @@
 package de.embl.cba.morphometry.measurements;
 
+import de.embl.cba.morphometry.StageProfiler;
 import de.embl.cba.morphometry.Utils;
-import de.embl.cba.morphometry.regions.Regions;
+import de.embl.cba.morphometry.geometry.ellipsoids.LabelMoments;
+import de.embl.cba.morphometry.regions.RegionRaster;
 import de.embl.cba.morphometry.skeleton.SkeletonAnalyzer;
 import net.imagej.ops.OpService;
 import net.imagej.table.DefaultGenericTable;
@@ -48,6 +50,12 @@ public class Measurements
 	public static final String SKELETON_LENGTH = "SkeletonLength";
 	public static final String SKELETON_NUMBER_OF_BRANCHPOINTS = "SkeletonNumBranchPoints";
 
+	public static final String ELLIPSOID_RADIUS = "EllipsoidRadius";
+	public static final String ELLIPSOID_ELONGATION = "EllipsoidElongation";
+	public static final String ELLIPSOID_ORIENTATION_XY = "EllipsoidOrientationXY";
+	public static final String ELLIPSOID_INCLINATION = "EllipsoidInclination";
+	public static final String DEGREE_UNITS = "Degrees";
+
 	public static final String SEP = "_";
 	public static final String FRAME_UNITS = "Frames";
 	public static final String TIME = "Time";
@@ -73,6 +81,8 @@ public class Measurements
 
 	public static void measurePositions( HashMap< Integer, Map< String, Object > > objectMeasurements, ImgLabeling<Integer, IntType> imgLabeling, double[] calibration )
 	{
+		StageProfiler.start( "Positions" );
+
 		String[] XYZ = new String[]{"X","Y","Z"};
 
 		String unit = "";
@@ -97,29 +107,100 @@ public class Measurements
 				addMeasurement( objectMeasurements, label, COORDINATE + SEP + XYZ[ d ] + SEP + unit, position[ d ] );
 			}
 		}
+
+		StageProfiler.stop( "Positions" );
 	}
 
 	public static void measureVolumes( HashMap<Integer, Map<String, Object>> objectMeasurements,
 									   ImgLabeling<Integer, IntType> imgLabeling )
 	{
+		StageProfiler.start( "Volumes" );
+
 		final LabelRegions< Integer > labelRegions = new LabelRegions<>( imgLabeling );
 		for ( LabelRegion labelRegion : labelRegions )
 		{
 			final int label = ( int ) ( labelRegion.getLabel() );
 			addMeasurement( objectMeasurements, label, getVolumeName( labelRegion.numDimensions() ) + SEP + PIXEL_UNITS, labelRegion.size() );
 		}
+
+		StageProfiler.stop( "Volumes" );
+	}
+
+	/**
+	 * Radii, elongation and orientation of the ellipse (2D) or ellipsoid (3D) with the
+	 * same second moments as each object, computed for all labels in one pass.
+	 *
+	 * The orientation is the angle of the longest axis to the x-axis within the xy-plane;
+	 * in 3D the inclination is the angle of the longest axis to the xy-plane.
+	 *
+	 * Objects that are only one pixel thick (or a single pixel) have a shortest radius of zero;
+	 * their elongation is written as NaN, such that the tables keep one column per measurement for all objects.
+	 */
+	public static void measureEllipsoids( HashMap<Integer, Map<String, Object>> objectMeasurements,
+										  ImgLabeling<Integer, IntType> imgLabeling )
+	{
+		StageProfiler.start( "Ellipsoids" );
+
+		final String[] axisNames = imgLabeling.numDimensions() == 2
+				? new String[]{ "Minor", "Major" }
+				: new String[]{ "Minor", "Middle", "Major" };
+
+		final LabelMoments labelMoments = LabelMoments.compute( imgLabeling );
+		final int n = labelMoments.numDimensions();
+
+		final double[] radii = new double[ n ];
+		final double[][] axes = new double[ n ][ n ];
+
+		for ( int index = 0; index < labelMoments.getNumIndices(); ++index )
+		{
+			if ( labelMoments.getCount( index ) == 0 ) continue;
+
+			final Integer label = LabelMoments.getLabel( imgLabeling.getMapping(), index );
+			if ( label == null ) continue;
+
+			labelMoments.getEllipsoid( index, radii, axes );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				addMeasurement( objectMeasurements, label, ELLIPSOID_RADIUS + axisNames[ d ] + SEP + PIXEL_UNITS, radii[ d ] );
+			}
+
+			final double elongation = radii[ 0 ] > 0 ? radii[ n - 1 ] / radii[ 0 ] : Double.NaN;
+			addMeasurement( objectMeasurements, label, ELLIPSOID_ELONGATION, elongation );
+
+			final double[] longestAxis = axes[ n - 1 ];
+
+			// axes are undirected, thus the orientation is folded into [-90, 90]
+			double orientation = Math.toDegrees( Math.atan2( longestAxis[ 1 ], longestAxis[ 0 ] ) );
+			if ( orientation > 90 ) orientation -= 180;
+			if ( orientation < -90 ) orientation += 180;
+
+			addMeasurement( objectMeasurements, label, ELLIPSOID_ORIENTATION_XY + SEP + DEGREE_UNITS, orientation );
+
+			if ( n == 3 )
+			{
+				final double inclination = Math.toDegrees( Math.asin( Math.abs( longestAxis[ 2 ] ) ) );
+				addMeasurement( objectMeasurements, label, ELLIPSOID_INCLINATION + SEP + DEGREE_UNITS, inclination );
+			}
+		}
+
+		StageProfiler.stop( "Ellipsoids" );
 	}
 
 	public static void measureSurface( HashMap<Integer, Map<String, Object>> objectMeasurements,
 									   ImgLabeling<Integer, IntType> imgLabeling,
 									   OpService opService )
 	{
+		StageProfiler.start( "Surfaces" );
+
 		final LabelRegions< Integer > labelRegions = new LabelRegions<>( imgLabeling );
-		for ( LabelRegion labelRegion : labelRegions )
+		final RegionRaster raster = new RegionRaster( imgLabeling );
+
+		for ( LabelRegion< Integer > labelRegion : labelRegions )
 		{
-			final int label = ( int ) ( labelRegion.getLabel() );
+			final int label = labelRegion.getLabel();
 
-			final RandomAccessibleInterval< BitType > mask = Regions.labelRegionAsMask( labelRegion );
+			final RandomAccessibleInterval< BitType > mask = raster.asMask( labelRegion );
 
 			// See: https://forum.image.sc/t/measure-surface-perimeter-in-imglib2/21213
 
@@ -128,6 +209,8 @@ public class Measurements
 
 			addMeasurement( objectMeasurements, label, getSurfaceName( labelRegion.numDimensions() ) + SEP + PIXEL_UNITS, boundarySize );
 		}
+
+		StageProfiler.stop( "Surfaces" );
 	}
 
 
@@ -136,11 +219,14 @@ public class Measurements
 										 RandomAccessibleInterval< BitType > skeleton,
 										 OpService opService )
 	{
+		StageProfiler.start( "Skeletons" );
+
 		final LabelRegions< Integer > labelRegions = new LabelRegions<>( imgLabeling );
+		final RegionRaster raster = new RegionRaster( imgLabeling );
 
-		for ( LabelRegion labelRegion : labelRegions )
+		for ( LabelRegion< Integer > labelRegion : labelRegions )
 		{
-			final RandomAccessibleInterval< BitType > regionSkeleton = Regions.getMaskedAndCropped( skeleton, labelRegion );
+			final RandomAccessibleInterval< BitType > regionSkeleton = raster.asMaskedAndCropped( skeleton, labelRegion );
 
 			final SkeletonAnalyzer skeletonAnalyzer = new SkeletonAnalyzer( regionSkeleton, opService );
 
@@ -148,7 +234,7 @@ public class Measurements
 
 			if ( label == 5 )
 			{
-				ImageJFunctions.show( regionSkeleton, "skel" );
+				ImageJFunctions.show( Utils.copyAsArrayImg( regionSkeleton ), "skel" );
 				ImageJFunctions.show( skeletonAnalyzer.getBranchpoints(), "branch" );
 			}
 
@@ -163,6 +249,8 @@ public class Measurements
 					skeletonAnalyzer.getNumBranchPoints() );
 
 		}
+
+		StageProfiler.stop( "Skeletons" );
 	}
 
 
@@ -182,6 +270,8 @@ public class Measurements
 								RandomAccessibleInterval< T > image,
 								String channel )
 	{
+		StageProfiler.start( "Sum intensities" );
+
 		final RandomAccess< T > imageRandomAccess = image.randomAccess();
 
 		final LabelRegions< Integer > labelRegions = new LabelRegions<>( imgLabeling );
@@ -191,6 +281,8 @@ public class Measurements
 			long sum = measureSumIntensity( imageRandomAccess, labelRegion );
 			addMeasurement( objectMeasurements, (int) labelRegion.getLabel(), SUM_INTENSITY + SEP + channel, sum );
 		}
+
+		StageProfiler.stop( "Sum intensities" );
 	}
 
 	private static < T extends RealType< T > & NativeType< T > >
@@ -1,6 +1,7 @@
 package de.embl.cba.morphometry.microglia;
 
 import de.embl.cba.morphometry.ImageIO;
+import de.embl.cba.morphometry.StageProfiler;
 import de.embl.cba.morphometry.Utils;
 import de.embl.cba.morphometry.measurements.Measurements;
 import de.embl.cba.morphometry.skeleton.SkeletonCreator;
@@ -75,24 +76,53 @@ public class MicrogliaMorphometryCommand<T extends RealType<T> & NativeType< T >
 		processFile( inputImageFile );
 	}
 
+	/**
+	 * The profile of the processing stages is saved next to the input file.
+	 */
 	private void processFile( File file )
+	{
+		StageProfiler.begin( file.getName() );
+
+		final ArrayList< String > measurements;
+
+		try
+		{
+			measurements = measureFile( file );
+		}
+		finally
+		{
+			StageProfiler.end().saveReport( file.getAbsolutePath() );
+		}
+
+		showResults( file, measurements );
+	}
+
+	private ArrayList< String > measureFile( File file )
 	{
 		// TODO: refactor out of command into separate class
+		StageProfiler.start( "Reading" );
 		final RandomAccessibleInterval inputImage = openInputImage( file );
+		StageProfiler.stop( "Reading" );
 
 		labelMaps = Views.dropSingletonDimensions( Views.hyperSlice( inputImage, Constants.CHANNEL, settings.labelMapChannelIndex ) );
 
+		StageProfiler.start( "Skeletonization" );
 		createSkeletons( );
+		StageProfiler.stop( "Skeletonization" );
 
 		initObjectMeasurements( );
 
+		StageProfiler.start( "Measurements" );
 		performMeasurements( );
+		StageProfiler.stop( "Measurements" );
 
+		StageProfiler.start( "Saving" );
 		final ArrayList< String > measurements = Measurements.asTableRows( measurementsTimepointList );
 
 		Measurements.saveMeasurements( outputTableFile, measurements );
+		StageProfiler.stop( "Saving" );
 
-		showResults( file, measurements );
+		return measurements;
 	}
 
 	private void showResults( File file, ArrayList< String > measurements )
@@ -151,6 +181,11 @@ public class MicrogliaMorphometryCommand<T extends RealType<T> & NativeType< T >
 					imgLabeling,
 					opService );
 
+			// Ellipse fits: radii, elongation, orientation
+			Measurements.measureEllipsoids(
+					measurements,
+					imgLabeling );
+
 			// TODO: move to skeletonAnalyzer?
 			Measurements.measureSkeletons(
 					measurements,
@@ -1,7 +1,9 @@
 package de.embl.cba.morphometry.microglia;
 
-import de.embl.cba.morphometry.Algorithms;
+import de.embl.cba.morphometry.BioFormatsPlaneSource;
+import de.embl.cba.morphometry.ChunkedImageWriter;
 import de.embl.cba.morphometry.ImageIO;
+import de.embl.cba.morphometry.StageProfiler;
 import de.embl.cba.morphometry.Utils;
 import de.embl.cba.morphometry.segmentation.SimpleSegmenter;
 import de.embl.cba.morphometry.splitting.TrackingSplitter;
@@ -11,7 +13,6 @@ import ij.ImagePlus;
 import net.imagej.DatasetService;
 import net.imagej.ops.OpService;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.scijava.app.StatusService;
@@ -53,6 +54,7 @@ public class MicrogliaTrackingCommand<T extends RealType<T> & NativeType< T > >
 
 	public static final String PROCESS_DIRECTORY = "Process all files in directory";
 	public static final String PROCESS_CURRENT_IMAGE = "Current image";
+	public static final int[] MOVIE_BLOCK_SIZE = { 256, 256, 1 };
 
 	@Parameter( choices = { PROCESS_DIRECTORY }) // , PROCESS_CURRENT_IMAGE
 	public String inputModality = PROCESS_DIRECTORY;
@@ -75,6 +77,14 @@ public class MicrogliaTrackingCommand<T extends RealType<T> & NativeType< T > >
 	@Parameter
 	public boolean showIntermediateResults = settings.showIntermediateResults;
 
+	@Parameter( choices = {
+			MicrogliaTrackingSettings.TRACKING_OUTPUT_NONE,
+			MicrogliaTrackingSettings.TRACKING_OUTPUT_BDV_N5 })
+	public String trackingOutputFormat = settings.trackingOutputFormat;
+
+	@Parameter( style = "directory", required = false )
+	public File outputDirectory;
+
 
 	public void run()
 	{
@@ -106,29 +116,65 @@ public class MicrogliaTrackingCommand<T extends RealType<T> & NativeType< T > >
 		}
 	}
 
+	/**
+	 * The profile of the processing stages is saved next to the input file.
+	 */
 	private void processFile( File file )
 	{
-		ImagePlus imagePlus = ImageIO.openWithBioFormats( file.getAbsolutePath() );
+		StageProfiler.begin( file.getName() );
 
-		if ( imagePlus == null )
+		try
+		{
+			trackFile( file );
+		}
+		finally
+		{
+			StageProfiler.end().saveReport( file.getAbsolutePath() );
+		}
+	}
+
+	private void trackFile( File file )
+	{
+		StageProfiler.start( "Reading" );
+		final BioFormatsPlaneSource< T > input = ImageIO.openCachedWithBioFormats( file.getAbsolutePath() );
+		StageProfiler.stop( "Reading" );
+
+		if ( input == null )
 		{
 			Utils.error( "Could not open image: " + file );
+			return;
 		}
 
-		configureSettings( imagePlus );
+		final ArrayList< RandomAccessibleInterval< T > > intensities;
 
-		ArrayList< RandomAccessibleInterval< T > > intensities = createMaximumProjection( imagePlus );
+		try
+		{
+			configureSettings( input.getCalibration(), input.getBitDepth(), input.getNFrames() );
 
-		imagePlus = null; System.gc();
+			StageProfiler.start( "Reading and maximum projection" );
+			intensities = createMaximumProjection( input );
+			StageProfiler.stop( "Reading and maximum projection" );
+		}
+		finally
+		{
+			input.close();
+		}
 
+		StageProfiler.start( "Segmentation" );
 		ArrayList< RandomAccessibleInterval< T > > masks = createBinaryMasks( intensities );
+		StageProfiler.stop( "Segmentation" );
 
 		masks = splitTouchingObjects( intensities, masks );
 
+		StageProfiler.start( "Tracking" );
 		final ArrayList< RandomAccessibleInterval< T > > labelings = createTrackingBasedLabels( masks );
+		StageProfiler.stop( "Tracking" );
 
+		StageProfiler.start( "Output" );
+		if ( settings.trackingOutputFormat.equals( MicrogliaTrackingSettings.TRACKING_OUTPUT_BDV_N5 ) )
+			saveOutput( intensities, labelings, file );
 		createOutput( intensities, labelings );
-
+		StageProfiler.stop( "Output" );
 	}
 
 	private ArrayList< RandomAccessibleInterval< T > > createTrackingBasedLabels( ArrayList< RandomAccessibleInterval< T > > masks )
@@ -160,18 +206,39 @@ public class MicrogliaTrackingCommand<T extends RealType<T> & NativeType< T > >
 	}
 
 
-	private ArrayList< RandomAccessibleInterval< T > > createMaximumProjection( ImagePlus imagePlus )
+	/**
+	 * Only the planes of the microglia channel within the requested time range are read from the file.
+	 */
+	private ArrayList< RandomAccessibleInterval< T > > createMaximumProjection( BioFormatsPlaneSource< T > input )
 	{
 		ArrayList< RandomAccessibleInterval< T > > intensities =
-				Algorithms.createMaximumIntensityProjectionsAssumingImagePlusDimensionOrder(
-						( RandomAccessibleInterval ) ImageJFunctions.wrapReal( imagePlus ),
-						microgliaChannelIndexOneBased - 1,
-						settings.tMin, settings.tMax );
+				input.createMaximumProjections(
+						( int ) ( microgliaChannelIndexOneBased - 1 ),
+						( int ) settings.tMin, ( int ) settings.tMax );
 
 
 		return intensities;
 	}
 
+	/**
+	 * Saves the intensities and the labels as two channels of a BigDataViewer N5 movie, in the output directory.
+	 */
+	private void saveOutput( ArrayList< RandomAccessibleInterval< T > > intensities, ArrayList< RandomAccessibleInterval< T > > labelings, File file )
+	{
+		if ( settings.outputDirectory == null )
+		{
+			Utils.error( "Please specify an output directory for saving the tracking of " + file.getName() );
+			return;
+		}
+
+		final ArrayList< ArrayList< RandomAccessibleInterval< T > > > channels = new ArrayList<>();
+		channels.add( intensities );
+		channels.add( labelings );
+
+		new ChunkedImageWriter( MOVIE_BLOCK_SIZE, Runtime.getRuntime().availableProcessors() )
+				.save( channels, settings.inputCalibration, "micrometer", settings.outputDirectory + File.separator + file.getName() + "-tracking.xml" );
+	}
+
 	private void createOutput( ArrayList< RandomAccessibleInterval< T > > intensities, ArrayList< RandomAccessibleInterval< T > > labelings )
 	{
 		ImagePlus labelImagePlus = Utils.createIJ1Movie( labelings, SIMPLE_SEGMENTATION_TRACKING_SPLITTING_SIMPLE_TRACKING );
@@ -193,17 +260,18 @@ public class MicrogliaTrackingCommand<T extends RealType<T> & NativeType< T > >
 	}
 
 
-	public void configureSettings( ImagePlus imagePlus )
+	public void configureSettings( double[] calibration, int bitDepth, long numFrames )
 	{
-		settings.inputCalibration = Utils.get2dCalibration( imagePlus ) ;
+		settings.inputCalibration = new double[]{ calibration[ 0 ], calibration[ 1 ] };
 		settings.workingVoxelSize = settings.inputCalibration[ 0 ];
-		settings.maxPossibleValueInDataSet = Math.pow( 2, imagePlus.getBitDepth() ) - 1.0;
+		settings.maxPossibleValueInDataSet = Math.pow( 2, bitDepth ) - 1.0;
 		settings.maxShortAxisDist = 6;
 		settings.thresholdInUnitsOfBackgroundPeakHalfWidth = 5.0;
 		settings.watershedSeedsLocalMaximaDistanceThreshold = Double.MAX_VALUE;
 		settings.watershedSeedsGlobalDistanceThreshold = 2.5;
 		settings.interestPointsRadius = 0.5;
-		settings.outputDirectory = null; //new File( path ).getParentFile();
+		settings.outputDirectory = outputDirectory;
+		settings.trackingOutputFormat = trackingOutputFormat;
 		settings.inputDataSetName = "test";
 		settings.returnEarly = true;
 		settings.skeletonMaxLength = 600 * settings.workingVoxelSize;
@@ -215,7 +283,7 @@ public class MicrogliaTrackingCommand<T extends RealType<T> & NativeType< T > >
 		settings.opService = opService;
 		settings.microgliaChannelIndexOneBased = microgliaChannelIndexOneBased;
 		settings.tMin = tMin - 1;
-		tMax = Math.min( tMax, imagePlus.getNFrames() );
+		tMax = Math.min( tMax, numFrames );
 		settings.tMax = tMax - 1;
 	}
 
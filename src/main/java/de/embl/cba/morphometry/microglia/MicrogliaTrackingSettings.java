@@ -11,6 +11,8 @@ public class MicrogliaTrackingSettings<T extends RealType<T> & NativeType< T > >
 {
 	public static final String MANUAL_THRESHOLD = "Manual threshold";
 	public static final String HUANG_AUTO_THRESHOLD = "Huang auto threshold";
+	public static final String TRACKING_OUTPUT_NONE = "None (only show)";
+	public static final String TRACKING_OUTPUT_BDV_N5 = "BigDataViewer N5 (chunked, compressed)";
 
 	// all spatial values are in micrometer
 	// morphometry length: 420
@@ -38,6 +40,7 @@ public class MicrogliaTrackingSettings<T extends RealType<T> & NativeType< T > >
 	public double maxShortAxisDist;
 	public double interestPointsRadius;
 	public File outputDirectory;
+	public String trackingOutputFormat = TRACKING_OUTPUT_NONE;
 	public String inputDataSetName;
 	public boolean returnEarly;
 	public double minimalObjectSize;
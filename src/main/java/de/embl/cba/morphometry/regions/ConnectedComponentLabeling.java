@@ -0,0 +1,599 @@
+package de.embl.cba.morphometry.regions;
+
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Block-parallel union-find connected component labeling.
+ *
+ * The image is split into slabs along its last dimension. Each slab is
+ * raster scanned concurrently, using the flat pixel index as provisional label,
+ * such that the root of each component is its first pixel in flat order.
+ * The slab boundaries are merged afterwards and a final pass assigns
+ * consecutive labels (1...n, in order of first occurrence), while measuring
+ * the size and bounding box of every label.
+ *
+ * Non-zero pixels are foreground.
+ * ConnectedComponents.StructuringElement.FOUR_CONNECTED yields 4 (2D) or 6 (3D) connectivity,
+ * ConnectedComponents.StructuringElement.EIGHT_CONNECTED yields 8 (2D) or 26 (3D) connectivity.
+ */
+public class ConnectedComponentLabeling< T extends RealType< T > & NativeType< T > >
+{
+	public static final long MINIMAL_NUM_PIXELS_PER_BLOCK = 256 * 256;
+
+	final RandomAccessibleInterval< T > rai;
+	final ConnectedComponents.StructuringElement structuringElement;
+
+	private int numDimensions;
+	private int[] dimensions;
+	private int[] strides;
+	private int planeSize;
+
+	private int[][] neighborOffsets;
+	private int[] neighborFlatOffsets;
+
+	private int numBlocks;
+	private int[] blockFirstPlanes;
+
+	/**
+	 * During union-find, foreground pixels hold -( parent + 1 ) and background pixels hold 0.
+	 * After relabeling, foreground pixels hold their ( positive ) label.
+	 */
+	private int[] labels;
+
+	private int numLabels;
+	private long[] sizes;
+	private long[] mins;
+	private long[] maxs;
+
+	private ImgLabeling< Integer, IntType > imgLabeling;
+
+	public ConnectedComponentLabeling( RandomAccessibleInterval< T > rai,
+									   ConnectedComponents.StructuringElement structuringElement )
+	{
+		this.rai = rai;
+		this.structuringElement = structuringElement;
+	}
+
+	public void run()
+	{
+		unionFind();
+
+		relabel();
+
+		imgLabeling = createImgLabeling();
+	}
+
+	/**
+	 * Counts the connected components, without creating the label image
+	 * and without measuring the components.
+	 *
+	 * @return number of connected components
+	 */
+	public int count()
+	{
+		unionFind();
+
+		numLabels = IntStream.range( 0, numBlocks ).parallel().map( this::countRoots ).sum();
+
+		labels = null;
+
+		return numLabels;
+	}
+
+	private void unionFind()
+	{
+		configureDimensions();
+
+		configureNeighborOffsets();
+
+		configureBlocks();
+
+		IntStream.range( 0, numBlocks ).parallel().forEach( this::scanBlock );
+
+		for ( int block = 1; block < numBlocks; ++block )
+		{
+			mergeBlockBoundary( block );
+		}
+	}
+
+	public ImgLabeling< Integer, IntType > getImgLabeling()
+	{
+		return imgLabeling;
+	}
+
+	public int getNumLabels()
+	{
+		return numLabels;
+	}
+
+	public long getSize( int label )
+	{
+		return sizes[ label ];
+	}
+
+	public long[] getSizes()
+	{
+		return sizes;
+	}
+
+	/**
+	 * @param label
+	 * @return bounding box of the label, in the coordinate system of the input image
+	 */
+	public FinalInterval getBoundingBox( int label )
+	{
+		final long[] min = new long[ numDimensions ];
+		final long[] max = new long[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			min[ d ] = mins[ label * numDimensions + d ] + rai.min( d );
+			max[ d ] = maxs[ label * numDimensions + d ] + rai.min( d );
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	private void configureDimensions()
+	{
+		final long numPixels = Intervals.numElements( rai );
+
+		if ( numPixels > Integer.MAX_VALUE )
+		{
+			throw new UnsupportedOperationException( "Image too large for connected component labeling: " + numPixels + " pixels." );
+		}
+
+		numDimensions = rai.numDimensions();
+		dimensions = new int[ numDimensions ];
+		strides = new int[ numDimensions ];
+
+		int stride = 1;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			dimensions[ d ] = ( int ) rai.dimension( d );
+			strides[ d ] = stride;
+			stride *= dimensions[ d ];
+		}
+
+		planeSize = strides[ numDimensions - 1 ];
+		labels = new int[ ( int ) numPixels ];
+	}
+
+	/**
+	 * Only neighbors that precede a pixel in flat iteration order are needed during the raster scan.
+	 * These are the offsets whose highest non-zero component is -1.
+	 */
+	private void configureNeighborOffsets()
+	{
+		final ArrayList< int[] > offsets = new ArrayList<>();
+
+		if ( structuringElement == ConnectedComponents.StructuringElement.FOUR_CONNECTED )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final int[] offset = new int[ numDimensions ];
+				offset[ d ] = -1;
+				offsets.add( offset );
+			}
+		}
+		else
+		{
+			final int numCombinations = ( int ) Math.pow( 3, numDimensions );
+
+			for ( int combination = 0; combination < numCombinations; ++combination )
+			{
+				final int[] offset = new int[ numDimensions ];
+
+				int remainder = combination;
+				for ( int d = 0; d < numDimensions; ++d )
+				{
+					offset[ d ] = remainder % 3 - 1;
+					remainder /= 3;
+				}
+
+				if ( isPrecedingOffset( offset ) ) offsets.add( offset );
+			}
+		}
+
+		neighborOffsets = offsets.toArray( new int[ 0 ][] );
+		neighborFlatOffsets = new int[ neighborOffsets.length ];
+
+		for ( int k = 0; k < neighborOffsets.length; ++k )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				neighborFlatOffsets[ k ] += neighborOffsets[ k ][ d ] * strides[ d ];
+			}
+		}
+	}
+
+	private static boolean isPrecedingOffset( int[] offset )
+	{
+		for ( int d = offset.length - 1; d >= 0; --d )
+		{
+			if ( offset[ d ] != 0 ) return offset[ d ] < 0;
+		}
+
+		return false;
+	}
+
+	private void configureBlocks()
+	{
+		final int numPlanes = dimensions[ numDimensions - 1 ];
+		final long numPixels = labels.length;
+
+		numBlocks = ( int ) Math.min(
+				Runtime.getRuntime().availableProcessors(),
+				numPixels / MINIMAL_NUM_PIXELS_PER_BLOCK );
+		numBlocks = Math.max( 1, Math.min( numBlocks, numPlanes ) );
+
+		blockFirstPlanes = new int[ numBlocks + 1 ];
+
+		for ( int block = 0; block <= numBlocks; ++block )
+		{
+			blockFirstPlanes[ block ] = ( int ) ( ( long ) block * numPlanes / numBlocks );
+		}
+	}
+
+	private RandomAccessibleInterval< T > getBlock( int block )
+	{
+		final long[] min = Intervals.minAsLongArray( rai );
+		final long[] max = Intervals.maxAsLongArray( rai );
+
+		final int lastDimension = numDimensions - 1;
+		min[ lastDimension ] = rai.min( lastDimension ) + blockFirstPlanes[ block ];
+		max[ lastDimension ] = rai.min( lastDimension ) + blockFirstPlanes[ block + 1 ] - 1;
+
+		return Views.interval( rai, min, max );
+	}
+
+	private void scanBlock( int block )
+	{
+		final int start = blockFirstPlanes[ block ] * planeSize;
+		final int end = blockFirstPlanes[ block + 1 ] * planeSize;
+
+		final int[] position = new int[ numDimensions ];
+		position[ numDimensions - 1 ] = blockFirstPlanes[ block ];
+
+		final Cursor< T > cursor = Views.flatIterable( getBlock( block ) ).cursor();
+
+		for ( int i = start; i < end; ++i )
+		{
+			if ( cursor.next().getRealDouble() != 0 )
+			{
+				setParent( i, i );
+
+				for ( int k = 0; k < neighborOffsets.length; ++k )
+				{
+					if ( isInside( position, neighborOffsets[ k ], blockFirstPlanes[ block ] ) )
+					{
+						final int j = i + neighborFlatOffsets[ k ];
+						if ( labels[ j ] != 0 ) union( i, j );
+					}
+				}
+			}
+
+			advance( position );
+		}
+	}
+
+	private void mergeBlockBoundary( int block )
+	{
+		final int plane = blockFirstPlanes[ block ];
+		final int start = plane * planeSize;
+		final int end = start + planeSize;
+
+		final int[] position = new int[ numDimensions ];
+		position[ numDimensions - 1 ] = plane;
+
+		for ( int i = start; i < end; ++i )
+		{
+			if ( labels[ i ] != 0 )
+			{
+				for ( int k = 0; k < neighborOffsets.length; ++k )
+				{
+					if ( neighborOffsets[ k ][ numDimensions - 1 ] == 0 ) continue; // already done within block
+
+					if ( isInside( position, neighborOffsets[ k ], 0 ) )
+					{
+						final int j = i + neighborFlatOffsets[ k ];
+						if ( labels[ j ] != 0 ) union( i, j );
+					}
+				}
+			}
+
+			advance( position );
+		}
+	}
+
+	private boolean isInside( int[] position, int[] offset, int firstPlane )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int coordinate = position[ d ] + offset[ d ];
+			if ( coordinate < 0 || coordinate >= dimensions[ d ] ) return false;
+		}
+
+		return position[ numDimensions - 1 ] + offset[ numDimensions - 1 ] >= firstPlane;
+	}
+
+	private void advance( int[] position )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			if ( ++position[ d ] < dimensions[ d ] || d == numDimensions - 1 ) return;
+			position[ d ] = 0;
+		}
+	}
+
+	private int getParent( int i )
+	{
+		return - labels[ i ] - 1;
+	}
+
+	private void setParent( int i, int parent )
+	{
+		labels[ i ] = - parent - 1;
+	}
+
+	/**
+	 * Parents always have a smaller flat index than their children,
+	 * thus the root is the first pixel of the component in flat order.
+	 */
+	private int find( int i )
+	{
+		while ( getParent( i ) != i )
+		{
+			final int grandParent = getParent( getParent( i ) );
+			setParent( i, grandParent );
+			i = grandParent;
+		}
+
+		return i;
+	}
+
+	private void union( int i, int j )
+	{
+		final int rootI = find( i );
+		final int rootJ = find( j );
+
+		if ( rootI < rootJ ) setParent( rootJ, rootI );
+		else if ( rootJ < rootI ) setParent( rootI, rootJ );
+	}
+
+	private void relabel()
+	{
+		final int[] numRootsPerBlock = new int[ numBlocks ];
+
+		IntStream.range( 0, numBlocks ).parallel().forEach( block -> numRootsPerBlock[ block ] = countRoots( block ) );
+
+		final int[] firstLabelPerBlock = new int[ numBlocks + 1 ];
+		firstLabelPerBlock[ 0 ] = 1;
+		for ( int block = 0; block < numBlocks; ++block )
+		{
+			firstLabelPerBlock[ block + 1 ] = firstLabelPerBlock[ block ] + numRootsPerBlock[ block ];
+		}
+
+		numLabels = firstLabelPerBlock[ numBlocks ] - 1;
+
+		IntStream.range( 0, numBlocks ).parallel().forEach( block -> labelRoots( block, firstLabelPerBlock[ block ] ) );
+
+		final BlockStatistics[] statistics = new BlockStatistics[ numBlocks ];
+
+		IntStream.range( 0, numBlocks ).parallel().forEach( block ->
+				statistics[ block ] = resolveLabels( block, firstLabelPerBlock[ block ], firstLabelPerBlock[ block + 1 ] ) );
+
+		mergeStatistics( statistics );
+	}
+
+	private int countRoots( int block )
+	{
+		final int start = blockFirstPlanes[ block ] * planeSize;
+		final int end = blockFirstPlanes[ block + 1 ] * planeSize;
+
+		int numRoots = 0;
+
+		for ( int i = start; i < end; ++i )
+		{
+			if ( labels[ i ] != 0 && getParent( i ) == i ) numRoots++;
+		}
+
+		return numRoots;
+	}
+
+	private void labelRoots( int block, int firstLabel )
+	{
+		final int start = blockFirstPlanes[ block ] * planeSize;
+		final int end = blockFirstPlanes[ block + 1 ] * planeSize;
+
+		int label = firstLabel;
+
+		for ( int i = start; i < end; ++i )
+		{
+			if ( labels[ i ] != 0 && getParent( i ) == i ) labels[ i ] = label++;
+		}
+	}
+
+	/**
+	 * Replaces the parent pointers by the labels of the roots.
+	 * Chains may pass through other blocks, whose entries can concurrently change
+	 * from parent pointer to label; both lead to the same root label.
+	 */
+	private BlockStatistics resolveLabels( int block, int firstLabel, int endLabel )
+	{
+		final int start = blockFirstPlanes[ block ] * planeSize;
+		final int end = blockFirstPlanes[ block + 1 ] * planeSize;
+
+		final BlockStatistics statistics = new BlockStatistics( firstLabel, endLabel, numDimensions );
+
+		final int[] position = new int[ numDimensions ];
+		position[ numDimensions - 1 ] = blockFirstPlanes[ block ];
+
+		for ( int i = start; i < end; ++i )
+		{
+			int label = labels[ i ];
+
+			if ( label != 0 )
+			{
+				while ( label < 0 )
+				{
+					label = labels[ - label - 1 ];
+				}
+
+				labels[ i ] = label;
+
+				statistics.add( label, position );
+			}
+
+			advance( position );
+		}
+
+		return statistics;
+	}
+
+	private void mergeStatistics( BlockStatistics[] statistics )
+	{
+		sizes = new long[ numLabels + 1 ];
+		mins = new long[ ( numLabels + 1 ) * numDimensions ];
+		maxs = new long[ ( numLabels + 1 ) * numDimensions ];
+
+		Arrays.fill( mins, Long.MAX_VALUE );
+		Arrays.fill( maxs, Long.MIN_VALUE );
+
+		for ( BlockStatistics blockStatistics : statistics )
+		{
+			for ( int label = blockStatistics.firstLabel; label < blockStatistics.endLabel; ++label )
+			{
+				final int offset = label - blockStatistics.firstLabel;
+				if ( blockStatistics.sizes[ offset ] == 0 ) continue;
+
+				addStatistics( label, blockStatistics.sizes[ offset ],
+						blockStatistics.mins, offset * numDimensions,
+						blockStatistics.maxs, offset * numDimensions );
+			}
+
+			for ( Map.Entry< Integer, int[] > entry : blockStatistics.otherLabels.entrySet() )
+			{
+				final int[] values = entry.getValue();
+				addStatistics( entry.getKey(), values[ 0 ], values, 1, values, 1 + numDimensions );
+			}
+		}
+	}
+
+	private void addStatistics( int label, int size, int[] blockMins, int minsOffset, int[] blockMaxs, int maxsOffset )
+	{
+		sizes[ label ] += size;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int index = label * numDimensions + d;
+			mins[ index ] = Math.min( mins[ index ], blockMins[ minsOffset + d ] );
+			maxs[ index ] = Math.max( maxs[ index ], blockMaxs[ maxsOffset + d ] );
+		}
+	}
+
+	private ImgLabeling< Integer, IntType > createImgLabeling()
+	{
+		final long[] longDimensions = Intervals.dimensionsAsLongArray( rai );
+
+		RandomAccessibleInterval< IntType > labelImg = ArrayImgs.ints( labels, longDimensions );
+		labelImg = Transforms.getWithAdjustedOrigin( rai, labelImg );
+
+		final ImgLabeling< Integer, IntType > imgLabeling = new ImgLabeling<>( labelImg );
+
+		final ArrayList< Set< Integer > > labelSets = new ArrayList< >();
+
+		labelSets.add( new HashSet<>() ); // empty 0 label
+		for ( int label = 1; label <= numLabels; ++label )
+		{
+			final HashSet< Integer > set = new HashSet< >();
+			set.add( label );
+			labelSets.add( set );
+		}
+
+		new LabelingMapping.SerialisationAccess< Integer >( imgLabeling.getMapping() )
+		{
+			{
+				super.setLabelSets( labelSets );
+			}
+		};
+
+		return imgLabeling;
+	}
+
+	/**
+	 * The labels assigned to the roots of a block, [ firstLabel, endLabel ), are stored in arrays.
+	 * Labels of components that start in an earlier block and continue into this one are few,
+	 * thus they are stored in a map, holding the size, the minima and the maxima per label.
+	 */
+	private static class BlockStatistics
+	{
+		final int numDimensions;
+		final int firstLabel;
+		final int endLabel;
+		final int[] sizes;
+		final int[] mins;
+		final int[] maxs;
+		final HashMap< Integer, int[] > otherLabels = new HashMap<>();
+
+		BlockStatistics( int firstLabel, int endLabel, int numDimensions )
+		{
+			this.numDimensions = numDimensions;
+			this.firstLabel = firstLabel;
+			this.endLabel = endLabel;
+			sizes = new int[ endLabel - firstLabel ];
+			mins = new int[ ( endLabel - firstLabel ) * numDimensions ];
+			maxs = new int[ ( endLabel - firstLabel ) * numDimensions ];
+		}
+
+		void add( int label, int[] position )
+		{
+			if ( label >= firstLabel && label < endLabel )
+			{
+				final int offset = label - firstLabel;
+				add( position, sizes[ offset ]++ == 0, mins, offset * numDimensions, maxs, offset * numDimensions );
+			}
+			else
+			{
+				int[] values = otherLabels.get( label );
+				final boolean isFirst = values == null;
+				if ( isFirst )
+				{
+					values = new int[ 1 + 2 * numDimensions ];
+					otherLabels.put( label, values );
+				}
+				values[ 0 ]++;
+				add( position, isFirst, values, 1, values, 1 + numDimensions );
+			}
+		}
+
+		private void add( int[] position, boolean isFirst, int[] mins, int minsOffset, int[] maxs, int maxsOffset )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				if ( isFirst || position[ d ] < mins[ minsOffset + d ] ) mins[ minsOffset + d ] = position[ d ];
+				if ( isFirst || position[ d ] > maxs[ maxsOffset + d ] ) maxs[ maxsOffset + d ] = position[ d ];
+			}
+		}
+	}
+}
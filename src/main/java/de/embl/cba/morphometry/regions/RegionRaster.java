@@ -0,0 +1,273 @@
+package de.embl.cba.morphometry.regions;
+
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Rasterizes the regions of one ImgLabeling by walking its index image, within the bounding box of a region, in flat order.
+ *
+ * A pixel belongs to a region if its index is the index of the label set that holds only the label of the region.
+ * This avoids the random access of a {@link LabelRegion}, which resolves the label set of every pixel.
+ * Labelings with sets of more than one label (overlapping regions) are rasterized via the LabelRegion, as in {@link Regions}.
+ * The labeling must not be changed while the raster is used.
+ *
+ * The as... methods write into buffers of the current thread, which are reused by the next call of the same method
+ * on the same thread, such that loops over all objects do not allocate an image per object.
+ * The create... methods return new images, e.g. for results that are kept, or for tasks on a shared thread pool.
+ */
+public class RegionRaster
+{
+	private final RandomAccessibleInterval< IntType > indexImg;
+	private final HashMap< Integer, Integer > labelToIndex;
+
+	private final ThreadLocal< long[] > maskBuffers = new ThreadLocal<>();
+	private final ThreadLocal< HashMap< Class< ? >, Object > > croppedBuffers = ThreadLocal.withInitial( HashMap::new );
+
+	public RegionRaster( ImgLabeling< Integer, IntType > imgLabeling )
+	{
+		this.indexImg = imgLabeling.getIndexImg();
+		this.labelToIndex = createLabelToIndex( imgLabeling.getMapping() );
+	}
+
+	/**
+	 * @return the index of each label, or null if there are label sets with more than one label
+	 */
+	private static HashMap< Integer, Integer > createLabelToIndex( LabelingMapping< Integer > mapping )
+	{
+		final HashMap< Integer, Integer > labelToIndex = new HashMap<>();
+
+		for ( int index = 0; index < mapping.numSets(); ++index )
+		{
+			final Set< Integer > labels = mapping.labelsAtIndex( index );
+			if ( labels.size() > 1 ) return null;
+			if ( labels.size() == 1 ) labelToIndex.put( labels.iterator().next(), index );
+		}
+
+		return labelToIndex;
+	}
+
+	/**
+	 * Applies the action to all pixels of the target that are within the region.
+	 */
+	public < T > void forEachPixel( LabelRegion< Integer > region, RandomAccessible< T > target, Consumer< T > action )
+	{
+		if ( labelToIndex == null )
+		{
+			Regions.forEachPixel( region, target, action );
+			return;
+		}
+
+		final int index = getIndex( region );
+		final Cursor< IntType > indices = getIndexCursor( region );
+		final RandomAccess< T > targetAccess = target.randomAccess( region );
+
+		final int n = region.numDimensions();
+		final long rowLength = region.dimension( 0 );
+		final long[] rowStart = Intervals.minAsLongArray( region );
+
+		while ( indices.hasNext() )
+		{
+			targetAccess.setPosition( rowStart );
+
+			for ( long x = 0; x < rowLength; ++x )
+			{
+				if ( indices.next().get() == index ) action.accept( targetAccess.get() );
+				targetAccess.fwd( 0 );
+			}
+
+			for ( int d = 1; d < n; ++d )
+			{
+				if ( ++rowStart[ d ] <= region.max( d ) ) break;
+				rowStart[ d ] = region.min( d );
+			}
+		}
+	}
+
+	/**
+	 * @return mask of the region, with the bounding box of the region as interval
+	 */
+	public RandomAccessibleInterval< BitType > createMask( LabelRegion< Integer > region )
+	{
+		return asMask( region, new long[ getNumWords( region ) ] );
+	}
+
+	/**
+	 * @return mask of the region, with the bounding box of the region as interval;
+	 * the mask is overwritten by the next call on the same thread
+	 */
+	public RandomAccessibleInterval< BitType > asMask( LabelRegion< Integer > region )
+	{
+		final int numWords = getNumWords( region );
+
+		long[] words = maskBuffers.get();
+		if ( words == null || words.length < numWords )
+		{
+			words = new long[ numWords ];
+			maskBuffers.set( words );
+		}
+		else
+		{
+			Arrays.fill( words, 0, numWords, 0L );
+		}
+
+		return asMask( region, words );
+	}
+
+	private RandomAccessibleInterval< BitType > asMask( LabelRegion< Integer > region, long[] words )
+	{
+		final ArrayImg< BitType, LongArray > mask = ArrayImgs.bits( new LongArray( words ), Intervals.dimensionsAsLongArray( region ) );
+
+		if ( labelToIndex == null )
+		{
+			final RandomAccessibleInterval< BitType > translated = Transforms.getWithAdjustedOrigin( region, mask );
+			Regions.forEachPixel( region, translated, pixel -> pixel.set( true ) );
+			return translated;
+		}
+
+		final int index = getIndex( region );
+		final Cursor< IntType > indices = getIndexCursor( region );
+
+		for ( long i = 0; indices.hasNext(); ++i )
+		{
+			if ( indices.next().get() == index ) words[ ( int ) ( i >>> 6 ) ] |= 1L << ( i & 63 );
+		}
+
+		return Transforms.getWithAdjustedOrigin( region, mask );
+	}
+
+	/**
+	 * @return the pixels of the image within the region, and zero elsewhere,
+	 * with the bounding box of the region as interval
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createMaskedAndCropped( RandomAccessibleInterval< T > image, LabelRegion< Integer > region )
+	{
+		final T type = image.randomAccess().get();
+		final ArrayImg< T, ? > output = new ArrayImgFactory<>( type ).create( Intervals.dimensionsAsLongArray( region ) );
+		return copyMaskedAndCropped( image, region, output );
+	}
+
+	/**
+	 * @return the pixels of the image within the region, and zero elsewhere,
+	 * with the bounding box of the region as interval;
+	 * the output is overwritten by the next call for an image of the same type on the same thread
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > asMaskedAndCropped( RandomAccessibleInterval< T > image, LabelRegion< Integer > region )
+	{
+		final T type = image.randomAccess().get();
+		final ArrayImg< T, ? > output = getCroppedBuffer( type, Intervals.dimensionsAsLongArray( region ) );
+		if ( output == null ) return createMaskedAndCropped( image, region );
+		return copyMaskedAndCropped( image, region, output );
+	}
+
+	private < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > copyMaskedAndCropped(
+			RandomAccessibleInterval< T > image,
+			LabelRegion< Integer > region,
+			ArrayImg< T, ? > output )
+	{
+		final RandomAccessibleInterval< T > translated = Transforms.getWithAdjustedOrigin( region, output );
+
+		if ( labelToIndex == null )
+		{
+			for ( T o : output ) o.setZero();
+			Regions.forEachPixel( region, image, translated, ( i, o ) -> o.set( i ) );
+			return translated;
+		}
+
+		final int index = getIndex( region );
+		final Cursor< IntType > indices = getIndexCursor( region );
+		final Cursor< T > values = Views.flatIterable( Views.interval( image, region ) ).cursor();
+		final Cursor< T > outputs = output.cursor();
+
+		while ( indices.hasNext() )
+		{
+			final T value = values.next();
+			final T out = outputs.next();
+			if ( indices.next().get() == index ) out.set( value );
+			else out.setZero();
+		}
+
+		return translated;
+	}
+
+	/**
+	 * @return an ArrayImg on the buffer of the current thread for the type, or null if the type is not supported
+	 */
+	@SuppressWarnings( "unchecked" )
+	private < T extends NativeType< T > > ArrayImg< T, ? > getCroppedBuffer( T type, long[] dimensions )
+	{
+		final int numPixels = ( int ) Intervals.numElements( dimensions );
+		final HashMap< Class< ? >, Object > buffers = croppedBuffers.get();
+		final Object buffer = buffers.get( type.getClass() );
+
+		if ( type instanceof UnsignedByteType )
+		{
+			byte[] array = ( byte[] ) buffer;
+			if ( array == null || array.length < numPixels ) buffers.put( type.getClass(), array = new byte[ numPixels ] );
+			return ( ArrayImg< T, ? > ) ArrayImgs.unsignedBytes( array, dimensions );
+		}
+		else if ( type instanceof UnsignedShortType )
+		{
+			short[] array = ( short[] ) buffer;
+			if ( array == null || array.length < numPixels ) buffers.put( type.getClass(), array = new short[ numPixels ] );
+			return ( ArrayImg< T, ? > ) ArrayImgs.unsignedShorts( array, dimensions );
+		}
+		else if ( type instanceof FloatType )
+		{
+			float[] array = ( float[] ) buffer;
+			if ( array == null || array.length < numPixels ) buffers.put( type.getClass(), array = new float[ numPixels ] );
+			return ( ArrayImg< T, ? > ) ArrayImgs.floats( array, dimensions );
+		}
+		else if ( type instanceof BitType )
+		{
+			final int numWords = ( numPixels + 63 ) / 64;
+			long[] array = ( long[] ) buffer;
+			if ( array == null || array.length < numWords ) buffers.put( type.getClass(), array = new long[ numWords ] );
+			return ( ArrayImg< T, ? > ) ArrayImgs.bits( new LongArray( array ), dimensions );
+		}
+
+		return null;
+	}
+
+	private int getIndex( LabelRegion< Integer > region )
+	{
+		final Integer index = labelToIndex.get( region.getLabel() );
+		return index != null ? index : -1;
+	}
+
+	private Cursor< IntType > getIndexCursor( LabelRegion< Integer > region )
+	{
+		return Views.flatIterable( Views.interval( indexImg, region ) ).cursor();
+	}
+
+	private static int getNumWords( LabelRegion< Integer > region )
+	{
+		return ( int ) ( ( Intervals.numElements( region ) + 63 ) / 64 );
+	}
+}
@@ -3,6 +3,7 @@ package de.embl.cba.morphometry.regions;
 import de.embl.cba.morphometry.Algorithms;
 import de.embl.cba.transforms.utils.Transforms;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
@@ -12,12 +13,16 @@ import net.imglib2.roi.labeling.LabelRegion;
 import net.imglib2.roi.labeling.LabelRegionCursor;
 import net.imglib2.roi.labeling.LabelRegions;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BoolType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
 public abstract class Regions
 {
 
@@ -53,19 +58,96 @@ public abstract class Regions
 	{
 		RandomAccessibleInterval< BitType > rai = ArrayImgs.bits( Intervals.dimensionsAsLongArray( labelRegion ) );
 		rai = Transforms.getWithAdjustedOrigin( labelRegion, rai  );
-		final RandomAccess< BitType > randomAccess = rai.randomAccess();
 
-		final LabelRegionCursor cursor = labelRegion.cursor();
+		forEachPixel( labelRegion, rai, pixel -> pixel.set( true ) );
 
-		while ( cursor.hasNext() )
+		return rai;
+	}
+
+	/**
+	 * Applies the action to all pixels of the target that are within the region.
+	 *
+	 * The bounding box of the region is walked row by row, in flat order,
+	 * thus the accesses only need to be positioned once per row.
+	 * The region access still resolves the label set of each pixel; if the ImgLabeling of the region
+	 * is at hand, {@link RegionRaster} compares the indices of its index image instead.
+	 */
+	public static < T > void forEachPixel(
+			LabelRegion< ? > labelRegion,
+			RandomAccessible< T > target,
+			Consumer< T > action )
+	{
+		final RandomAccess< T > targetAccess = target.randomAccess( labelRegion );
+
+		forEachRow( labelRegion, targetAccess, regionAccess ->
 		{
-			cursor.fwd();
-			randomAccess.setPosition( cursor );
-			randomAccess.get().set( true );
-		}
+			final long rowLength = labelRegion.dimension( 0 );
+			for ( long x = 0; x < rowLength; ++x )
+			{
+				if ( regionAccess.get().get() ) action.accept( targetAccess.get() );
+				regionAccess.fwd( 0 );
+				targetAccess.fwd( 0 );
+			}
+		} );
+	}
 
-		return rai;
+	/**
+	 * Applies the action to all pairs of source and target pixels that are within the region.
+	 *
+	 * @see #forEachPixel(LabelRegion, RandomAccessible, Consumer)
+	 */
+	public static < S, T > void forEachPixel(
+			LabelRegion< ? > labelRegion,
+			RandomAccessible< S > source,
+			RandomAccessible< T > target,
+			BiConsumer< S, T > action )
+	{
+		final RandomAccess< S > sourceAccess = source.randomAccess( labelRegion );
+		final RandomAccess< T > targetAccess = target.randomAccess( labelRegion );
+
+		forEachRow( labelRegion, sourceAccess, regionAccess ->
+		{
+			targetAccess.setPosition( sourceAccess );
+
+			final long rowLength = labelRegion.dimension( 0 );
+			for ( long x = 0; x < rowLength; ++x )
+			{
+				if ( regionAccess.get().get() ) action.accept( sourceAccess.get(), targetAccess.get() );
+				regionAccess.fwd( 0 );
+				sourceAccess.fwd( 0 );
+				targetAccess.fwd( 0 );
+			}
+		} );
+	}
+
+	/**
+	 * Positions the region access and the given access at the start of each row
+	 * of the bounding box of the region and lets the row action walk along it.
+	 */
+	private static void forEachRow(
+			LabelRegion< ? > labelRegion,
+			RandomAccess< ? > access,
+			Consumer< RandomAccess< BoolType > > rowAction )
+	{
+		final int n = labelRegion.numDimensions();
+		final RandomAccess< BoolType > regionAccess = labelRegion.randomAccess();
+
+		final long[] rowStart = Intervals.minAsLongArray( labelRegion );
+		final long numRows = Intervals.numElements( labelRegion ) / labelRegion.dimension( 0 );
+
+		for ( long row = 0; row < numRows; ++row )
+		{
+			regionAccess.setPosition( rowStart );
+			access.setPosition( rowStart );
+
+			rowAction.accept( regionAccess );
 
+			for ( int d = 1; d < n; ++d )
+			{
+				if ( ++rowStart[ d ] <= labelRegion.max( d ) ) break;
+				rowStart[ d ] = labelRegion.min( d );
+			}
+		}
 	}
 
 	public static long size( LabelRegion labelRegion )
@@ -89,17 +171,7 @@ public abstract class Regions
 		ImgFactory< T > imgFactory = new ArrayImgFactory( image.randomAccess().get()  );
 		RandomAccessibleInterval< T > output = Views.translate( imgFactory.create( labelRegion ), Intervals.minAsLongArray( labelRegion )  ) ;
 
-		final RandomAccess< T > imageRandomAccess = image.randomAccess();
-		final RandomAccess< T > outputRandomAccess = output.randomAccess();
-		final LabelRegionCursor cursor = labelRegion.cursor();
-
-		while ( cursor.hasNext() )
-		{
-			cursor.fwd();
-			imageRandomAccess.setPosition( cursor );
-			outputRandomAccess.setPosition( cursor );
-			outputRandomAccess.get().set( imageRandomAccess.get() );
-		}
+		forEachPixel( labelRegion, image, output, ( i, o ) -> o.set( i ) );
 
 		return output;
 	}
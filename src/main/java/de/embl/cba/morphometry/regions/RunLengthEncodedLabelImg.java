@@ -0,0 +1,479 @@
+package de.embl.cba.morphometry.regions;
+
+import net.imglib2.AbstractInterval;
+import net.imglib2.AbstractLocalizable;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only label image, storing each row (line along dimension 0) as a list of runs of constant, non-zero label.
+ *
+ * Label images are mostly background with long runs of the same label,
+ * thus this needs a fraction of the memory of an IntType ArrayImg.
+ * Sizes, centroids and overlaps can be computed directly on the runs.
+ *
+ * Writing into the pixels returned by the RandomAccess has no effect.
+ */
+public class RunLengthEncodedLabelImg extends AbstractInterval implements RandomAccessibleInterval< IntType >
+{
+	private static final int[] EMPTY_ROW = new int[ 0 ];
+
+	/**
+	 * Every run is stored as three consecutive entries: start, end (exclusive) and label.
+	 * The start and end are relative to min( 0 ).
+	 */
+	private final int[][] rows;
+
+	private final int rowLength;
+
+	public interface RunConsumer
+	{
+		/**
+		 * @param position start of the run, in image coordinates; the array is reused for all runs
+		 * @param length number of pixels of the run, along dimension 0
+		 * @param label
+		 */
+		void accept( long[] position, int length, int label );
+	}
+
+	private RunLengthEncodedLabelImg( Interval interval, int[][] rows )
+	{
+		super( interval );
+		this.rows = rows;
+		this.rowLength = ( int ) interval.dimension( 0 );
+	}
+
+	public static RunLengthEncodedLabelImg encode( RandomAccessibleInterval< ? extends IntegerType< ? > > rai )
+	{
+		final long numRows = Intervals.numElements( rai ) / rai.dimension( 0 );
+
+		if ( rai.dimension( 0 ) > Integer.MAX_VALUE || numRows > Integer.MAX_VALUE )
+		{
+			throw new UnsupportedOperationException( "Image too large for run length encoding: " + Arrays.toString( Intervals.dimensionsAsLongArray( rai ) ) );
+		}
+
+		final int rowLength = ( int ) rai.dimension( 0 );
+		final int[][] rows = new int[ ( int ) numRows ][];
+
+		final Cursor< ? extends IntegerType< ? > > cursor = Views.flatIterable( rai ).cursor();
+
+		int[] runs = new int[ 3 * 16 ];
+
+		for ( int row = 0; row < numRows; ++row )
+		{
+			int numEntries = 0;
+			int currentLabel = 0;
+
+			for ( int x = 0; x < rowLength; ++x )
+			{
+				final int label = cursor.next().getInteger();
+
+				if ( label == currentLabel ) continue;
+
+				if ( currentLabel != 0 )
+				{
+					runs[ numEntries - 2 ] = x; // end of current run
+				}
+
+				if ( label != 0 )
+				{
+					if ( numEntries + 3 > runs.length ) runs = Arrays.copyOf( runs, 2 * runs.length );
+					runs[ numEntries++ ] = x;
+					runs[ numEntries++ ] = rowLength;
+					runs[ numEntries++ ] = label;
+				}
+
+				currentLabel = label;
+			}
+
+			rows[ row ] = numEntries == 0 ? EMPTY_ROW : Arrays.copyOf( runs, numEntries );
+		}
+
+		return new RunLengthEncodedLabelImg( rai, rows );
+	}
+
+	public int getNumRows()
+	{
+		return rows.length;
+	}
+
+	/**
+	 * @param row flat index of the row, i.e. of its position in dimensions 1...n-1
+	 * @return runs as consecutive ( start, end (exclusive), label ) entries, with start and end relative to min( 0 );
+	 * the returned array must not be modified
+	 */
+	public int[] getRuns( int row )
+	{
+		return rows[ row ];
+	}
+
+	public long getNumRuns()
+	{
+		long numRuns = 0;
+		for ( int[] runs : rows ) numRuns += runs.length / 3;
+		return numRuns;
+	}
+
+	public void forEachRun( RunConsumer consumer )
+	{
+		final long[] position = new long[ n ];
+		final long[] rowPosition = new long[ n ];
+		min( rowPosition );
+
+		for ( int row = 0; row < rows.length; ++row )
+		{
+			final int[] runs = rows[ row ];
+
+			for ( int i = 0; i < runs.length; i += 3 )
+			{
+				System.arraycopy( rowPosition, 0, position, 0, n );
+				position[ 0 ] += runs[ i ];
+				consumer.accept( position, runs[ i + 1 ] - runs[ i ], runs[ i + 2 ] );
+			}
+
+			for ( int d = 1; d < n; ++d )
+			{
+				if ( ++rowPosition[ d ] <= max[ d ] ) break;
+				rowPosition[ d ] = min[ d ];
+			}
+		}
+	}
+
+	public HashMap< Integer, Long > computeSizes()
+	{
+		final HashMap< Integer, Long > sizes = new HashMap<>();
+
+		for ( int[] runs : rows )
+		{
+			for ( int i = 0; i < runs.length; i += 3 )
+			{
+				sizes.merge( runs[ i + 2 ], ( long ) ( runs[ i + 1 ] - runs[ i ] ), Long::sum );
+			}
+		}
+
+		return sizes;
+	}
+
+	/**
+	 * @return centroid of each label, in image coordinates
+	 */
+	public HashMap< Integer, double[] > computeCentroids()
+	{
+		final HashMap< Integer, double[] > sums = new HashMap<>();
+		final HashMap< Integer, Long > sizes = new HashMap<>();
+
+		forEachRun( ( position, length, label ) ->
+		{
+			final double[] sum = sums.computeIfAbsent( label, l -> new double[ n ] );
+
+			// sum of the positions position[ 0 ] ... position[ 0 ] + length - 1
+			sum[ 0 ] += length * position[ 0 ] + 0.5 * length * ( length - 1 );
+			for ( int d = 1; d < n; ++d )
+			{
+				sum[ d ] += length * position[ d ];
+			}
+
+			sizes.merge( label, ( long ) length, Long::sum );
+		} );
+
+		for ( Map.Entry< Integer, double[] > entry : sums.entrySet() )
+		{
+			final long size = sizes.get( entry.getKey() );
+			for ( int d = 0; d < n; ++d )
+			{
+				entry.getValue()[ d ] /= size;
+			}
+		}
+
+		return sums;
+	}
+
+	/**
+	 * Computes, for each label of this image, the number of pixels that overlap
+	 * with the labels of another image of the same dimensions.
+	 *
+	 * @param other
+	 * @return map from each label of this image to the overlap counts per label of the other image;
+	 * labels without any overlap are mapped to an empty map
+	 */
+	public HashMap< Integer, HashMap< Integer, Long > > computeOverlaps( RunLengthEncodedLabelImg other )
+	{
+		if ( ! Intervals.equalDimensions( this, other ) )
+		{
+			throw new IllegalArgumentException( "Label images must have the same dimensions." );
+		}
+
+		final HashMap< Integer, HashMap< Integer, Long > > overlaps = new HashMap<>();
+
+		for ( int row = 0; row < rows.length; ++row )
+		{
+			final int[] runs = rows[ row ];
+			final int[] otherRuns = other.rows[ row ];
+
+			int j = 0;
+
+			for ( int i = 0; i < runs.length; i += 3 )
+			{
+				final HashMap< Integer, Long > labelOverlaps = overlaps.computeIfAbsent( runs[ i + 2 ], l -> new HashMap<>() );
+
+				// skip runs of the other image that end before this run
+				while ( j < otherRuns.length && otherRuns[ j + 1 ] <= runs[ i ] ) j += 3;
+
+				for ( int k = j; k < otherRuns.length && otherRuns[ k ] < runs[ i + 1 ]; k += 3 )
+				{
+					final int overlap = Math.min( runs[ i + 1 ], otherRuns[ k + 1 ] ) - Math.max( runs[ i ], otherRuns[ k ] );
+					labelOverlaps.merge( otherRuns[ k + 2 ], ( long ) overlap, Long::sum );
+				}
+			}
+		}
+
+		return overlaps;
+	}
+
+	/**
+	 * @param labelMap new label for each label; labels that are not contained are kept
+	 * @return new image with relabeled runs
+	 */
+	public RunLengthEncodedLabelImg relabel( Map< Integer, Integer > labelMap )
+	{
+		final int[][] relabeledRows = new int[ rows.length ][];
+
+		for ( int row = 0; row < rows.length; ++row )
+		{
+			final int[] runs = rows[ row ];
+
+			if ( runs.length == 0 )
+			{
+				relabeledRows[ row ] = EMPTY_ROW;
+				continue;
+			}
+
+			final int[] relabeledRuns = new int[ runs.length ];
+			int numEntries = 0;
+
+			for ( int i = 0; i < runs.length; i += 3 )
+			{
+				final int label = labelMap.getOrDefault( runs[ i + 2 ], runs[ i + 2 ] );
+
+				if ( label == 0 ) continue;
+
+				if ( numEntries > 0
+						&& relabeledRuns[ numEntries - 1 ] == label
+						&& relabeledRuns[ numEntries - 2 ] == runs[ i ] )
+				{
+					relabeledRuns[ numEntries - 2 ] = runs[ i + 1 ]; // join adjacent runs
+				}
+				else
+				{
+					relabeledRuns[ numEntries++ ] = runs[ i ];
+					relabeledRuns[ numEntries++ ] = runs[ i + 1 ];
+					relabeledRuns[ numEntries++ ] = label;
+				}
+			}
+
+			relabeledRows[ row ] = numEntries == 0 ? EMPTY_ROW : Arrays.copyOf( relabeledRuns, numEntries );
+		}
+
+		return new RunLengthEncodedLabelImg( this, relabeledRows );
+	}
+
+	@Override
+	public RandomAccess< IntType > randomAccess()
+	{
+		return new RunLengthRandomAccess();
+	}
+
+	@Override
+	public RandomAccess< IntType > randomAccess( Interval interval )
+	{
+		return randomAccess();
+	}
+
+	/**
+	 * Caches the current row and run, such that access along dimension 0 is cheap.
+	 */
+	private class RunLengthRandomAccess extends AbstractLocalizable implements RandomAccess< IntType >
+	{
+		private final IntType value = new IntType();
+
+		private int[] runs = EMPTY_ROW;
+		private int runIndex = 0;
+		private boolean rowValid = false;
+
+		RunLengthRandomAccess()
+		{
+			super( RunLengthEncodedLabelImg.this.n );
+		}
+
+		RunLengthRandomAccess( RunLengthRandomAccess randomAccess )
+		{
+			this();
+			System.arraycopy( randomAccess.position, 0, position, 0, n );
+		}
+
+		@Override
+		public IntType get()
+		{
+			if ( ! rowValid ) updateRow();
+
+			final int x = ( int ) ( position[ 0 ] - min[ 0 ] );
+
+			value.set( findLabel( x ) );
+
+			return value;
+		}
+
+		private void updateRow()
+		{
+			int row = 0;
+			for ( int d = n - 1; d > 0; --d )
+			{
+				row = row * ( int ) dimension( d ) + ( int ) ( position[ d ] - min[ d ] );
+			}
+
+			runs = rows[ row ];
+			runIndex = 0;
+			rowValid = true;
+		}
+
+		private int findLabel( int x )
+		{
+			if ( runs.length == 0 ) return 0;
+
+			// check the cached run first, since most accesses are along the row
+			if ( runIndex < runs.length && runs[ runIndex ] <= x )
+			{
+				if ( x < runs[ runIndex + 1 ] ) return runs[ runIndex + 2 ];
+				if ( runIndex + 3 >= runs.length || x < runs[ runIndex + 3 ] ) return 0;
+			}
+
+			// binary search for the last run starting at or before x
+			int low = 0;
+			int high = runs.length / 3 - 1;
+			while ( low < high )
+			{
+				final int mid = ( low + high + 1 ) >>> 1;
+				if ( runs[ 3 * mid ] <= x ) low = mid;
+				else high = mid - 1;
+			}
+
+			runIndex = 3 * low;
+
+			if ( runs[ runIndex ] <= x && x < runs[ runIndex + 1 ] ) return runs[ runIndex + 2 ];
+
+			return 0;
+		}
+
+		@Override
+		public RunLengthRandomAccess copy()
+		{
+			return new RunLengthRandomAccess( this );
+		}
+
+		@Override
+		public RunLengthRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+
+		private void invalidate( int d )
+		{
+			if ( d != 0 ) rowValid = false;
+		}
+
+		@Override
+		public void fwd( int d )
+		{
+			++position[ d ];
+			invalidate( d );
+		}
+
+		@Override
+		public void bck( int d )
+		{
+			--position[ d ];
+			invalidate( d );
+		}
+
+		@Override
+		public void move( int distance, int d )
+		{
+			position[ d ] += distance;
+			invalidate( d );
+		}
+
+		@Override
+		public void move( long distance, int d )
+		{
+			position[ d ] += distance;
+			invalidate( d );
+		}
+
+		@Override
+		public void move( Localizable localizable )
+		{
+			for ( int d = 0; d < n; ++d ) position[ d ] += localizable.getLongPosition( d );
+			rowValid = false;
+		}
+
+		@Override
+		public void move( int[] distance )
+		{
+			for ( int d = 0; d < n; ++d ) position[ d ] += distance[ d ];
+			rowValid = false;
+		}
+
+		@Override
+		public void move( long[] distance )
+		{
+			for ( int d = 0; d < n; ++d ) position[ d ] += distance[ d ];
+			rowValid = false;
+		}
+
+		@Override
+		public void setPosition( Localizable localizable )
+		{
+			for ( int d = 1; d < n; ++d )
+			{
+				if ( position[ d ] != localizable.getLongPosition( d ) ) rowValid = false;
+			}
+			localizable.localize( position );
+		}
+
+		@Override
+		public void setPosition( int[] pos )
+		{
+			for ( int d = 0; d < n; ++d ) setPosition( pos[ d ], d );
+		}
+
+		@Override
+		public void setPosition( long[] pos )
+		{
+			for ( int d = 0; d < n; ++d ) setPosition( pos[ d ], d );
+		}
+
+		@Override
+		public void setPosition( int pos, int d )
+		{
+			setPosition( ( long ) pos, d );
+		}
+
+		@Override
+		public void setPosition( long pos, int d )
+		{
+			if ( d != 0 && position[ d ] != pos ) rowValid = false;
+			position[ d ] = pos;
+		}
+	}
+}
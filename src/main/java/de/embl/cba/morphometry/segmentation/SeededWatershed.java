@@ -0,0 +1,514 @@
+package de.embl.cba.morphometry.segmentation;
+
+import de.embl.cba.morphometry.regions.ConnectedComponentLabeling;
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Seeded watershed by priority flooding, working directly on int arrays.
+ *
+ * The intensities are quantized into at most MAXIMAL_NUM_LEVELS levels (integer images with a smaller range
+ * are used as is) and flooded in order of their level, using a hierarchical bucket queue
+ * with one FIFO per level.
+ *
+ * Seeds are the positive values of the seed image; pixels outside the (optional) mask are neither flooded nor labeled.
+ * Pixels at which differently labeled regions meet are labeled WATERSHED, if watersheds are drawn.
+ */
+public class SeededWatershed< T extends RealType< T > & NativeType< T > >
+{
+	public static final int WATERSHED = -1;
+	public static final int MAXIMAL_NUM_LEVELS = 65536;
+
+	private static final int NONE = -1;
+
+	final RandomAccessibleInterval< T > intensities;
+	final RandomAccessibleInterval< IntType > seeds;
+	final RandomAccessibleInterval< BitType > mask;
+	final boolean floodFromMaxima;
+	final boolean useEightConnectivity;
+	final boolean drawWatersheds;
+
+	private int numDimensions;
+	private int[] dimensions;
+	private int[] strides;
+	private int[] position;
+
+	private int[][] neighborOffsets;
+	private int[] neighborFlatOffsets;
+
+	private int[] labels;
+	private int[] priorities;
+	private long[] isInMask;
+	private long[] isQueued;
+
+	private int[] heads;
+	private int[] tails;
+	private int[] next;
+	private int currentPriority;
+
+	private int maxLabel;
+	private long numWatershedPixels;
+
+	private RandomAccessibleInterval< IntType > labelImg;
+
+	/**
+	 * @param intensities
+	 * @param seeds positive values are seeds, which are flooded with their value
+	 * @param mask only pixels within the mask are flooded; may be null
+	 * @param floodFromMaxima true: flooding starts at the brightest pixels, i.e. the watershed of the inverted intensities is computed
+	 * @param useEightConnectivity true: 8 (2D) or 26 (3D) connectivity; false: 4 (2D) or 6 (3D) connectivity
+	 * @param drawWatersheds true: pixels where regions meet are labeled WATERSHED
+	 */
+	public SeededWatershed( RandomAccessibleInterval< T > intensities,
+							RandomAccessibleInterval< IntType > seeds,
+							RandomAccessibleInterval< BitType > mask,
+							boolean floodFromMaxima,
+							boolean useEightConnectivity,
+							boolean drawWatersheds )
+	{
+		this.intensities = intensities;
+		this.seeds = seeds;
+		this.mask = mask;
+		this.floodFromMaxima = floodFromMaxima;
+		this.useEightConnectivity = useEightConnectivity;
+		this.drawWatersheds = drawWatersheds;
+	}
+
+	/**
+	 * Floods each connected component of the mask separately and concurrently,
+	 * such that only the bounding box of each component needs to be processed,
+	 * and pixels outside the mask are never visited.
+	 *
+	 * @return label image, zero outside the mask
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< IntType > floodMaskComponents(
+			RandomAccessibleInterval< T > intensities,
+			RandomAccessibleInterval< IntType > seeds,
+			RandomAccessibleInterval< BitType > mask,
+			boolean floodFromMaxima,
+			boolean useEightConnectivity,
+			boolean drawWatersheds )
+	{
+		// flooding cannot cross between components that are not connected with the same connectivity
+		final ConnectedComponentLabeling< BitType > components = new ConnectedComponentLabeling<>(
+				mask,
+				useEightConnectivity ? ConnectedComponents.StructuringElement.EIGHT_CONNECTED : ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		components.run();
+
+		final RandomAccessibleInterval< IntType > componentLabels = components.getImgLabeling().getIndexImg();
+
+		final RandomAccessibleInterval< IntType > labelImg =
+				Transforms.getWithAdjustedOrigin( mask, ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) ) );
+
+		IntStream.rangeClosed( 1, components.getNumLabels() ).parallel().forEach( component ->
+		{
+			final FinalInterval boundingBox = components.getBoundingBox( component );
+
+			final RandomAccessibleInterval< BitType > componentMask = Converters.convert(
+					Views.interval( componentLabels, boundingBox ),
+					( i, o ) -> o.set( i.get() == component ),
+					new BitType() );
+
+			final SeededWatershed< T > watershed = new SeededWatershed<>(
+					Views.interval( intensities, boundingBox ),
+					Views.interval( seeds, boundingBox ),
+					componentMask,
+					floodFromMaxima,
+					useEightConnectivity,
+					drawWatersheds );
+			watershed.run();
+
+			// components are disjoint, thus the threads write to different pixels
+			LoopBuilder.setImages( componentMask, watershed.getLabelImg(), Views.interval( labelImg, boundingBox ) ).forEachPixel(
+					( m, w, o ) -> { if ( m.get() ) o.set( w ); } );
+		} );
+
+		return labelImg;
+	}
+
+	public void run()
+	{
+		configureDimensions();
+
+		configureNeighborOffsets();
+
+		initMaskAndLabels();
+
+		initPriorities();
+
+		flood();
+
+		labelImg = Transforms.getWithAdjustedOrigin( intensities, ArrayImgs.ints( labels, Intervals.dimensionsAsLongArray( intensities ) ) );
+
+		priorities = null;
+		next = null;
+	}
+
+	/**
+	 * @return label image with the seed labels, WATERSHED, and zero for unreached pixels and pixels outside the mask
+	 */
+	public RandomAccessibleInterval< IntType > getLabelImg()
+	{
+		return labelImg;
+	}
+
+	public long getNumWatershedPixels()
+	{
+		return numWatershedPixels;
+	}
+
+	/**
+	 * The index of each label is the label itself, except for WATERSHED,
+	 * which is mapped onto the index following the largest label.
+	 *
+	 * @return labeling backed by the label image
+	 */
+	public ImgLabeling< Integer, IntType > getImgLabeling()
+	{
+		final int watershedIndex = maxLabel + 1;
+
+		final RandomAccessibleInterval< IntType > indexImg = numWatershedPixels == 0 ? labelImg :
+				Converters.convert( labelImg, ( i, o ) -> o.set( i.get() == WATERSHED ? watershedIndex : i.get() ), new IntType() );
+
+		final ImgLabeling< Integer, IntType > imgLabeling = new ImgLabeling<>( indexImg );
+
+		final ArrayList< Set< Integer > > labelSets = new ArrayList< >();
+
+		labelSets.add( new HashSet<>() ); // empty 0 label
+		for ( int label = 1; label <= maxLabel; ++label )
+		{
+			final HashSet< Integer > set = new HashSet< >();
+			set.add( label );
+			labelSets.add( set );
+		}
+
+		if ( numWatershedPixels > 0 )
+		{
+			final HashSet< Integer > set = new HashSet< >();
+			set.add( WATERSHED );
+			labelSets.add( set );
+		}
+
+		new LabelingMapping.SerialisationAccess< Integer >( imgLabeling.getMapping() )
+		{
+			{
+				super.setLabelSets( labelSets );
+			}
+		};
+
+		return imgLabeling;
+	}
+
+	private void configureDimensions()
+	{
+		final long numPixels = Intervals.numElements( intensities );
+
+		if ( numPixels > Integer.MAX_VALUE )
+		{
+			throw new UnsupportedOperationException( "Image too large for watershed: " + numPixels + " pixels." );
+		}
+
+		numDimensions = intensities.numDimensions();
+		position = new int[ numDimensions ];
+		dimensions = new int[ numDimensions ];
+		strides = new int[ numDimensions ];
+
+		int stride = 1;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			dimensions[ d ] = ( int ) intensities.dimension( d );
+			strides[ d ] = stride;
+			stride *= dimensions[ d ];
+		}
+	}
+
+	private void configureNeighborOffsets()
+	{
+		final ArrayList< int[] > offsets = new ArrayList<>();
+
+		final int numCombinations = ( int ) Math.pow( 3, numDimensions );
+
+		for ( int combination = 0; combination < numCombinations; ++combination )
+		{
+			final int[] offset = new int[ numDimensions ];
+
+			int remainder = combination;
+			int numNonZero = 0;
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				offset[ d ] = remainder % 3 - 1;
+				remainder /= 3;
+				if ( offset[ d ] != 0 ) numNonZero++;
+			}
+
+			if ( numNonZero == 0 ) continue;
+			if ( ! useEightConnectivity && numNonZero > 1 ) continue;
+
+			offsets.add( offset );
+		}
+
+		neighborOffsets = offsets.toArray( new int[ 0 ][] );
+		neighborFlatOffsets = new int[ neighborOffsets.length ];
+
+		for ( int k = 0; k < neighborOffsets.length; ++k )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				neighborFlatOffsets[ k ] += neighborOffsets[ k ][ d ] * strides[ d ];
+			}
+		}
+	}
+
+	private void initMaskAndLabels()
+	{
+		final int numPixels = ( int ) Intervals.numElements( intensities );
+
+		labels = new int[ numPixels ];
+		isInMask = new long[ ( numPixels >> 6 ) + 1 ];
+		isQueued = new long[ ( numPixels >> 6 ) + 1 ];
+
+		if ( mask == null )
+		{
+			Arrays.fill( isInMask, -1L );
+		}
+		else
+		{
+			final Cursor< BitType > maskCursor = Views.flatIterable( mask ).cursor();
+			for ( int i = 0; i < numPixels; ++i )
+			{
+				if ( maskCursor.next().get() ) set( isInMask, i );
+			}
+		}
+
+		maxLabel = 0;
+
+		final Cursor< IntType > seedsCursor = Views.flatIterable( seeds ).cursor();
+		for ( int i = 0; i < numPixels; ++i )
+		{
+			final int label = seedsCursor.next().get();
+
+			if ( label > 0 && get( isInMask, i ) )
+			{
+				labels[ i ] = label;
+				set( isQueued, i ); // seeds are never flooded
+				if ( label > maxLabel ) maxLabel = label;
+			}
+		}
+	}
+
+	/**
+	 * Converts the intensities into flooding priorities, i.e. quantized levels,
+	 * which are reversed if flooding starts from the maxima.
+	 */
+	private void initPriorities()
+	{
+		final int numPixels = labels.length;
+
+		final T type = Views.flatIterable( intensities ).firstElement();
+
+		final boolean isIntegerValued = type instanceof IntegerType;
+
+		double min;
+		double max;
+
+		if ( isIntegerValued && type.getMaxValue() - type.getMinValue() < MAXIMAL_NUM_LEVELS )
+		{
+			// no need to scan the image
+			min = type.getMinValue();
+			max = type.getMaxValue();
+		}
+		else
+		{
+			min = Double.MAX_VALUE;
+			max = - Double.MAX_VALUE;
+
+			final Cursor< T > cursor = Views.flatIterable( intensities ).cursor();
+			for ( int i = 0; i < numPixels; ++i )
+			{
+				final double value = cursor.next().getRealDouble();
+				if ( ! get( isInMask, i ) ) continue;
+				if ( value < min ) min = value;
+				if ( value > max ) max = value;
+			}
+
+			if ( min > max ) min = max = 0; // empty mask
+		}
+
+		final double scale = ( isIntegerValued && max - min < MAXIMAL_NUM_LEVELS ) || max == min ? 1.0 : ( MAXIMAL_NUM_LEVELS - 1 ) / ( max - min );
+		final int numLevels = ( int ) ( ( max - min ) * scale ) + 1;
+
+		priorities = new int[ numPixels ];
+
+		final Cursor< T > cursor = Views.flatIterable( intensities ).cursor();
+		for ( int i = 0; i < numPixels; ++i )
+		{
+			final int level = ( int ) ( ( cursor.next().getRealDouble() - min ) * scale );
+			priorities[ i ] = floodFromMaxima ? numLevels - 1 - level : level;
+		}
+
+		heads = new int[ numLevels ];
+		tails = new int[ numLevels ];
+		Arrays.fill( heads, NONE );
+		Arrays.fill( tails, NONE );
+		next = new int[ numPixels ];
+	}
+
+	private void flood()
+	{
+		currentPriority = 0;
+
+		for ( int i = 0; i < labels.length; ++i )
+		{
+			if ( labels[ i ] > 0 ) queueNeighbors( i );
+		}
+
+		numWatershedPixels = 0;
+
+		int i;
+		while ( ( i = poll() ) != NONE )
+		{
+			final int label = resolveLabel( i );
+
+			labels[ i ] = label;
+
+			if ( label == WATERSHED )
+			{
+				numWatershedPixels++;
+				continue; // watersheds do not propagate
+			}
+
+			queueNeighbors( i );
+		}
+	}
+
+	/**
+	 * @return the label of the labeled neighbors, or WATERSHED if these have different labels
+	 */
+	private int resolveLabel( int i )
+	{
+		final int[] position = getPosition( i );
+
+		int label = 0;
+
+		for ( int k = 0; k < neighborOffsets.length; ++k )
+		{
+			if ( ! isInside( position, neighborOffsets[ k ] ) ) continue;
+
+			final int neighborLabel = labels[ i + neighborFlatOffsets[ k ] ];
+
+			if ( neighborLabel <= 0 ) continue;
+
+			if ( label == 0 )
+			{
+				label = neighborLabel;
+				if ( ! drawWatersheds ) return label;
+			}
+			else if ( neighborLabel != label )
+			{
+				return WATERSHED;
+			}
+		}
+
+		return label;
+	}
+
+	private void queueNeighbors( int i )
+	{
+		final int[] position = getPosition( i );
+
+		for ( int k = 0; k < neighborOffsets.length; ++k )
+		{
+			if ( ! isInside( position, neighborOffsets[ k ] ) ) continue;
+
+			final int j = i + neighborFlatOffsets[ k ];
+
+			if ( get( isQueued, j ) || ! get( isInMask, j ) ) continue;
+
+			set( isQueued, j );
+
+			// never queue below the current priority, such that flooding proceeds monotonically
+			add( j, Math.max( priorities[ j ], currentPriority ) );
+		}
+	}
+
+	private void add( int i, int priority )
+	{
+		next[ i ] = NONE;
+
+		if ( tails[ priority ] == NONE ) heads[ priority ] = i;
+		else next[ tails[ priority ] ] = i;
+
+		tails[ priority ] = i;
+	}
+
+	private int poll()
+	{
+		while ( currentPriority < heads.length && heads[ currentPriority ] == NONE )
+		{
+			currentPriority++;
+		}
+
+		if ( currentPriority == heads.length ) return NONE;
+
+		final int i = heads[ currentPriority ];
+
+		heads[ currentPriority ] = next[ i ];
+		if ( heads[ currentPriority ] == NONE ) tails[ currentPriority ] = NONE;
+
+		return i;
+	}
+
+	private int[] getPosition( int i )
+	{
+		for ( int d = numDimensions - 1; d >= 0; --d )
+		{
+			position[ d ] = i / strides[ d ];
+			i -= position[ d ] * strides[ d ];
+		}
+
+		return position;
+	}
+
+	private boolean isInside( int[] position, int[] offset )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int coordinate = position[ d ] + offset[ d ];
+			if ( coordinate < 0 || coordinate >= dimensions[ d ] ) return false;
+		}
+
+		return true;
+	}
+
+	private static boolean get( long[] bits, int i )
+	{
+		return ( bits[ i >> 6 ] & ( 1L << i ) ) != 0;
+	}
+
+	private static void set( long[] bits, int i )
+	{
+		bits[ i >> 6 ] |= 1L << i;
+	}
+}
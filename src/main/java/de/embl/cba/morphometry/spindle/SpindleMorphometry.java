@@ -1,8 +1,10 @@
 package de.embl.cba.morphometry.spindle;
 
 import de.embl.cba.morphometry.*;
+import de.embl.cba.morphometry.geometry.AxisProfile;
 import de.embl.cba.morphometry.geometry.CoordinatesAndValues;
 import de.embl.cba.morphometry.geometry.CurveAnalysis;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMoments;
 import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidVectors;
 import de.embl.cba.morphometry.geometry.ellipsoids.Ellipsoids3DImageSuite;
 import de.embl.cba.morphometry.measurements.Measurements;
@@ -16,7 +18,6 @@ import net.imglib2.*;
 import net.imglib2.algorithm.neighborhood.HyperSphereShape;
 import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.Shape;
-import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
@@ -54,17 +55,54 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 
 	final SpindleMorphometrySettings settings;
 	final OpService opService;
+	final SpindleMorphometryContext context;
+	final boolean ownsContext;
 
 	private HashMap< Integer, Map< String, Object > > objectMeasurements;
 
+	/**
+	 * The run uses its own context, which is closed at the end of {@link #run()},
+	 * such that all output images are written when it returns; such an instance is meant for a single run.
+	 */
 	public SpindleMorphometry( SpindleMorphometrySettings settings, OpService opService )
+	{
+		this( settings, opService, new SpindleMorphometryContext(), true );
+	}
+
+	/**
+	 * @param settings
+	 * @param opService
+	 * @param context scratch images, which may be shared by consecutive runs on the same thread
+	 */
+	public SpindleMorphometry( SpindleMorphometrySettings settings, OpService opService, SpindleMorphometryContext context )
+	{
+		this( settings, opService, context, false );
+	}
+
+	private SpindleMorphometry( SpindleMorphometrySettings settings, OpService opService, SpindleMorphometryContext context, boolean ownsContext )
 	{
 		this.settings = settings;
 		this.opService = opService;
+		this.context = context;
+		this.ownsContext = ownsContext;
 	}
 
 	public void run()
 	{
+		try
+		{
+			measure();
+		}
+		finally
+		{
+			if ( ownsContext ) context.close();
+		}
+	}
+
+	private void measure()
+	{
+		StageProfiler.start( "Spindle morphometry" );
+
 		/**
 		 *  Initialise measurements
 		 */
@@ -76,12 +114,15 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 */
 
 		Utils.log( "Create isotropic image..." );
+		StageProfiler.start( "Isotropic rescaling" );
 
 		final double[] workingCalibration = Utils.as3dDoubleArray( settings.workingVoxelSize );
 
 		final RandomAccessibleInterval< T > dna = createRescaledArrayImg( settings.dapiImage, getScalingFactors( settings.inputCalibration, settings.workingVoxelSize ) );
 		final RandomAccessibleInterval< T > tubulin = createRescaledArrayImg( settings.tubulinImage, getScalingFactors( settings.inputCalibration, settings.workingVoxelSize ) );
 
+		StageProfiler.stop( "Isotropic rescaling" );
+
 		if ( settings.showIntermediateResults ) show( dna, "dapi isotropic resolution", null, workingCalibration, false );
 		if ( settings.showIntermediateResults ) show( tubulin, "tubulin isotropic resolution", null, workingCalibration, false );
 
@@ -90,9 +131,9 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 *  Compute offset and threshold
 		 */
 
-		final RandomAccessibleInterval< T > dapiDownscaledToSpindleWidth = createRescaledArrayImg( settings.dapiImage, getScalingFactors( settings.inputCalibration, 3.0 ) );
-		final double maximumValue = Algorithms.getMaximumValue( dapiDownscaledToSpindleWidth );
-		double threshold = maximumValue / 2.0;
+		StageProfiler.start( "Threshold and mask" );
+
+		final double threshold = computeDapiThreshold( dna );
 
 		Utils.log( "Dapi threshold: " + threshold );
 
@@ -103,6 +144,8 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 
 		RandomAccessibleInterval< BitType > dnaMask = createMask( dna, threshold );
 
+		StageProfiler.stop( "Threshold and mask" );
+
 		if ( settings.showIntermediateResults ) show( dnaMask, "dapi mask", null, workingCalibration, false );
 
 
@@ -111,6 +154,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 */
 
 		Utils.log( "Extracting metaphase plate object..." );
+		StageProfiler.start( "Metaphase plate" );
 
 		Algorithms.removeSmallRegionsInMask( dnaMask, settings.minimalMetaphasePlateVolumeInCalibratedUnits, settings.workingVoxelSize );
 
@@ -119,7 +163,20 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		final long radius = (long) ( settings.centralObjectRegionToleranceInCalibratedUnits / settings.workingVoxelSize );
 		final LabelRegion< Integer > metaphasePlateRegion = Regions.getCentralRegion( labelImg, radius );
 
-		final Img< BitType > metaphasePlateMask = Algorithms.createMaskFromLabelRegion( metaphasePlateRegion, Intervals.dimensionsAsLongArray( labelImg ) );
+		/**
+		 * Crop to the meta-phase plate
+		 *
+		 * - all further computations only consider the plate and its surrounding within maxShortAxisDist
+		 */
+
+		final long margin = ( long ) Math.ceil( settings.maxShortAxisDist / settings.workingVoxelSize );
+		final FinalInterval plateInterval = Intervals.intersect( Intervals.expand( metaphasePlateRegion, margin ), dna );
+
+		final RandomAccessibleInterval< T > dnaCrop = Views.interval( dna, plateInterval );
+		final RandomAccessibleInterval< T > tubulinCrop = Views.interval( tubulin, plateInterval );
+		final RandomAccessibleInterval< BitType > dnaMaskCrop = Views.interval( dnaMask, plateInterval );
+
+		final RandomAccessibleInterval< BitType > metaphasePlateMask = Algorithms.createMaskFromLabelRegion( metaphasePlateRegion, plateInterval );
 
 		if ( settings.showIntermediateResults ) show( metaphasePlateMask, "meta-phase object", null, workingCalibration, false );
 
@@ -140,7 +197,9 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 * if the meta-phase plate is too thick
 		 */
 
-		final RandomAccessibleInterval< BitType > processedMetaPhasePlate = createProcessedMetaPhasePlate( dnaMask, metaphasePlateMask );
+		final RandomAccessibleInterval< BitType > processedMetaPhasePlate = createProcessedMetaPhasePlate( dnaMaskCrop, metaphasePlateMask );
+
+		StageProfiler.stop( "Metaphase plate" );
 
 		if ( settings.showIntermediateResults ) show( processedMetaPhasePlate, "processed metaphase plate", null, workingCalibration, false );
 
@@ -149,19 +208,22 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 */
 
 		Utils.log( "Determining meta-phase plate axes..." );
+		StageProfiler.start( "Alignment" );
 
 		//final EllipsoidMLJ ellipsoidParameters = EllipsoidsMLJ.computeParametersFromBinaryImage( processedMetaPhasePlate );
 
-		final EllipsoidVectors ellipsoidVectors = Ellipsoids3DImageSuite.fitEllipsoid( Utils.asImagePlus( processedMetaPhasePlate, "" ) );
+		final EllipsoidVectors ellipsoidVectors = EllipsoidMoments.compute( processedMetaPhasePlate ).getEllipsoidVectors();
 
 		Utils.log( "Creating aligned images..." );
 
 		//final AffineTransform3D alignmentTransform = EllipsoidsMLJ.createAlignmentTransform( ellipsoidParameters );
 
 		final AffineTransform3D alignmentTransform = Ellipsoids3DImageSuite.createAlignmentTransform( ellipsoidVectors );
-		final RandomAccessibleInterval alignedTubulin = Utils.copyAsArrayImg( Transforms.createTransformedView( tubulin, alignmentTransform, new NearestNeighborInterpolatorFactory() ) );
-		final RandomAccessibleInterval alignedDapi = Utils.copyAsArrayImg( Transforms.createTransformedView( dna, alignmentTransform ) );
-		final RandomAccessibleInterval alignedProcessedMetaphasePlate = Utils.copyAsArrayImg( Transforms.createTransformedView( processedMetaPhasePlate, alignmentTransform ) );
+		final RandomAccessibleInterval alignedTubulin = context.copyIntoBuffer( "alignedTubulin", Transforms.createTransformedView( tubulinCrop, alignmentTransform, new NearestNeighborInterpolatorFactory() ) );
+		final RandomAccessibleInterval alignedDapi = context.copyIntoBuffer( "alignedDapi", Transforms.createTransformedView( dnaCrop, alignmentTransform ) );
+		final RandomAccessibleInterval alignedProcessedMetaphasePlate = context.copyIntoBuffer( "alignedProcessedMetaphasePlate", Transforms.createTransformedView( processedMetaPhasePlate, alignmentTransform ) );
+
+		StageProfiler.stop( "Alignment" );
 
 		if ( settings.showIntermediateResults ) show( alignedDapi, "aligned dapi", Transforms.origin(), workingCalibration, false );
 		if ( settings.showIntermediateResults ) show( alignedProcessedMetaphasePlate, "aligned processed meta-phase plate", Transforms.origin(), workingCalibration, false );
@@ -173,11 +235,13 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 */
 
 		Utils.log( "Measuring meta-phase plate morphometry..." );
+		StageProfiler.start( "Measurements" );
 
-		final CoordinatesAndValues dapiProfile = Utils.computeAverageIntensitiesAlongAxis( alignedDapi, settings.maxShortAxisDist, ALIGNED_DNA_AXIS, settings.workingVoxelSize );
-		if ( settings.showIntermediateResults ) Plots.plot( dapiProfile.coordinates, dapiProfile.values, "distance to center", "dapi intensity along shortest axis" );
+		final AxisProfile dapiAxisProfile = AxisProfile.compute( alignedDapi, null, ALIGNED_DNA_AXIS, settings.maxShortAxisDist, settings.workingVoxelSize );
+		final CoordinatesAndValues dapiProfile = dapiAxisProfile.getAverages();
+		if ( settings.showIntermediateResults ) Plots.plot( dapiProfile.getCoordinates(), dapiProfile.getValues(), "distance to center", "dapi intensity along shortest axis" );
 
-		final double fwhm = CurveAnalysis.computeFWHM( dapiProfile );
+		final double fwhm = CurveAnalysis.computeFWHM( dapiProfile, dapiAxisProfile.getArgMaxOfAverages() );
 
 		Measurements.addMeasurement(
 				objectMeasurements,
@@ -190,12 +254,12 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		 */
 
 		final CoordinatesAndValues tubulinProfile = Utils.computeMaximumIntensitiesAlongAxis( alignedTubulin, settings.maxShortAxisDist, ALIGNED_DNA_AXIS, settings.workingVoxelSize );
-		if ( settings.showIntermediateResults ) Plots.plot( tubulinProfile.coordinates, tubulinProfile.values, "distance to center", "tubulin maximal intensities" );
+		if ( settings.showIntermediateResults ) Plots.plot( tubulinProfile.getCoordinates(), tubulinProfile.getValues(), "distance to center", "tubulin maximal intensities" );
 
 		final CoordinatesAndValues tubulinProfileDerivative = CurveAnalysis.computeDerivatives( tubulinProfile, (int) Math.ceil( settings.derivativeDelta / settings.workingVoxelSize ) );
-		if ( settings.showIntermediateResults ) Plots.plot( tubulinProfileDerivative.coordinates, tubulinProfileDerivative.values, "distance to center", "tubulin intensity derivative" );
+		if ( settings.showIntermediateResults ) Plots.plot( tubulinProfileDerivative.getCoordinates(), tubulinProfileDerivative.getValues(), "distance to center", "tubulin intensity derivative" );
 
-		double[] dnaAxisBasedSpindlePoleCoordinates = getLeftMaxAndRightMinLoc( tubulinProfileDerivative.coordinates, tubulinProfileDerivative.values );
+		double[] dnaAxisBasedSpindlePoleCoordinates = getLeftMaxAndRightMinLoc( tubulinProfileDerivative.getCoordinates(), tubulinProfileDerivative.getValues() );
 
 		Utils.log( "Left spindle pole found at: " + dnaAxisBasedSpindlePoleCoordinates[ 0 ] );
 		Utils.log( "Right spindle pole found at: " + dnaAxisBasedSpindlePoleCoordinates[ 1 ] );
@@ -230,28 +294,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 			// TODO: not 100% sure about above coordinate order
 		}
 
-
-		/**
-		 * Create interest point image in original coordinate system
-		 */
-
-		RandomAccessibleInterval< T > interestPointsImage = Utils.copyAsArrayImg( dna );
-		Utils.setValues( interestPointsImage, 0.0 );
-
-		final double[] origin = { 0, 0, 0 };
-		drawTransformedPoint( alignmentTransform, interestPointsImage, origin, 200 );
-
-		for ( int p = 0; p < 2; p++ )
-		{
-			double[] spindlePole = new double[]{ 0.0, 0.0, dnaAxisBasedSpindlePoleCoordinates[ p ] };
-			drawTransformedPoint( alignmentTransform, interestPointsImage, spindlePole, 200 );
-		}
-
-		for ( int p = 0; p < 2; p++ )
-		{
-			drawTransformedPoint( alignmentTransform, interestPointsImage, spindlePoles.get( p ), 100 );
-		}
-
+		StageProfiler.stop( "Measurements" );
 
 
 		/**
@@ -282,29 +325,93 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 
 		final RandomAccessibleInterval transformedDapiView = Transforms.createTransformedView( dna, inputDataRotation );
 		final RandomAccessibleInterval transformedTubulinView = Transforms.createTransformedView( tubulin, inputDataRotation );
-		final RandomAccessibleInterval transformedInterestPointView = Transforms.createTransformedView( interestPointsImage, inputDataRotation, new NearestNeighborInterpolatorFactory() );
 
 		//		Bdv bdv = null;
 		//		if ( settings.showIntermediateResults ) BdvFunctions.show( interestPoints, "" ).getBdvHandle();
 		//		if ( settings.showIntermediateResults ) bdv = BdvFunctions.show( transformedDapiView, "" ).getBdvHandle();
 		//		if ( settings.showIntermediateResults ) BdvFunctions.show( transformedInterestPointView, "", BdvOptions.options().addTo( bdv ) );
 
-		Utils.log( "Saving result images ..." );
+		if ( settings.outputProfile.equals( SpindleMorphometrySettings.OUTPUT_MEASUREMENTS ) )
+		{
+			StageProfiler.stop( "Spindle morphometry" );
+			return;
+		}
+
+		StageProfiler.start( "Output" );
+
+		final RandomAccessibleInterval< T > interestPointsImage = createInterestPointsImage( dna, alignmentTransform, dnaAxisBasedSpindlePoleCoordinates, spindlePoles );
+		final RandomAccessibleInterval transformedInterestPointView = Transforms.createTransformedView( interestPointsImage, inputDataRotation, new NearestNeighborInterpolatorFactory() );
+
+		if ( settings.outputProfile.equals( SpindleMorphometrySettings.OUTPUT_FULL ) )
+		{
+			Utils.log( "Saving result images ..." );
+
+			saveImagePlus( Utils.asImagePlus( Views.zeroMin( processedMetaPhasePlate ), "processedMetaPhasePlate", settings.imagePlusCalibration  ) );
+			saveImagePlus( Utils.asImagePlus( alignedProcessedMetaphasePlate, "alignedProcessedMetaphasePlate", settings.imagePlusCalibration ) );
+			saveImagePlus( Utils.asImagePlus( transformedDapiView, "dna", settings.imagePlusCalibration ) );
+			saveImagePlus( Utils.asImagePlus( transformedTubulinView, "tubulin", settings.imagePlusCalibration ) );
+			saveImagePlus( Utils.asImagePlus( transformedInterestPointView, "interestPoints", settings.imagePlusCalibration ) );
+		}
+		else if ( settings.outputProfile.equals( SpindleMorphometrySettings.OUTPUT_PROJECTIONS ) )
+		{
+			Utils.log( "Saving result projections ..." );
+
+			saveMaximumProjections( transformedDapiView, "dna" );
+			saveMaximumProjections( transformedTubulinView, "tubulin" );
+			saveMaximumProjections( transformedInterestPointView, "interestPoints" );
+		}
+
+		StageProfiler.stop( "Spindle morphometry" );
+	}
+
+	/**
+	 * Create interest point image in original coordinate system
+	 */
+	private RandomAccessibleInterval< T > createInterestPointsImage(
+			RandomAccessibleInterval< T > dna,
+			AffineTransform3D alignmentTransform,
+			double[] dnaAxisBasedSpindlePoleCoordinates,
+			ArrayList< double[] > spindlePoles )
+	{
+		RandomAccessibleInterval< T > interestPointsImage = context.zeroedBuffer( "interestPoints", dna );
+
+		final double[] origin = { 0, 0, 0 };
+		drawTransformedPoint( alignmentTransform, interestPointsImage, origin, 200 );
+
+		for ( int p = 0; p < 2; p++ )
+		{
+			double[] spindlePole = new double[]{ 0.0, 0.0, dnaAxisBasedSpindlePoleCoordinates[ p ] };
+			drawTransformedPoint( alignmentTransform, interestPointsImage, spindlePole, 200 );
+		}
 
+		for ( int p = 0; p < 2; p++ )
+		{
+			drawTransformedPoint( alignmentTransform, interestPointsImage, spindlePoles.get( p ), 100 );
+		}
 
-		saveImagePlus( Utils.asImagePlus( processedMetaPhasePlate, "processedMetaPhasePlate", settings.imagePlusCalibration  ) );
-		saveImagePlus( Utils.asImagePlus( alignedProcessedMetaphasePlate, "alignedProcessedMetaphasePlate", settings.imagePlusCalibration ) );
-		saveImagePlus( Utils.asImagePlus( transformedDapiView, "dna", settings.imagePlusCalibration ) );
-		saveImagePlus( Utils.asImagePlus( transformedTubulinView, "tubulin", settings.imagePlusCalibration ) );
-		saveImagePlus( Utils.asImagePlus( transformedInterestPointView, "interestPoints", settings.imagePlusCalibration ) );
+		return interestPointsImage;
+	}
 
-//		Utils.asImagePlus( transformedInterestPointView, "interestPoints" ).show();
-//
-		//		saveMaximumProjections( transformedDapiView, "dapi" );
-		//		saveMaximumProjections( transformedTubulinView, "tubulin" );
-		//		saveMaximumProjections( transformedInterestPointView, "points" );
+	/**
+	 * The threshold is estimated from block averages of the isotropic image,
+	 * at the scale of dapiThresholdEstimationVoxelSize.
+	 */
+	private double computeDapiThreshold( RandomAccessibleInterval< T > dna )
+	{
+		final int blockSize = ( int ) Math.max( 1, Math.round( settings.dapiThresholdEstimationVoxelSize / settings.workingVoxelSize ) );
 
+		final CoarseIntensities coarseIntensities = CoarseIntensities.compute( dna, blockSize );
 
+		switch ( settings.dapiThresholdEstimator )
+		{
+			case SpindleMorphometrySettings.THRESHOLD_HALF_PERCENTILE:
+				return coarseIntensities.getPercentile( settings.dapiThresholdPercentile ) / 2.0;
+			case SpindleMorphometrySettings.THRESHOLD_OTSU:
+				return coarseIntensities.getOtsuThreshold( 256 );
+			case SpindleMorphometrySettings.THRESHOLD_HALF_MAXIMUM:
+			default:
+				return coarseIntensities.getMaximum() / 2.0;
+		}
 	}
 
 	public void drawTransformedPoint( AffineTransform3D alignmentTransform, RandomAccessibleInterval< T > interestPointsImage, double[] point, int value )
@@ -318,7 +425,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		return objectMeasurements;
 	}
 
-	public RandomAccessibleInterval< BitType > createProcessedMetaPhasePlate( RandomAccessibleInterval< BitType > mask, Img< BitType > metaphasePlate )
+	public RandomAccessibleInterval< BitType > createProcessedMetaPhasePlate( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< BitType > metaphasePlate )
 	{
 		Utils.log( "Perform morphological filtering on dapi mask..." );
 
@@ -347,9 +454,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 					+ File.separator
 					+ title + ".tiff";
 
-			new File(path).getParentFile().mkdirs();
-
-			IJ.saveAsTiff( ImageJFunctions.wrap( new Projection( transformedDapiView, d ).maximum(), title ), path );
+			context.getImageWriter().saveAsTiff( ImageJFunctions.wrap( new Projection( transformedDapiView, d ).maximum(), title ), path );
 		}
 	}
 
@@ -362,10 +467,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 					+ File.separator
 					+ imagePlus.getTitle() + ".tiff";
 
-		new File( path ).getParentFile().mkdirs();
-
-		Utils.log( "Saving: " + path );
-		IJ.saveAsTiff( imagePlus, path );
+		context.getImageWriter().saveAsTiff( imagePlus, path );
 
 	}
 
@@ -409,7 +511,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		}
 	}
 
-	public static double[] getLeftAndRightMaxLocs( CoordinatesAndValues tubulinProfile, ArrayList< Double > tubulinProfileAbsoluteDerivative )
+	public static double[] getLeftAndRightMaxLocs( CoordinatesAndValues tubulinProfile, double[] tubulinProfileAbsoluteDerivative )
 	{
 		double[] rangeMinMax = new double[ 2 ];
 		double[] maxLocs = new double[ 2 ];
@@ -417,17 +519,17 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 		// left
 		rangeMinMax[ 0 ] = - Double.MAX_VALUE;
 		rangeMinMax[ 1 ] = 0;
-		maxLocs[ 1 ] = Utils.computeMaxLoc( tubulinProfile.coordinates, tubulinProfileAbsoluteDerivative, rangeMinMax );
+		maxLocs[ 1 ] = Utils.computeMaxLoc( tubulinProfile.getCoordinates(), tubulinProfileAbsoluteDerivative, rangeMinMax );
 
 		// right
 		rangeMinMax[ 0 ] = 0;
 		rangeMinMax[ 1 ] = Double.MAX_VALUE;
-		maxLocs[ 0 ] = Utils.computeMaxLoc( tubulinProfile.coordinates, tubulinProfileAbsoluteDerivative, rangeMinMax );
+		maxLocs[ 0 ] = Utils.computeMaxLoc( tubulinProfile.getCoordinates(), tubulinProfileAbsoluteDerivative, rangeMinMax );
 
 		return maxLocs;
 	}
 
-	public static double[] getLeftMaxAndRightMinLoc( ArrayList< Double > coordinates, ArrayList< Double > derivative )
+	public static double[] getLeftMaxAndRightMinLoc( double[] coordinates, double[] derivative )
 	{
 		double[] rangeMinMax = new double[ 2 ];
 		double[] maxLocs = new double[ 2 ];
@@ -451,7 +553,7 @@ public class SpindleMorphometry  < T extends RealType< T > & NativeType< T > >
 	{
 		Utils.log( "Creating mask...");
 
-		RandomAccessibleInterval< BitType > mask = Converters.convert( downscaled, ( i, o ) -> o.set( i.getRealDouble() > threshold ? true : false ), new BitType() );
+		RandomAccessibleInterval< BitType > mask = Thresholding.createMask( downscaled, threshold );
 
 		mask = opService.morphology().fillHoles( mask );
 
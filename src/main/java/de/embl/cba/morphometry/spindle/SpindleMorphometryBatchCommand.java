@@ -0,0 +1,250 @@
+package de.embl.cba.morphometry.spindle;
+
+import de.embl.cba.morphometry.AsyncLogger;
+import de.embl.cba.morphometry.StageProfiler;
+import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.measurements.Measurements;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ops.OpService;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+@Plugin(type = Command.class, menuPath = "Plugins>Morphometry>Spindle Morphometry Batch", headless = true )
+public class SpindleMorphometryBatchCommand< R extends RealType< R > & NativeType< R > > implements Command
+{
+	public static final String FILE_NAME = "File_Name";
+	public static final String TABLE_FILE_NAME = "spindle-morphometry.txt";
+
+	@Parameter
+	public OpService opService;
+
+	@Parameter ( style = "directory" )
+	public File inputDirectory;
+
+	@Parameter ( label = "File name regular expression" )
+	public String fileNameRegExp = ".*\\.tif";
+
+	@Parameter ( style = "directory" )
+	public File outputDirectory;
+
+	@Parameter
+	double dapiMaskErosion = new SpindleMorphometrySettings().erosionOfDapiMaskInCalibratedUnits;
+
+	@Parameter
+	public long dapiChannelIndexOneBased = 2;
+
+	@Parameter
+	public long tubulinChannelIndexOneBased = 1;
+
+	@Parameter ( choices = {
+			SpindleMorphometrySettings.OUTPUT_MEASUREMENTS,
+			SpindleMorphometrySettings.OUTPUT_PROJECTIONS,
+			SpindleMorphometrySettings.OUTPUT_FULL } )
+	public String outputProfile = SpindleMorphometrySettings.OUTPUT_MEASUREMENTS;
+
+	@Parameter ( min = "1" )
+	public int numWorkers = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Files to be processed; if null, all files in the inputDirectory matching the fileNameRegExp are processed.
+	 */
+	public List< File > inputFiles;
+
+	private final ConcurrentLinkedQueue< SpindleMorphometryContext > contexts = new ConcurrentLinkedQueue<>();
+
+	private final ThreadLocal< SpindleMorphometryContext > threadContext = ThreadLocal.withInitial( () -> {
+		final SpindleMorphometryContext context = new SpindleMorphometryContext();
+		contexts.add( context );
+		return context;
+	} );
+
+	public void run()
+	{
+		final List< File > files = getInputFiles();
+
+		Utils.log( "Processing " + files.size() + " files with " + numWorkers + " workers..." );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numWorkers );
+
+		final ArrayList< Future< HashMap< Integer, Map< String, Object > > > > futures = new ArrayList<>();
+
+		for ( File file : files )
+		{
+			futures.add( executorService.submit( () -> processFile( file ) ) );
+		}
+
+		final ArrayList< HashMap< Integer, Map< String, Object > > > measurementsFileList = new ArrayList<>();
+
+		for ( int i = 0; i < files.size(); ++i )
+		{
+			try
+			{
+				measurementsFileList.add( futures.get( i ).get() );
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				Utils.log( "[ERROR] Could not process " + files.get( i ) + ": " + e.getCause() );
+				measurementsFileList.add( null );
+			}
+		}
+
+		executorService.shutdown();
+
+		for ( SpindleMorphometryContext context : contexts )
+		{
+			context.close();
+		}
+
+		final File tableFile = new File( outputDirectory, TABLE_FILE_NAME );
+		Measurements.saveMeasurements( tableFile, asTableRows( files, measurementsFileList ) );
+
+		Utils.log( "Done!" );
+	}
+
+	private List< File > getInputFiles()
+	{
+		if ( inputFiles != null ) return inputFiles;
+
+		final File[] files = inputDirectory.listFiles( ( dir, name ) -> name.matches( fileNameRegExp ) );
+
+		if ( files == null )
+		{
+			Utils.log( "[ERROR] Could not list files in " + inputDirectory );
+			return new ArrayList<>();
+		}
+
+		Arrays.sort( files );
+
+		return Arrays.asList( files );
+	}
+
+	private HashMap< Integer, Map< String, Object > > processFile( File file )
+	{
+		final String outputFilePathStump = new File( outputDirectory, file.getName() ).getAbsolutePath();
+
+		AsyncLogger.beginContext( outputFilePathStump + ".log.txt", AsyncLogger.getContext().getLevel() );
+		StageProfiler.begin( file.getName() );
+
+		try
+		{
+			return analyzeFile( file );
+		}
+		finally
+		{
+			StageProfiler.end().saveReport( outputFilePathStump );
+			AsyncLogger.endContext();
+		}
+	}
+
+	private HashMap< Integer, Map< String, Object > > analyzeFile( File file )
+	{
+		Utils.log( "Analyzing: " + file );
+
+		StageProfiler.start( "Reading" );
+		final ImagePlus imagePlus = IJ.openImage( file.toString() );
+		StageProfiler.stop( "Reading" );
+
+		if ( imagePlus == null )
+		{
+			throw new RuntimeException( "Could not open image: " + file );
+		}
+
+		final SpindleMorphometrySettings< R > settings = new SpindleMorphometrySettings<>();
+		SpindleMorphometryCommand.setDefaultSettings( settings );
+		SpindleMorphometryCommand.setSettingsFromImagePlus( settings, imagePlus );
+		settings.showIntermediateResults = false;
+		settings.outputDirectory = outputDirectory;
+		settings.outputProfile = outputProfile;
+		settings.erosionOfDapiMaskInCalibratedUnits = dapiMaskErosion;
+
+		final RandomAccessibleInterval< R > rai = ImageJFunctions.wrapReal( imagePlus );
+
+		settings.dapiImage = Views.hyperSlice( rai, 2, dapiChannelIndexOneBased - 1 );
+		settings.tubulinImage = Views.hyperSlice( rai, 2, tubulinChannelIndexOneBased - 1 );
+
+		final SpindleMorphometry< R > morphometry = new SpindleMorphometry<>( settings, opService, threadContext.get() );
+		morphometry.run();
+
+		// failed writes thus fail this file, rather than the next file of this worker
+		StageProfiler.start( "Awaiting image writes" );
+		threadContext.get().getImageWriter().awaitPendingWrites();
+		StageProfiler.stop( "Awaiting image writes" );
+
+		return morphometry.getObjectMeasurements();
+	}
+
+	/**
+	 * One row per object and file; the columns are the union of all measurement names.
+	 * Files that could not be processed are omitted.
+	 */
+	private static ArrayList< String > asTableRows(
+			List< File > files,
+			ArrayList< HashMap< Integer, Map< String, Object > > > measurementsFileList )
+	{
+		final LinkedHashSet< String > measurementNames = new LinkedHashSet<>();
+
+		for ( HashMap< Integer, Map< String, Object > > measurements : measurementsFileList )
+		{
+			if ( measurements == null ) continue;
+			for ( Map< String, Object > objectMeasurements : measurements.values() )
+			{
+				measurementNames.addAll( objectMeasurements.keySet() );
+			}
+		}
+
+		final ArrayList< String > lines = new ArrayList<>();
+
+		final StringBuilder header = new StringBuilder( FILE_NAME + "\tObject_Label" );
+		for ( String measurementName : measurementNames )
+		{
+			header.append( "\t" ).append( measurementName );
+		}
+		lines.add( header.toString() );
+
+		for ( int i = 0; i < files.size(); ++i )
+		{
+			final HashMap< Integer, Map< String, Object > > measurements = measurementsFileList.get( i );
+
+			if ( measurements == null ) continue;
+
+			for ( int label : measurements.keySet() )
+			{
+				final Map< String, Object > measurementsMap = measurements.get( label );
+
+				final StringBuilder values = new StringBuilder( files.get( i ).getName() );
+				values.append( "\t" ).append( String.format( "%05d", label ) );
+
+				for ( String measurementName : measurementNames )
+				{
+					values.append( "\t" ).append( measurementsMap.get( measurementName ) );
+				}
+
+				lines.add( values.toString() );
+			}
+		}
+
+		return lines;
+	}
+
+}
@@ -1,5 +1,6 @@
 package de.embl.cba.morphometry.spindle;
 
+import de.embl.cba.morphometry.StageProfiler;
 import de.embl.cba.morphometry.Utils;
 import de.embl.cba.morphometry.measurements.Measurements;
 import de.embl.cba.tables.InteractiveTablePanel;
@@ -59,6 +60,12 @@ public class SpindleMorphometryCommand< R extends RealType< R > > implements Com
 	@Parameter
 	public long tubulinChannelIndexOneBased = 1;
 
+	@Parameter ( choices = {
+			SpindleMorphometrySettings.OUTPUT_MEASUREMENTS,
+			SpindleMorphometrySettings.OUTPUT_PROJECTIONS,
+			SpindleMorphometrySettings.OUTPUT_FULL } )
+	public String outputProfile = settings.outputProfile;
+
 	@Parameter
 	public boolean showIntermediateResults = settings.showIntermediateResults;
 
@@ -71,7 +78,15 @@ public class SpindleMorphometryCommand< R extends RealType< R > > implements Com
 
 	private void setSettingsFromUI()
 	{
+		setDefaultSettings( settings );
 		settings.showIntermediateResults = showIntermediateResults;
+		settings.outputDirectory = outputDirectory;
+		settings.outputProfile = outputProfile;
+		settings.erosionOfDapiMaskInCalibratedUnits = dapiMaskErosion;
+	}
+
+	static void setDefaultSettings( SpindleMorphometrySettings settings )
+	{
 		settings.workingVoxelSize = 0.25;
 		settings.maxShortAxisDist = 6;
 		settings.derivativeDelta = 1.0;
@@ -79,15 +94,47 @@ public class SpindleMorphometryCommand< R extends RealType< R > > implements Com
 		settings.watershedSeedsLocalMaximaDistanceThreshold = 1.0;
 		settings.watershedSeedsGlobalDistanceThreshold = 2.0;
 		settings.interestPointsRadius = 0.5;
-		settings.outputDirectory = outputDirectory;
-		settings.erosionOfDapiMaskInCalibratedUnits = dapiMaskErosion;
 	}
 
 	private void processFile( File file )
 	{
+		StageProfiler.begin( file.getName() );
+
+		final SpindleMorphometryContext context = new SpindleMorphometryContext();
+		final HashMap<Integer, Map< String, Object > > objectMeasurements;
+
+		try
+		{
+			objectMeasurements = analyzeFile( file, context );
+		}
+		finally
+		{
+			try
+			{
+				context.close();
+			}
+			finally
+			{
+				final StageProfiler profiler = StageProfiler.end();
+				if ( outputDirectory != null ) profiler.saveReport( new File( outputDirectory, file.getName() ).getAbsolutePath() );
+			}
+		}
+
+		// TODO: get rid of genericTable
+		final GenericTable genericTable = Measurements.createGenericTable( objectMeasurements );
+		final InteractiveTablePanel interactiveTablePanel = new InteractiveTablePanel( genericTable );
+
+		Utils.log( "Done!" );
+
+	}
+
+	private HashMap< Integer, Map< String, Object > > analyzeFile( File file, SpindleMorphometryContext context )
+	{
+		StageProfiler.start( "Reading" );
 		final ImagePlus imagePlus = IJ.openImage( file.toString() );
+		StageProfiler.stop( "Reading" );
 
-		setSettingsFromImagePlus( imagePlus );
+		setSettingsFromImagePlus( settings, imagePlus );
 
 		final RandomAccessibleInterval< R > rai = ImageJFunctions.wrapReal( imagePlus );
 
@@ -97,20 +144,13 @@ public class SpindleMorphometryCommand< R extends RealType< R > > implements Com
 		settings.dapiImage = dapi;
 		settings.tubulinImage = tubulin;
 
-		SpindleMorphometry morphometry = new SpindleMorphometry( settings, opService );
+		SpindleMorphometry morphometry = new SpindleMorphometry( settings, opService, context );
 		morphometry.run();
 
-		final HashMap<Integer, Map< String, Object > > objectMeasurements = morphometry.getObjectMeasurements();
-
-		// TODO: get rid of genericTable
-		final GenericTable genericTable = Measurements.createGenericTable( objectMeasurements );
-		final InteractiveTablePanel interactiveTablePanel = new InteractiveTablePanel( genericTable );
-
-		Utils.log( "Done!" );
-
+		return morphometry.getObjectMeasurements();
 	}
 
-	private void setSettingsFromImagePlus( ImagePlus imagePlus )
+	static void setSettingsFromImagePlus( SpindleMorphometrySettings settings, ImagePlus imagePlus )
 	{
 		settings.inputCalibration = Utils.getCalibration( imagePlus );
 		settings.imagePlusCalibration = imagePlus.getCalibration();
@@ -0,0 +1,119 @@
+package de.embl.cba.morphometry.spindle;
+
+import de.embl.cba.morphometry.AsyncImageWriter;
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.HashMap;
+
+/**
+ * Scratch images that are reused across consecutive {@link SpindleMorphometry} runs.
+ *
+ * A buffer is only reallocated if it is too small (or of another type), thus images
+ * of varying size, e.g. cropped around an object, can be recycled instead of being allocated per file.
+ * A context must only be used by one thread at a time, and the images of one run
+ * are overwritten by the next run.
+ *
+ * The output images are saved by the context's {@link AsyncImageWriter};
+ * pending writes are awaited before any buffer is handed out again.
+ */
+public class SpindleMorphometryContext
+{
+	private final HashMap< String, ArrayImg< ?, ? > > buffers = new HashMap<>();
+	private final AsyncImageWriter imageWriter = new AsyncImageWriter();
+
+	public AsyncImageWriter getImageWriter()
+	{
+		return imageWriter;
+	}
+
+	/**
+	 * @param name
+	 * @param source
+	 * @return copy of the source, with the same origin, backed by the buffer of the given name
+	 */
+	public < T extends NativeType< T > >
+	RandomAccessibleInterval< T > copyIntoBuffer( String name, RandomAccessibleInterval< T > source )
+	{
+		final RandomAccessibleInterval< T > copy = Transforms.getWithAdjustedOrigin( source, getBuffer( name, source ) );
+		LoopBuilder.setImages( copy, source ).forEachPixel( ( c, o ) -> c.set( o ) );
+		return copy;
+	}
+
+	/**
+	 * @param name
+	 * @param template
+	 * @return zeroed image with the dimensions, origin and type of the template, backed by the buffer of the given name
+	 */
+	public < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > zeroedBuffer( String name, RandomAccessibleInterval< T > template )
+	{
+		final RandomAccessibleInterval< T > buffer = getBuffer( name, template );
+		for ( T t : Views.iterable( buffer ) ) t.setZero();
+		return Transforms.getWithAdjustedOrigin( template, buffer );
+	}
+
+	private < T extends NativeType< T > >
+	RandomAccessibleInterval< T > getBuffer( String name, RandomAccessibleInterval< T > template )
+	{
+		imageWriter.awaitPendingWrites();
+
+		final T type = Util.getTypeFromInterval( template );
+		final long[] dimensions = Intervals.dimensionsAsLongArray( template );
+
+		ArrayImg< ?, ? > buffer = buffers.get( name );
+
+		if ( buffer == null
+				|| buffer.numDimensions() != dimensions.length
+				|| ! buffer.firstElement().getClass().equals( type.getClass() ) )
+		{
+			buffer = new ArrayImgFactory<>( type ).create( dimensions );
+			buffers.put( name, buffer );
+		}
+		else if ( ! fits( buffer, dimensions ) )
+		{
+			final long[] grownDimensions = Intervals.dimensionsAsLongArray( buffer );
+			for ( int d = 0; d < dimensions.length; ++d )
+			{
+				grownDimensions[ d ] = Math.max( grownDimensions[ d ], dimensions[ d ] );
+			}
+
+			buffer = new ArrayImgFactory<>( type ).create( grownDimensions );
+			buffers.put( name, buffer );
+		}
+
+		return Views.interval( ( ArrayImg< T, ? > ) buffer, new FinalInterval( dimensions ) );
+	}
+
+	private static boolean fits( ArrayImg< ?, ? > buffer, long[] dimensions )
+	{
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			if ( buffer.dimension( d ) < dimensions[ d ] ) return false;
+		}
+
+		return true;
+	}
+
+	public void clear()
+	{
+		buffers.clear();
+	}
+
+	/**
+	 * Waits for all pending writes and stops the writer thread.
+	 */
+	public void close()
+	{
+		imageWriter.close();
+	}
+}
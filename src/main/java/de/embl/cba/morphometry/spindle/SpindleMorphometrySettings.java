@@ -12,6 +12,14 @@ public class SpindleMorphometrySettings <T extends RealType<T> & NativeType< T >
 	public static final String MANUAL_THRESHOLD = "Manual threshold";
 	public static final String HUANG_AUTO_THRESHOLD = "Huang auto threshold";
 
+	public static final String THRESHOLD_HALF_MAXIMUM = "Half maximum";
+	public static final String THRESHOLD_HALF_PERCENTILE = "Half percentile";
+	public static final String THRESHOLD_OTSU = "Otsu";
+
+	public static final String OUTPUT_MEASUREMENTS = "Measurements only";
+	public static final String OUTPUT_PROJECTIONS = "Measurements and projections";
+	public static final String OUTPUT_FULL = "Measurements and volumes";
+
 	// all spatial values are in micrometer
 	// morphometry length: 420
 	// morphometry width: 160
@@ -47,11 +55,15 @@ public class SpindleMorphometrySettings <T extends RealType<T> & NativeType< T >
 	public double maxShortAxisDist;
 	public double interestPointsRadius;
 	public File outputDirectory;
+	public String outputProfile = OUTPUT_FULL;
 	public String inputDataSetName;
 	public double derivativeDelta;
 
 	public double minimalMetaphasePlateVolumeInCalibratedUnits = 5; // um^3
 	public double centralObjectRegionToleranceInCalibratedUnits = 3; // um
 	public double erosionOfDapiMaskInCalibratedUnits = 1.0; // um
+	public double dapiThresholdEstimationVoxelSize = 3.0; // um
+	public String dapiThresholdEstimator = THRESHOLD_HALF_MAXIMUM;
+	public double dapiThresholdPercentile = 99.0;
 	public Calibration imagePlusCalibration;
 }
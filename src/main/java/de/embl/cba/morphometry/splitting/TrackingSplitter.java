@@ -1,15 +1,20 @@
 package de.embl.cba.morphometry.splitting;
 
 import de.embl.cba.morphometry.Algorithms;
+import de.embl.cba.morphometry.StageProfiler;
 import de.embl.cba.morphometry.Utils;
 import de.embl.cba.morphometry.measurements.Measurements;
 import de.embl.cba.morphometry.microglia.MicrogliaTrackingSettings;
+import de.embl.cba.morphometry.regions.ConnectedComponentLabeling;
+import de.embl.cba.morphometry.regions.RunLengthEncodedLabelImg;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.NonBlockingGenericDialog;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegion;
@@ -38,6 +43,9 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 	private ArrayList< RandomAccessibleInterval< BitType > > splitMasks;
 	final MicrogliaTrackingSettings settings;
 
+	private ImagePlus intensitiesImp;
+	private ImagePlus labelImagePlus;
+
 	public TrackingSplitter( ArrayList< RandomAccessibleInterval< BitType > > masks,
 							 ArrayList< RandomAccessibleInterval< T > > intensities,
 							 MicrogliaTrackingSettings settings )
@@ -57,12 +65,14 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 
 		splitMasks = new ArrayList<>( );
 
+		StageProfiler.start( "Splitting" );
 
 		/**
 		 * Process first time-point
 		 */
 
 		Utils.log( "\nRunning ShapeAndIntensitySplitter on frame " + settings.tMin );
+		StageProfiler.start( "First frame" );
 		final ShapeAndIntensitySplitter splitter = new ShapeAndIntensitySplitter( masks.get( t ), intensities.get( t ), settings );
 		splitter.run();
 
@@ -73,14 +83,22 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 		if ( settings.manualSegmentationCorrectionOfFirstFrame )
 		{
 			IJ.run("Brightness/Contrast...");
-			splitMasks.add( getManuallyCorrectedMask( splitter.getSplitMask(), t ) );
+			StageProfiler.start( "Manual correction" );
+			splitMasks.add( asRunLengthEncodedMask( getManuallyCorrectedMask( splitter.getSplitMask(), t ) ) );
+			StageProfiler.stop( "Manual correction" );
 		}
 		else
 		{
-			splitMasks.add( splitter.getSplitMask() );
+			splitMasks.add( asRunLengthEncodedMask( splitter.getSplitMask() ) );
 		}
 
-		nextId = Utils.getNumObjects( splitMasks.get( tMin ) );
+		final ConnectedComponentLabeling< BitType > connectedComponentLabeling =
+				new ConnectedComponentLabeling<>( splitMasks.get( tMin ), ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		connectedComponentLabeling.run();
+
+		nextId = connectedComponentLabeling.getNumLabels();
+
+		StageProfiler.stop( "First frame" );
 
 		boolean showSplittingAttempts = false;
 
@@ -89,12 +107,13 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 		 * Process subsequent time-points
 		 */
 
-		RandomAccessibleInterval< IntType > previousLabeling = Utils.asImgLabeling( splitMasks.get( tMin ) ).getSource();
+		RandomAccessibleInterval< IntType > previousLabeling = connectedComponentLabeling.getImgLabeling().getSource();
 
 		for ( t = tMin + 1; t <= tMax; ++t )
 		{
 
 			Utils.log( "\nProcessing frame " + ( t + 1 ) );
+			StageProfiler.start( "Subsequent frames" );
 
 			final ImgLabeling< Integer, IntType > currentImgLabeling = Utils.asImgLabeling( masks.get( t ) );
 			RandomAccessibleInterval< IntType > currentLabeling = currentImgLabeling.getSource();
@@ -116,26 +135,57 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 
 			if ( settings.manualSegmentationCorrectionOfAllFrames )
 			{
+				StageProfiler.start( "Manual correction" );
 				splitMask = getManuallyCorrectedMask( splitMask, t );
+				StageProfiler.stop( "Manual correction" );
 			}
 
-			splitMasks.add( splitMask );
+			splitMasks.add( asRunLengthEncodedMask( splitMask ) );
 
 			previousLabeling = Utils.asImgLabeling( splitMask ).getSource();
 
+			StageProfiler.stop( "Subsequent frames" );
 		}
+
+		StageProfiler.stop( "Splitting" );
 	}
 
+	/**
+	 * Keeps only the runs of the mask, such that long movies fit into memory.
+	 * The returned mask is read-only.
+	 */
+	private static RandomAccessibleInterval< BitType > asRunLengthEncodedMask( RandomAccessibleInterval< BitType > mask )
+	{
+		final RunLengthEncodedLabelImg runs = RunLengthEncodedLabelImg.encode( mask );
+		return Converters.convert( ( RandomAccessibleInterval< IntType > ) runs, ( i, o ) -> o.set( i.get() != 0 ), new BitType() );
+	}
+
+	/**
+	 * The intensity movie and the label mask window are created once and reused for all frames;
+	 * per frame, only the label mask of the current frame is created.
+	 * Both are closed once no further frame is to be corrected.
+	 */
 	public RandomAccessibleInterval< BitType > getManuallyCorrectedMask( RandomAccessibleInterval< BitType > mask, int t )
 	{
-		final ImagePlus intensitiesImp = Utils.createIJ1Movie( intensities, "intensities" );
-		intensitiesImp.show();
+		if ( intensitiesImp == null || intensitiesImp.getWindow() == null )
+		{
+			intensitiesImp = Utils.createIJ1Movie( intensities, "intensities" );
+			intensitiesImp.show();
+		}
 		intensitiesImp.setT( t + 1 );
 		intensitiesImp.updateImage();
 		//intensitiesImp.updateAndDraw();
 
 		final RandomAccessibleInterval< IntType > indexImg = Utils.asImgLabeling( mask ).getIndexImg();
-		ImagePlus labelImagePlus = Utils.asLabelImagePlus( indexImg );
+		if ( labelImagePlus == null )
+		{
+			labelImagePlus = Utils.asLabelImagePlus( indexImg );
+		}
+		else
+		{
+			labelImagePlus.setProcessor( Utils.asImageProcessor( indexImg ) );
+			labelImagePlus.setLut( Utils.getGoldenAngleLUT() );
+		}
 		labelImagePlus.setTitle( "Label mask of frame " + ( t + 1 ) );
 		labelImagePlus.show();
 		IJ.run( labelImagePlus, "Enhance Contrast", "saturated=0.35");
@@ -152,10 +202,24 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 			settings.manualSegmentationCorrectionOfAllFrames = false;
 		}
 
-		intensitiesImp.close();
 		labelImagePlus.hide();
 
-		return Utils.asMask( (RandomAccessibleInterval) ImageJFunctions.wrapReal( labelImagePlus ) );
+		final RandomAccessibleInterval< BitType > correctedMask = Utils.asMask( (RandomAccessibleInterval) ImageJFunctions.wrapReal( labelImagePlus ) );
+
+		if ( ! settings.manualSegmentationCorrectionOfAllFrames || t == masks.size() - 1 )
+		{
+			closeManualCorrectionImages();
+		}
+
+		return correctedMask;
+	}
+
+	private void closeManualCorrectionImages()
+	{
+		if ( intensitiesImp != null ) intensitiesImp.close();
+		if ( labelImagePlus != null ) labelImagePlus.close();
+		intensitiesImp = null;
+		labelImagePlus = null;
 	}
 
 	public HashMap< Integer, ArrayList< Integer > > getOverlappingObjectLabelsMap( int t, RandomAccessibleInterval< IntType > previousLabeling, ImgLabeling< Integer, IntType > currentImgLabeling, RandomAccessibleInterval< IntType > currentLabeling )
@@ -176,7 +240,7 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 			{
 				if ( overlapSizes.size() > 1 )
 				{
-					Utils.log( "Object at "
+					Utils.debug( "Object at "
 							+ " x = " + ( int ) region.getCenterOfMass().getDoublePosition( 0 )
 							+ " y = " + ( int ) region.getCenterOfMass().getDoublePosition( 1 )
 							+ " overlaps with " + overlapSizes.size() + " objects in previous frame." );
@@ -252,7 +316,7 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 				currentObjectRegion.getLabel(),
 				currentIntensityImage );
 
-		Utils.log( "Object intensity: " + (long) currentObjectIntensity );
+		Utils.debug( "Object intensity: " + (long) currentObjectIntensity );
 
 		final HashMap< Integer, Double > previousIntensities = new HashMap<>();
 
@@ -266,8 +330,8 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 			previousIntensities.put( previousLabel , previousObjectIntensity );
 
 			final double overlapFraction = 1.0 * previousSizes.get( previousLabel ).longValue() / currentObjectRegion.size();
-			Utils.log( "Previous object intensity: " + (long) previousObjectIntensity );
-			Utils.log( "Overlap pixel fraction: " + overlapFraction );
+			Utils.debug( "Previous object intensity: " + (long) previousObjectIntensity );
+			Utils.debug( "Overlap pixel fraction: " + overlapFraction );
 
 			if ( overlapFraction < settings.minimalOverlapFraction ) splitObjects = false;
 
@@ -277,12 +341,12 @@ public class TrackingSplitter< T extends RealType< T > & NativeType< T > >
 
 		final double sumIntensityRatio = currentObjectIntensity / previousIntensitySum;
 
-		Utils.log( "Intensity ratio: " + sumIntensityRatio );
+		Utils.debug( "Intensity ratio: " + sumIntensityRatio );
 
 		if ( sumIntensityRatio < settings.minimalSumIntensityRatio ) splitObjects = false;
 		if ( sumIntensityRatio > settings.maximalSumIntensityRatio ) splitObjects = false;
 
-		Utils.log( "Split objects: " + splitObjects );
+		Utils.debug( "Split objects: " + splitObjects );
 
 		return splitObjects;
 	}
@@ -0,0 +1,49 @@
+package de.embl.cba.morphometry.synthetic;
+
+public class SyntheticDataSettings
+{
+	public static final String BLOBS = "Blobs";
+	public static final String BRANCHED = "Branched";
+
+	public long seed = 42;
+
+	// intensities, shared by all generators
+	public double backgroundIntensity = 10;
+	public double foregroundIntensity = 200;
+	public double noiseSigma = 10;
+
+	// microglia movie; spatial values are in pixels
+	public long movieWidth = 512;
+	public long movieHeight = 512;
+	public int numFrames = 50;
+	public int numSlices = 3;
+	public int numChannels = 2;
+	public int microgliaChannelIndexOneBased = 2;
+	public double movieVoxelSize = 0.5; // um
+
+	public int numObjects = 20;
+	public String objectShape = BRANCHED;
+	public double objectRadius = 8;
+	public int numBranches = 4;
+	public double branchLength = 20;
+	public double branchWidth = 1.5;
+	public double maximalSpeed = 2.0; // pixels per frame
+	public double touchingProbability = 0.2;
+	public double divisionProbability = 0.005; // per object and frame
+
+	// embryo; spatial values are in micrometer
+	public double[] embryoCalibration = new double[]{ 2.0, 2.0, 2.0 };
+	public double[] embryoRadii = new double[]{ 210, 80, 80 };
+	public double embryoYawAngleDegrees = 30;
+	public double embryoRollAngleDegrees = 0;
+	public int numDenticleBelts = 10;
+	public double embryoMargin = 20;
+
+	// spindle; spatial values are in micrometer
+	public double[] spindleCalibration = new double[]{ 0.25, 0.25, 1.0 };
+	public double[] spindleImageSize = new double[]{ 40, 40, 20 };
+	public double[] metaphasePlateRadii = new double[]{ 1.0, 5.0, 5.0 };
+	public double spindleLength = 12;
+	public double spindleWidth = 8;
+	public double[] spindleAxis = new double[]{ 1.0, 0.3, 0.1 };
+}
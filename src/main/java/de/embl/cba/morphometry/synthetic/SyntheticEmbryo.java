@@ -0,0 +1,131 @@
+package de.embl.cba.morphometry.synthetic;
+
+import de.embl.cba.morphometry.Utils;
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.util.ArrayList;
+
+/**
+ * 3D Drosophila-like embryo, with a shavenbaby channel and a second channel.
+ *
+ * The embryo is an ellipsoid, rotated in the xy-plane by the yaw angle and around its long axis by the roll angle.
+ * In the shavenbaby channel the denticle belts are bright slabs on the ventral side;
+ * in the other channel the ventral half is brighter than the dorsal half.
+ */
+public class SyntheticEmbryo
+{
+	private final SyntheticDataSettings settings;
+
+	private RandomAccessibleInterval< UnsignedShortType > svb;
+	private RandomAccessibleInterval< UnsignedShortType > other;
+	private double[][] axes;
+
+	public SyntheticEmbryo( SyntheticDataSettings settings )
+	{
+		this.settings = settings;
+	}
+
+	public void run()
+	{
+		Utils.log( "Creating synthetic embryo..." );
+
+		final double[] calibration = settings.embryoCalibration;
+		final double[] radii = settings.embryoRadii;
+		axes = SyntheticImages.createAxes( 3, settings.embryoYawAngleDegrees, settings.embryoRollAngleDegrees );
+
+		final long[] dimensions = new long[ 3 ];
+		final double[] center = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			double extent = 0;
+			for ( int i = 0; i < 3; ++i ) extent += Math.pow( radii[ i ] * axes[ i ][ d ], 2 );
+			extent = Math.sqrt( extent ) + settings.embryoMargin;
+
+			dimensions[ d ] = ( long ) Math.ceil( 2 * extent / calibration[ d ] );
+			center[ d ] = extent;
+		}
+
+		svb = ArrayImgs.unsignedShorts( dimensions );
+		other = ArrayImgs.unsignedShorts( dimensions );
+
+		final double intensity = settings.foregroundIntensity;
+
+		SyntheticImages.drawEllipsoid( svb, calibration, center, radii, axes, 0.3 * intensity );
+		drawDenticleBelts( center, intensity );
+
+		SyntheticImages.drawEllipsoid( other, calibration, center, radii, axes, 0.3 * intensity );
+		final double[] ventralCenter = shift( center, 1, - 0.5 * radii[ 1 ] );
+		final double[] ventralRadii = { 0.9 * radii[ 0 ], 0.5 * radii[ 1 ], 0.9 * radii[ 2 ] };
+		SyntheticImages.drawEllipsoid( other, calibration, ventralCenter, ventralRadii, axes, intensity );
+
+		SyntheticImages.addBackgroundAndNoise( svb, settings.backgroundIntensity, settings.noiseSigma, settings.seed );
+		SyntheticImages.addBackgroundAndNoise( other, settings.backgroundIntensity, settings.noiseSigma, settings.seed + 1 );
+	}
+
+	private void drawDenticleBelts( double[] center, double intensity )
+	{
+		final double[] radii = settings.embryoRadii;
+		final double[] beltRadii = { 3.0, 0.4 * radii[ 1 ], 0.4 * radii[ 2 ] };
+		final int numBelts = settings.numDenticleBelts;
+
+		for ( int b = 0; b < numBelts; ++b )
+		{
+			final double position = numBelts > 1 ? - 0.6 + 1.2 * b / ( numBelts - 1 ) : 0.0;
+			final double[] beltCenter = shift( shift( center, 0, position * radii[ 0 ] ), 1, - 0.8 * radii[ 1 ] );
+			SyntheticImages.drawEllipsoid( svb, settings.embryoCalibration, beltCenter, beltRadii, axes, intensity );
+		}
+	}
+
+	private double[] shift( double[] position, int axis, double distance )
+	{
+		final double[] shifted = position.clone();
+		for ( int d = 0; d < 3; ++d ) shifted[ d ] += distance * axes[ axis ][ d ];
+		return shifted;
+	}
+
+	public RandomAccessibleInterval< UnsignedShortType > getSvb()
+	{
+		return svb;
+	}
+
+	public RandomAccessibleInterval< UnsignedShortType > getOther()
+	{
+		return other;
+	}
+
+	/**
+	 * @return the long axis, the dorso-ventral axis (pointing dorsally) and the left-right axis
+	 */
+	public double[][] getAxes()
+	{
+		return axes;
+	}
+
+	/**
+	 * @return hyperstack with dimension order XYCZ, with the channels at the
+	 * one-based indices given by svbChannelIndexOneBased and otherChannelIndexOneBased
+	 */
+	public ImagePlus asImagePlus( int svbChannelIndexOneBased, int otherChannelIndexOneBased )
+	{
+		final int numChannels = Math.max( svbChannelIndexOneBased, otherChannelIndexOneBased );
+
+		final ArrayList< RandomAccessibleInterval< UnsignedShortType > > channels = new ArrayList<>();
+		for ( int c = 1; c <= numChannels; ++c )
+		{
+			if ( c == svbChannelIndexOneBased ) channels.add( svb );
+			else if ( c == otherChannelIndexOneBased ) channels.add( other );
+			else channels.add( ArrayImgs.unsignedShorts( svb.dimension( 0 ), svb.dimension( 1 ), svb.dimension( 2 ) ) );
+		}
+
+		return SyntheticImages.asImagePlus( channels, settings.embryoCalibration, "synthetic-embryo" );
+	}
+
+	public void saveAsTiff( String path, int svbChannelIndexOneBased, int otherChannelIndexOneBased )
+	{
+		SyntheticImages.saveAsTiff( asImagePlus( svbChannelIndexOneBased, otherChannelIndexOneBased ), path );
+	}
+}
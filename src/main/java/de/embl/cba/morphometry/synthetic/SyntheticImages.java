@@ -0,0 +1,389 @@
+package de.embl.cba.morphometry.synthetic;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.plugin.Duplicator;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+/**
+ * Drawing, noise and output helpers shared by the synthetic data generators,
+ * and images with spherical objects, e.g. for the benchmarks.
+ */
+public abstract class SyntheticImages
+{
+	public static final String UNSIGNED_BYTE = "UnsignedByte";
+	public static final String UNSIGNED_SHORT = "UnsignedShort";
+	public static final String FLOAT = "Float";
+
+	/**
+	 * @param size edge length of the cubic (square) image
+	 * @param numDimensions
+	 * @param density approximate fraction of foreground pixels
+	 * @param radius of the objects, in pixels
+	 * @param seed
+	 * @return label image with randomly placed spheres (disks) with the labels 1 to the number of objects;
+	 * where objects overlap, the larger label is kept
+	 */
+	public static ArrayImg< IntType, ? > createSphereLabelImg( long size, int numDimensions, double density, int radius, long seed )
+	{
+		final long[] dimensions = new long[ numDimensions ];
+		Arrays.fill( dimensions, size );
+
+		final ArrayImg< IntType, ? > labelImg = ArrayImgs.ints( dimensions );
+
+		final double objectVolume = numDimensions == 2 ? Math.PI * radius * radius : 4.0 / 3.0 * Math.PI * radius * radius * radius;
+		final int numObjects = ( int ) Math.max( 1, density * Math.pow( size, numDimensions ) / objectVolume );
+
+		final double[][] axes = createAxes( numDimensions, 0, 0 );
+		final double[] radii = new double[ numDimensions ];
+		Arrays.fill( radii, radius );
+
+		final Random random = new Random( seed );
+		final double[] center = new double[ numDimensions ];
+
+		for ( int label = 1; label <= numObjects; ++label )
+		{
+			for ( int d = 0; d < numDimensions; ++d ) center[ d ] = Math.floor( random.nextDouble() * size );
+			drawEllipsoid( labelImg, center, radii, axes, label );
+		}
+
+		return labelImg;
+	}
+
+	public static ArrayImg< BitType, ? > createMask( RandomAccessibleInterval< ? extends IntegerType< ? > > labelImg )
+	{
+		final ArrayImg< BitType, ? > mask = ArrayImgs.bits( Intervals.dimensionsAsLongArray( labelImg ) );
+		LoopBuilder.setImages( Views.zeroMin( labelImg ), mask ).forEachPixel( ( l, m ) -> m.set( l.getIntegerLong() != 0 ) );
+		return mask;
+	}
+
+	/**
+	 * @param pixelType one of {@link #UNSIGNED_BYTE}, {@link #UNSIGNED_SHORT} and {@link #FLOAT}
+	 * @return the foreground intensity in the mask, plus background and Gaussian noise everywhere,
+	 * as in {@link #addBackgroundAndNoise(RandomAccessibleInterval, double, double, long)}
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	ArrayImg< T, ? > createIntensities(
+			RandomAccessibleInterval< BitType > mask,
+			String pixelType,
+			double foreground,
+			double background,
+			double sigma,
+			long seed )
+	{
+		final T type = createType( pixelType );
+		final ArrayImg< T, ? > intensities = new ArrayImgFactory<>( type ).create( Intervals.dimensionsAsLongArray( mask ) );
+
+		LoopBuilder.setImages( Views.zeroMin( mask ), intensities ).forEachPixel( ( m, i ) -> i.setReal( m.get() ? foreground : 0 ) );
+		addBackgroundAndNoise( intensities, background, sigma, seed );
+
+		return intensities;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static < T extends RealType< T > & NativeType< T > > T createType( String pixelType )
+	{
+		switch ( pixelType )
+		{
+			case UNSIGNED_BYTE: return ( T ) new UnsignedByteType();
+			case UNSIGNED_SHORT: return ( T ) new UnsignedShortType();
+			case FLOAT: return ( T ) new FloatType();
+			default: throw new IllegalArgumentException( "Unknown pixel type: " + pixelType );
+		}
+	}
+
+	/**
+	 * Sets each pixel inside the ellipse (ellipsoid) to the maximum of its current value and the given value.
+	 *
+	 * @param rai
+	 * @param center in pixel coordinates
+	 * @param radii in pixels
+	 * @param axes axes[ i ] is the unit direction of radii[ i ]
+	 * @param value
+	 */
+	public static < T extends RealType< T > >
+	void drawEllipsoid( RandomAccessibleInterval< T > rai, double[] center, double[] radii, double[][] axes, double value )
+	{
+		final double[] calibration = new double[ rai.numDimensions() ];
+		Arrays.fill( calibration, 1.0 );
+
+		drawEllipsoid( rai, calibration, center, radii, axes, value );
+	}
+
+	/**
+	 * As {@link #drawEllipsoid(RandomAccessibleInterval, double[], double[], double[][], double)},
+	 * but with the center and radii in calibrated units, such that rotated ellipsoids can be
+	 * drawn into images with anisotropic voxels.
+	 */
+	public static < T extends RealType< T > >
+	void drawEllipsoid( RandomAccessibleInterval< T > rai, double[] calibration, double[] center, double[] radii, double[][] axes, double value )
+	{
+		final int n = rai.numDimensions();
+
+		final FinalInterval interval = boundingBox( rai, calibration, center, max( radii ) );
+		if ( interval == null ) return;
+
+		final double[] position = new double[ n ];
+		final Cursor< T > cursor = Views.interval( rai, interval ).localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+
+			double sum = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				double projection = 0;
+				for ( int d = 0; d < n; ++d ) projection += ( position[ d ] * calibration[ d ] - center[ d ] ) * axes[ i ][ d ];
+				sum += projection * projection / ( radii[ i ] * radii[ i ] );
+			}
+
+			if ( sum <= 1.0 ) setMax( cursor.get(), value );
+		}
+	}
+
+	/**
+	 * Sets each pixel within the given distance of the line segment
+	 * to the maximum of its current value and the given value.
+	 *
+	 * @param rai
+	 * @param start in pixel coordinates
+	 * @param end in pixel coordinates
+	 * @param radius in pixels
+	 * @param value
+	 */
+	public static < T extends RealType< T > >
+	void drawSegment( RandomAccessibleInterval< T > rai, double[] start, double[] end, double radius, double value )
+	{
+		final int n = rai.numDimensions();
+
+		final double[] center = new double[ n ];
+		final double[] direction = new double[ n ];
+		double length2 = 0;
+		for ( int d = 0; d < n; ++d )
+		{
+			center[ d ] = ( start[ d ] + end[ d ] ) / 2.0;
+			direction[ d ] = end[ d ] - start[ d ];
+			length2 += direction[ d ] * direction[ d ];
+		}
+
+		final double[] calibration = new double[ n ];
+		Arrays.fill( calibration, 1.0 );
+
+		final FinalInterval interval = boundingBox( rai, calibration, center, Math.sqrt( length2 ) / 2.0 + radius );
+		if ( interval == null ) return;
+
+		final double[] position = new double[ n ];
+		final Cursor< T > cursor = Views.interval( rai, interval ).localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+
+			double t = 0;
+			for ( int d = 0; d < n; ++d ) t += ( position[ d ] - start[ d ] ) * direction[ d ];
+			t = length2 > 0 ? Math.max( 0, Math.min( 1, t / length2 ) ) : 0;
+
+			double distance2 = 0;
+			for ( int d = 0; d < n; ++d )
+			{
+				final double delta = position[ d ] - ( start[ d ] + t * direction[ d ] );
+				distance2 += delta * delta;
+			}
+
+			if ( distance2 <= radius * radius ) setMax( cursor.get(), value );
+		}
+	}
+
+	/**
+	 * Adds a constant background and Gaussian noise, clipped to the range of the type.
+	 *
+	 * The image is processed in parallel along its last dimension, with one random generator per
+	 * hyperslice, seeded from the given seed and the slice position, such that the result does not
+	 * depend on the number of threads.
+	 */
+	public static < T extends RealType< T > >
+	void addBackgroundAndNoise( RandomAccessibleInterval< T > rai, double background, double sigma, long seed )
+	{
+		final int lastDimension = rai.numDimensions() - 1;
+		final T type = Views.iterable( rai ).firstElement();
+		final double minValue = type.getMinValue();
+		final double maxValue = type.getMaxValue();
+
+		LongStream.rangeClosed( rai.min( lastDimension ), rai.max( lastDimension ) ).parallel().forEach( position -> {
+
+			final Random random = new Random( seed * 31 + position );
+			final Cursor< T > cursor = Views.flatIterable( Views.hyperSlice( rai, lastDimension, position ) ).cursor();
+
+			while ( cursor.hasNext() )
+			{
+				final T value = cursor.next();
+				final double noisy = value.getRealDouble() + background + sigma * random.nextGaussian();
+				value.setReal( Math.max( minValue, Math.min( maxValue, noisy ) ) );
+			}
+		} );
+	}
+
+	/**
+	 * @param channels 3D images of equal size
+	 * @param calibration voxel size in micrometer
+	 * @param title
+	 * @return a copy of the channels as a hyperstack with dimension order XYCZ
+	 */
+	public static < T extends RealType< T > >
+	ImagePlus asImagePlus( ArrayList< RandomAccessibleInterval< T > > channels, double[] calibration, String title )
+	{
+		RandomAccessibleInterval< T > stack = Views.stack( channels );
+		stack = Views.permute( stack, 2, 3 );
+
+		final ImagePlus imagePlus = new Duplicator().run( ImageJFunctions.wrap( stack, title ) );
+		imagePlus.setTitle( title );
+		imagePlus.setDimensions( channels.size(), ( int ) channels.get( 0 ).dimension( 2 ), 1 );
+		imagePlus.setCalibration( asCalibration( calibration ) );
+
+		return imagePlus;
+	}
+
+	public static Calibration asCalibration( double[] voxelSize )
+	{
+		final Calibration calibration = new Calibration();
+		calibration.pixelWidth = voxelSize[ 0 ];
+		calibration.pixelHeight = voxelSize[ 1 ];
+		calibration.pixelDepth = voxelSize.length > 2 ? voxelSize[ 2 ] : 1.0;
+		calibration.setUnit( "micrometer" );
+		return calibration;
+	}
+
+	public static void saveAsTiff( ImagePlus imagePlus, String path )
+	{
+		new File( path ).getAbsoluteFile().getParentFile().mkdirs();
+		IJ.saveAsTiff( imagePlus, path );
+	}
+
+	/**
+	 * @return unit vectors of a rotation in the xy-plane by the given angle, followed by
+	 * a rotation around the new first axis by the given roll angle (3D only)
+	 */
+	public static double[][] createAxes( int numDimensions, double angleDegrees, double rollAngleDegrees )
+	{
+		final double angle = Math.toRadians( angleDegrees );
+		final double roll = Math.toRadians( rollAngleDegrees );
+
+		if ( numDimensions == 2 )
+		{
+			return new double[][]{
+					{ Math.cos( angle ), Math.sin( angle ) },
+					{ - Math.sin( angle ), Math.cos( angle ) } };
+		}
+
+		final double[] first = { Math.cos( angle ), Math.sin( angle ), 0 };
+		final double[] second = { - Math.sin( angle ), Math.cos( angle ), 0 };
+		final double[] third = { 0, 0, 1 };
+
+		final double[][] axes = new double[ 3 ][ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			axes[ 0 ][ d ] = first[ d ];
+			axes[ 1 ][ d ] = Math.cos( roll ) * second[ d ] + Math.sin( roll ) * third[ d ];
+			axes[ 2 ][ d ] = - Math.sin( roll ) * second[ d ] + Math.cos( roll ) * third[ d ];
+		}
+
+		return axes;
+	}
+
+	/**
+	 * @param direction 3D, need not be normalized
+	 * @return orthonormal axes, where the first one is along the given direction
+	 */
+	public static double[][] createAxes( double[] direction )
+	{
+		final double[][] axes = new double[ 3 ][ 3 ];
+
+		final double norm = Math.sqrt( direction[ 0 ] * direction[ 0 ] + direction[ 1 ] * direction[ 1 ] + direction[ 2 ] * direction[ 2 ] );
+		for ( int d = 0; d < 3; ++d ) axes[ 0 ][ d ] = direction[ d ] / norm;
+
+		// the coordinate axis that is least aligned with the direction
+		final double[] axis = new double[ 3 ];
+		int minD = 0;
+		for ( int d = 1; d < 3; ++d )
+		{
+			if ( Math.abs( axes[ 0 ][ d ] ) < Math.abs( axes[ 0 ][ minD ] ) ) minD = d;
+		}
+		axis[ minD ] = 1;
+
+		cross( axes[ 0 ], axis, axes[ 1 ] );
+		final double norm1 = Math.sqrt( axes[ 1 ][ 0 ] * axes[ 1 ][ 0 ] + axes[ 1 ][ 1 ] * axes[ 1 ][ 1 ] + axes[ 1 ][ 2 ] * axes[ 1 ][ 2 ] );
+		for ( int d = 0; d < 3; ++d ) axes[ 1 ][ d ] /= norm1;
+
+		cross( axes[ 0 ], axes[ 1 ], axes[ 2 ] );
+
+		return axes;
+	}
+
+	private static void cross( double[] a, double[] b, double[] result )
+	{
+		result[ 0 ] = a[ 1 ] * b[ 2 ] - a[ 2 ] * b[ 1 ];
+		result[ 1 ] = a[ 2 ] * b[ 0 ] - a[ 0 ] * b[ 2 ];
+		result[ 2 ] = a[ 0 ] * b[ 1 ] - a[ 1 ] * b[ 0 ];
+	}
+
+	private static < T extends RealType< T > > void setMax( T type, double value )
+	{
+		if ( value > type.getRealDouble() ) type.setReal( Math.min( value, type.getMaxValue() ) );
+	}
+
+	private static FinalInterval boundingBox( RandomAccessibleInterval< ? > rai, double[] calibration, double[] center, double radius )
+	{
+		final int n = rai.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = ( long ) Math.floor( ( center[ d ] - radius ) / calibration[ d ] );
+			max[ d ] = ( long ) Math.ceil( ( center[ d ] + radius ) / calibration[ d ] );
+		}
+
+		final FinalInterval interval = Intervals.intersect( rai, new FinalInterval( min, max ) );
+
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( interval.max( d ) < interval.min( d ) ) return null;
+		}
+
+		return interval;
+	}
+
+	private static double max( double[] values )
+	{
+		double max = - Double.MAX_VALUE;
+		for ( double value : values ) max = Math.max( max, value );
+		return max;
+	}
+}
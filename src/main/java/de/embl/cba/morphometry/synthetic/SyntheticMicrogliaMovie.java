@@ -0,0 +1,347 @@
+package de.embl.cba.morphometry.synthetic;
+
+import de.embl.cba.morphometry.Utils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static de.embl.cba.morphometry.synthetic.SyntheticDataSettings.BRANCHED;
+
+/**
+ * Time-lapse movie of moving, touching and dividing microglia-like objects,
+ * together with the ground truth labels.
+ *
+ * Each object is a disc (soma), optionally with straight branches, performing a random walk.
+ * Objects may be created touching a neighbour and divide into two new objects, which then move apart.
+ * The same settings always produce the same movie.
+ */
+public class SyntheticMicrogliaMovie
+{
+	private final SyntheticDataSettings settings;
+	private final Random random;
+
+	private final ArrayList< RandomAccessibleInterval< UnsignedShortType > > signals;
+	private final ArrayList< RandomAccessibleInterval< IntType > > labelings;
+	private final HashMap< Integer, Integer > parents;
+	private ArrayList< RandomAccessibleInterval< UnsignedShortType > > intensities;
+
+	private int nextLabel = 1;
+
+	private static class MicrogliaObject
+	{
+		int label;
+		double[] position;
+		double[] velocity;
+		double[] branchAngles;
+	}
+
+	public SyntheticMicrogliaMovie( SyntheticDataSettings settings )
+	{
+		this.settings = settings;
+		this.random = new Random( settings.seed );
+
+		signals = new ArrayList<>();
+		labelings = new ArrayList<>();
+		parents = new HashMap<>();
+	}
+
+	public void run()
+	{
+		Utils.log( "Creating synthetic microglia movie with " + settings.numFrames + " frames..." );
+
+		ArrayList< MicrogliaObject > objects = createObjects();
+
+		for ( int t = 0; t < settings.numFrames; ++t )
+		{
+			if ( t > 0 )
+			{
+				move( objects );
+				objects = divide( objects );
+			}
+
+			drawFrame( objects );
+		}
+	}
+
+	/**
+	 * @return 2D frames with background and noise, as used for segmentation and tracking
+	 */
+	public ArrayList< RandomAccessibleInterval< UnsignedShortType > > getIntensities()
+	{
+		if ( intensities == null )
+		{
+			intensities = new ArrayList<>();
+
+			for ( int t = 0; t < signals.size(); ++t )
+			{
+				final ArrayImg< UnsignedShortType, ? > frame = ArrayImgs.unsignedShorts( settings.movieWidth, settings.movieHeight );
+				LoopBuilder.setImages( signals.get( t ), frame ).forEachPixel( ( s, f ) -> f.set( s ) );
+				SyntheticImages.addBackgroundAndNoise( frame, settings.backgroundIntensity, settings.noiseSigma, settings.seed + t );
+				intensities.add( frame );
+			}
+		}
+
+		return intensities;
+	}
+
+	/**
+	 * @return ground truth label frames; where objects overlap the larger label is drawn
+	 */
+	public ArrayList< RandomAccessibleInterval< IntType > > getLabelings()
+	{
+		return labelings;
+	}
+
+	/**
+	 * @return the label of the dividing object for each label that was created by a division
+	 */
+	public HashMap< Integer, Integer > getParents()
+	{
+		return parents;
+	}
+
+	/**
+	 * The objects are drawn into the microglia channel, in focus in the central slice
+	 * and dimmer in the others; all other channels contain background and noise only.
+	 *
+	 * @return hyperstack with dimension order XYCZT, as recorded by the microscope
+	 */
+	public ImagePlus asImagePlus()
+	{
+		final int numChannels = settings.numChannels;
+		final int numSlices = settings.numSlices;
+		final int numFrames = signals.size();
+		final int numPlanes = numChannels * numSlices * numFrames;
+		final int microgliaChannel = settings.microgliaChannelIndexOneBased - 1;
+
+		final short[][] planes = new short[ numPlanes ][];
+
+		IntStream.range( 0, numPlanes ).parallel().forEach( plane -> {
+
+			final int c = plane % numChannels;
+			final int z = ( plane / numChannels ) % numSlices;
+			final int t = plane / ( numChannels * numSlices );
+
+			final double weight = c == microgliaChannel ? getFocusWeight( z ) : 0.0;
+
+			planes[ plane ] = createPlane( signals.get( t ), weight, settings.seed * 31 + plane );
+		} );
+
+		final ImageStack stack = new ImageStack( ( int ) settings.movieWidth, ( int ) settings.movieHeight );
+		for ( short[] plane : planes )
+		{
+			stack.addSlice( new ShortProcessor( ( int ) settings.movieWidth, ( int ) settings.movieHeight, plane, null ) );
+		}
+
+		final ImagePlus imagePlus = new ImagePlus( "synthetic-microglia", stack );
+		imagePlus.setDimensions( numChannels, numSlices, numFrames );
+		imagePlus.setOpenAsHyperStack( true );
+		imagePlus.setCalibration( SyntheticImages.asCalibration( new double[]{ settings.movieVoxelSize, settings.movieVoxelSize, 1.0 } ) );
+
+		return imagePlus;
+	}
+
+	public void saveAsTiff( String path )
+	{
+		SyntheticImages.saveAsTiff( asImagePlus(), path );
+	}
+
+	private double getFocusWeight( int z )
+	{
+		final double distance = z - ( settings.numSlices - 1 ) / 2.0;
+		return Math.exp( - distance * distance / 2.0 );
+	}
+
+	private short[] createPlane( RandomAccessibleInterval< UnsignedShortType > signal, double weight, long seed )
+	{
+		final Random random = new Random( seed );
+		final short[] pixels = new short[ ( int ) ( settings.movieWidth * settings.movieHeight ) ];
+		final Cursor< UnsignedShortType > cursor = Views.flatIterable( signal ).cursor();
+
+		for ( int i = 0; i < pixels.length; ++i )
+		{
+			final double value = weight * cursor.next().getRealDouble()
+					+ settings.backgroundIntensity
+					+ settings.noiseSigma * random.nextGaussian();
+
+			pixels[ i ] = ( short ) Math.max( 0, Math.min( 65535, Math.round( value ) ) );
+		}
+
+		return pixels;
+	}
+
+	private ArrayList< MicrogliaObject > createObjects()
+	{
+		final ArrayList< MicrogliaObject > objects = new ArrayList<>();
+
+		for ( int i = 0; i < settings.numObjects; ++i )
+		{
+			final MicrogliaObject object = new MicrogliaObject();
+			object.label = nextLabel++;
+			object.branchAngles = createBranchAngles();
+
+			if ( ! objects.isEmpty() && random.nextDouble() < settings.touchingProbability )
+			{
+				// place next to the previous object, moving along with it
+				final MicrogliaObject neighbour = objects.get( objects.size() - 1 );
+				final double angle = 2 * Math.PI * random.nextDouble();
+				object.position = new double[]{
+						neighbour.position[ 0 ] + 2 * settings.objectRadius * Math.cos( angle ),
+						neighbour.position[ 1 ] + 2 * settings.objectRadius * Math.sin( angle ) };
+				object.velocity = neighbour.velocity.clone();
+				keepInside( object );
+			}
+			else
+			{
+				object.position = new double[]{
+						settings.objectRadius + random.nextDouble() * ( settings.movieWidth - 2 * settings.objectRadius ),
+						settings.objectRadius + random.nextDouble() * ( settings.movieHeight - 2 * settings.objectRadius ) };
+				object.velocity = new double[ 2 ];
+			}
+
+			objects.add( object );
+		}
+
+		return objects;
+	}
+
+	private double[] createBranchAngles()
+	{
+		if ( ! settings.objectShape.equals( BRANCHED ) ) return new double[ 0 ];
+
+		final double[] angles = new double[ settings.numBranches ];
+		for ( int b = 0; b < angles.length; ++b )
+		{
+			angles[ b ] = 2 * Math.PI * ( b + random.nextDouble() ) / angles.length;
+		}
+		return angles;
+	}
+
+	private void move( ArrayList< MicrogliaObject > objects )
+	{
+		for ( MicrogliaObject object : objects )
+		{
+			double speed = 0;
+			for ( int d = 0; d < 2; ++d )
+			{
+				object.velocity[ d ] += settings.maximalSpeed / 2.0 * random.nextGaussian();
+				speed += object.velocity[ d ] * object.velocity[ d ];
+			}
+
+			speed = Math.sqrt( speed );
+			if ( speed > settings.maximalSpeed )
+			{
+				for ( int d = 0; d < 2; ++d ) object.velocity[ d ] *= settings.maximalSpeed / speed;
+			}
+
+			for ( int d = 0; d < 2; ++d ) object.position[ d ] += object.velocity[ d ];
+
+			for ( int b = 0; b < object.branchAngles.length; ++b )
+			{
+				object.branchAngles[ b ] += 0.1 * random.nextGaussian();
+			}
+
+			keepInside( object );
+		}
+	}
+
+	private ArrayList< MicrogliaObject > divide( ArrayList< MicrogliaObject > objects )
+	{
+		final ArrayList< MicrogliaObject > divided = new ArrayList<>();
+
+		for ( MicrogliaObject object : objects )
+		{
+			if ( random.nextDouble() >= settings.divisionProbability )
+			{
+				divided.add( object );
+				continue;
+			}
+
+			final double angle = 2 * Math.PI * random.nextDouble();
+			final double[] direction = { Math.cos( angle ), Math.sin( angle ) };
+
+			for ( int sign = -1; sign <= 1; sign += 2 )
+			{
+				final MicrogliaObject daughter = new MicrogliaObject();
+				daughter.label = nextLabel++;
+				daughter.branchAngles = object.branchAngles.clone();
+				daughter.position = new double[ 2 ];
+				daughter.velocity = new double[ 2 ];
+
+				for ( int d = 0; d < 2; ++d )
+				{
+					daughter.position[ d ] = object.position[ d ] + sign * 0.6 * settings.objectRadius * direction[ d ];
+					daughter.velocity[ d ] = sign * settings.maximalSpeed * direction[ d ];
+				}
+
+				keepInside( daughter );
+				parents.put( daughter.label, object.label );
+				divided.add( daughter );
+			}
+		}
+
+		return divided;
+	}
+
+	private void keepInside( MicrogliaObject object )
+	{
+		final double[] max = { settings.movieWidth - 1 - settings.objectRadius, settings.movieHeight - 1 - settings.objectRadius };
+
+		for ( int d = 0; d < 2; ++d )
+		{
+			if ( object.position[ d ] < settings.objectRadius )
+			{
+				object.position[ d ] = 2 * settings.objectRadius - object.position[ d ];
+				object.velocity[ d ] = Math.abs( object.velocity[ d ] );
+			}
+			else if ( object.position[ d ] > max[ d ] )
+			{
+				object.position[ d ] = 2 * max[ d ] - object.position[ d ];
+				object.velocity[ d ] = - Math.abs( object.velocity[ d ] );
+			}
+
+			object.position[ d ] = Math.max( settings.objectRadius, Math.min( max[ d ], object.position[ d ] ) );
+		}
+	}
+
+	private void drawFrame( ArrayList< MicrogliaObject > objects )
+	{
+		final ArrayImg< UnsignedShortType, ? > signal = ArrayImgs.unsignedShorts( settings.movieWidth, settings.movieHeight );
+		final ArrayImg< IntType, ? > labeling = ArrayImgs.ints( settings.movieWidth, settings.movieHeight );
+
+		final double[] radii = { settings.objectRadius, settings.objectRadius };
+		final double[][] axes = SyntheticImages.createAxes( 2, 0, 0 );
+
+		for ( MicrogliaObject object : objects )
+		{
+			SyntheticImages.drawEllipsoid( signal, object.position, radii, axes, settings.foregroundIntensity );
+			SyntheticImages.drawEllipsoid( labeling, object.position, radii, axes, object.label );
+
+			for ( double angle : object.branchAngles )
+			{
+				final double[] end = {
+						object.position[ 0 ] + ( settings.objectRadius + settings.branchLength ) * Math.cos( angle ),
+						object.position[ 1 ] + ( settings.objectRadius + settings.branchLength ) * Math.sin( angle ) };
+
+				SyntheticImages.drawSegment( signal, object.position, end, settings.branchWidth, 0.7 * settings.foregroundIntensity );
+				SyntheticImages.drawSegment( labeling, object.position, end, settings.branchWidth, object.label );
+			}
+		}
+
+		signals.add( signal );
+		labelings.add( labeling );
+	}
+}
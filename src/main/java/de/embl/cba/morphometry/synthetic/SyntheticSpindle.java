@@ -0,0 +1,102 @@
+package de.embl.cba.morphometry.synthetic;
+
+import de.embl.cba.morphometry.Utils;
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.util.ArrayList;
+
+/**
+ * 3D mitotic spindle in metaphase, with a DAPI and a tubulin channel.
+ *
+ * The metaphase plate is a flat ellipsoid in the image center, whose shortest axis is the spindle axis.
+ * The spindle is an elongated ellipsoid along the spindle axis, with bright spindle poles at both ends.
+ */
+public class SyntheticSpindle
+{
+	private final SyntheticDataSettings settings;
+
+	private RandomAccessibleInterval< UnsignedShortType > dapi;
+	private RandomAccessibleInterval< UnsignedShortType > tubulin;
+	private double[][] axes;
+
+	public SyntheticSpindle( SyntheticDataSettings settings )
+	{
+		this.settings = settings;
+	}
+
+	public void run()
+	{
+		Utils.log( "Creating synthetic spindle..." );
+
+		final double[] calibration = settings.spindleCalibration;
+		axes = SyntheticImages.createAxes( settings.spindleAxis );
+
+		final long[] dimensions = new long[ 3 ];
+		final double[] center = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			dimensions[ d ] = ( long ) Math.ceil( settings.spindleImageSize[ d ] / calibration[ d ] );
+			center[ d ] = settings.spindleImageSize[ d ] / 2.0;
+		}
+
+		dapi = ArrayImgs.unsignedShorts( dimensions );
+		tubulin = ArrayImgs.unsignedShorts( dimensions );
+
+		final double intensity = settings.foregroundIntensity;
+
+		SyntheticImages.drawEllipsoid( dapi, calibration, center, settings.metaphasePlateRadii, axes, intensity );
+
+		final double[] spindleRadii = { settings.spindleLength / 2.0, settings.spindleWidth / 2.0, settings.spindleWidth / 2.0 };
+		SyntheticImages.drawEllipsoid( tubulin, calibration, center, spindleRadii, axes, 0.5 * intensity );
+
+		final double[] poleRadii = { 1.0, 1.0, 1.0 };
+		for ( int sign = -1; sign <= 1; sign += 2 )
+		{
+			final double[] pole = center.clone();
+			for ( int d = 0; d < 3; ++d ) pole[ d ] += sign * 0.9 * spindleRadii[ 0 ] * axes[ 0 ][ d ];
+			SyntheticImages.drawEllipsoid( tubulin, calibration, pole, poleRadii, axes, intensity );
+		}
+
+		SyntheticImages.addBackgroundAndNoise( dapi, settings.backgroundIntensity, settings.noiseSigma, settings.seed );
+		SyntheticImages.addBackgroundAndNoise( tubulin, settings.backgroundIntensity, settings.noiseSigma, settings.seed + 1 );
+	}
+
+	public RandomAccessibleInterval< UnsignedShortType > getDapi()
+	{
+		return dapi;
+	}
+
+	public RandomAccessibleInterval< UnsignedShortType > getTubulin()
+	{
+		return tubulin;
+	}
+
+	/**
+	 * @return the spindle axis, followed by two axes within the metaphase plate
+	 */
+	public double[][] getAxes()
+	{
+		return axes;
+	}
+
+	/**
+	 * @return hyperstack with dimension order XYCZ; the first channel is the tubulin,
+	 * the second one the DAPI, as expected by the spindle morphometry command
+	 */
+	public ImagePlus asImagePlus()
+	{
+		final ArrayList< RandomAccessibleInterval< UnsignedShortType > > channels = new ArrayList<>();
+		channels.add( tubulin );
+		channels.add( dapi );
+
+		return SyntheticImages.asImagePlus( channels, settings.spindleCalibration, "synthetic-spindle" );
+	}
+
+	public void saveAsTiff( String path )
+	{
+		SyntheticImages.saveAsTiff( asImagePlus(), path );
+	}
+}
@@ -1,18 +1,18 @@
 package de.embl.cba.morphometry.tracking;
 
 import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.regions.ConnectedComponentLabeling;
+import de.embl.cba.morphometry.regions.RunLengthEncodedLabelImg;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
-import net.imglib2.util.Intervals;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.TreeSet;
 
 public class MaximalOverlapTracker< T extends RealType< T > & NativeType< T > >
 {
@@ -37,30 +37,37 @@ public class MaximalOverlapTracker< T extends RealType< T > & NativeType< T > >
 
 		int t = tMin;
 
-		nextId = Utils.getNumObjects( masks.get( t ) );
+		final ConnectedComponentLabeling< BitType > connectedComponentLabeling =
+				new ConnectedComponentLabeling<>( masks.get( tMin ), ConnectedComponents.StructuringElement.FOUR_CONNECTED );
+		connectedComponentLabeling.run();
 
-		RandomAccessibleInterval< IntType > previousLabeling = Utils.asImgLabeling( masks.get( tMin ) ).getSource();
-		LabelRegions< Integer > labelRegions;
+		nextId = connectedComponentLabeling.getNumLabels();
 
-		labelings = initLabelings( masks.get( tMin )  );
+		RunLengthEncodedLabelImg previousLabeling =
+				RunLengthEncodedLabelImg.encode( connectedComponentLabeling.getImgLabeling().getIndexImg() );
+
+		labelings = new ArrayList<>();
+		labelings.add( previousLabeling );
 
 		for ( t = tMin + 1; t <= tMax; ++t )
 		{
-			RandomAccessibleInterval< IntType > currentLabeling = Utils.asImgLabeling( masks.get( t ) ).getSource();
-			RandomAccessibleInterval< IntType > updatedLabeling = ArrayImgs.ints( Intervals.dimensionsAsLongArray( currentLabeling ) );
+			final RunLengthEncodedLabelImg currentLabeling =
+					RunLengthEncodedLabelImg.encode( Utils.asImgLabeling( masks.get( t ) ).getIndexImg() );
 
-			labelRegions = new LabelRegions( Utils.asImgLabeling( currentLabeling ) );
+			final HashMap< Integer, HashMap< Integer, Long > > overlapsPerLabel = currentLabeling.computeOverlaps( previousLabeling );
 
-			for ( LabelRegion< Integer > region : labelRegions )
-			{
-				final HashMap< Integer, Long > overlaps = TrackingUtils.computeOverlaps( previousLabeling, region );
+			final HashMap< Integer, Integer > objectIds = new HashMap<>();
 
-				int objectId = TrackingUtils.computeObjectId( overlaps, nextId );
+			for ( int label : new TreeSet<>( overlapsPerLabel.keySet() ) )
+			{
+				int objectId = TrackingUtils.computeObjectId( overlapsPerLabel.get( label ), nextId );
 
-				Utils.drawObject( updatedLabeling, region, objectId );
+				objectIds.put( label, objectId );
 			}
 
-			labelings.add( updatedLabeling);
+			final RunLengthEncodedLabelImg updatedLabeling = currentLabeling.relabel( objectIds );
+
+			labelings.add( updatedLabeling );
 
 			previousLabeling = updatedLabeling;
 		}
@@ -2,6 +2,8 @@ package de.embl.cba.morphometry.tracking;
 
 import de.embl.cba.morphometry.Utils;
 import de.embl.cba.morphometry.measurements.Measurements;
+import de.embl.cba.morphometry.regions.RegionRaster;
+import de.embl.cba.morphometry.regions.RunLengthEncodedLabelImg;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
@@ -53,7 +55,9 @@ public class Tracker < T extends RealType< T > & NativeType< T > >
 			RandomAccessibleInterval< IntType > currentLabeling = imgLabelings.get( t ).getSource();;
 			RandomAccessibleInterval< IntType > updatedLabeling = ArrayImgs.ints( Intervals.dimensionsAsLongArray( currentLabeling ) );
 
-			labelRegions = new LabelRegions( Utils.asImgLabeling( currentLabeling ) );
+			final ImgLabeling< Integer, IntType > currentImgLabeling = Utils.asImgLabeling( currentLabeling );
+			labelRegions = new LabelRegions( currentImgLabeling );
+			final RegionRaster raster = new RegionRaster( currentImgLabeling );
 
 			for ( LabelRegion< Integer > region : labelRegions )
 			{
@@ -99,10 +103,10 @@ public class Tracker < T extends RealType< T > & NativeType< T > >
 
 				int objectId = computeObjectId( overlaps );
 
-				Utils.drawObject( updatedLabeling, region, objectId );
+				raster.forEachPixel( region, updatedLabeling, pixel -> pixel.set( objectId ) );
 			}
 
-			updatedLabelings.add( updatedLabeling);
+			updatedLabelings.add( RunLengthEncodedLabelImg.encode( updatedLabeling ) );
 
 			previousLabeling = updatedLabeling;
 		}
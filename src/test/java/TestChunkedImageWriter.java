@@ -0,0 +1,108 @@
+import bdv.util.BdvFunctions;
+import de.embl.cba.morphometry.ChunkedImageWriter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes images with the ChunkedImageWriter and reads the blocks back lazily with the N5 reader,
+ * comparing them voxel-wise to the written images.
+ */
+public class TestChunkedImageWriter
+{
+	public static void main( String[] args ) throws IOException
+	{
+		final Random random = new Random( 42 );
+		final String directory = System.getProperty( "java.io.tmpdir" );
+
+		// XYZC stack, with dimensions that are not multiples of the block size
+		final ArrayImg< UnsignedShortType, ? > stack = ArrayImgs.unsignedShorts( 100, 70, 30, 2 );
+		for ( UnsignedShortType value : stack ) value.set( random.nextInt( 65536 ) );
+
+		final String stackXml = directory + File.separator + "chunked-image-writer-stack.xml";
+		new ChunkedImageWriter( new int[]{ 32, 32, 32 }, 4 ).saveChannels( stack, new double[]{ 0.5, 0.5, 2.0 }, "micrometer", stackXml );
+
+		final N5Reader stackReader = new N5FSReader( directory + File.separator + "chunked-image-writer-stack.n5" );
+		for ( int c = 0; c < 2; ++c )
+		{
+			System.out.println( "Stack, channel " + c + ": number of differing voxels: "
+					+ countDifferences( Views.hyperSlice( stack, 3, c ), open( stackReader, c, 0 ) ) );
+		}
+
+		// 2D time series of two float channels
+		final ArrayList< List< ArrayImg< FloatType, ? > > > channels = new ArrayList<>();
+		for ( int c = 0; c < 2; ++c )
+		{
+			final ArrayList< ArrayImg< FloatType, ? > > timepoints = new ArrayList<>();
+			for ( int t = 0; t < 3; ++t )
+			{
+				final ArrayImg< FloatType, ? > plane = ArrayImgs.floats( 67, 13 );
+				for ( FloatType value : plane ) value.set( ( float ) random.nextGaussian() );
+				timepoints.add( plane );
+			}
+			channels.add( timepoints );
+		}
+
+		final String movieXml = directory + File.separator + "chunked-image-writer-movie.xml";
+		new ChunkedImageWriter( new int[]{ 16, 16, 1 }, 4 ).save( channels, new double[]{ 0.5, 0.5 }, "micrometer", movieXml );
+
+		final N5Reader movieReader = new N5FSReader( directory + File.separator + "chunked-image-writer-movie.n5" );
+		for ( int c = 0; c < 2; ++c )
+		{
+			for ( int t = 0; t < 3; ++t )
+			{
+				System.out.println( "Movie, channel " + c + ", time point " + t + ": number of differing pixels: "
+						+ countDifferences( Views.addDimension( channels.get( c ).get( t ), 0, 0 ), open( movieReader, c, t ) ) );
+			}
+		}
+
+		BdvFunctions.show( ( RandomAccessibleInterval ) open( stackReader, 0, 0 ), "stack, channel 0 (lazily read)" );
+	}
+
+	private static RandomAccessibleInterval< ? extends RealType< ? > > open( N5Reader reader, int setup, int timepoint ) throws IOException
+	{
+		final String dataset = "setup" + setup + "/timepoint" + timepoint + "/s0";
+		System.out.println( dataset + ": " + reader.getDatasetAttributes( dataset ).getDataType() );
+		final RandomAccessibleInterval image = N5Utils.open( reader, dataset );
+		return ( RandomAccessibleInterval< ? extends RealType< ? > > ) image;
+	}
+
+	private static long countDifferences(
+			RandomAccessibleInterval< ? extends RealType< ? > > expected,
+			RandomAccessibleInterval< ? extends RealType< ? > > actual )
+	{
+		if ( ! Arrays.equals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( actual ) ) )
+		{
+			System.out.println( "Dimensions differ: " + Arrays.toString( Intervals.dimensionsAsLongArray( actual ) )
+					+ ", expected: " + Arrays.toString( Intervals.dimensionsAsLongArray( expected ) ) );
+			return Intervals.numElements( expected );
+		}
+
+		final Cursor< ? extends RealType< ? > > expectedCursor = Views.flatIterable( expected ).cursor();
+		final Cursor< ? extends RealType< ? > > actualCursor = Views.flatIterable( actual ).cursor();
+
+		long numDifferences = 0;
+		while ( expectedCursor.hasNext() )
+		{
+			if ( expectedCursor.next().getRealDouble() != actualCursor.next().getRealDouble() ) numDifferences++;
+		}
+
+		return numDifferences;
+	}
+}
@@ -0,0 +1,77 @@
+import de.embl.cba.morphometry.regions.ConnectedComponentLabeling;
+import net.imglib2.Cursor;
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegion;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Random;
+
+public class TestConnectedComponentLabeling
+{
+	public static void main( String[] args )
+	{
+		final Random random = new Random( 42 );
+
+		for ( ConnectedComponents.StructuringElement se : ConnectedComponents.StructuringElement.values() )
+		{
+			final ArrayImg< BitType, ? > mask = ArrayImgs.bits( 300, 300, 40 );
+			for ( BitType b : mask ) b.set( random.nextDouble() < 0.3 );
+
+			long start = System.currentTimeMillis();
+			final ConnectedComponentLabeling< BitType > labeling = new ConnectedComponentLabeling<>( mask, se );
+			labeling.run();
+			System.out.println( se + ": block-parallel labeling [ms]: " + ( System.currentTimeMillis() - start ) );
+
+			start = System.currentTimeMillis();
+			final ArrayImg< IntType, ? > reference = ArrayImgs.ints( Intervals.dimensionsAsLongArray( mask ) );
+			final ImgLabeling< Integer, IntType > referenceLabeling = new ImgLabeling<>( reference );
+			ConnectedComponents.labelAllConnectedComponents( mask, referenceLabeling, new LabelGenerator(), se );
+			System.out.println( se + ": imglib2 labeling [ms]: " + ( System.currentTimeMillis() - start ) );
+
+			final int numReferenceLabels = new LabelRegions<>( referenceLabeling ).getExistingLabels().size();
+			System.out.println( "Number of labels: " + labeling.getNumLabels() + ", expected: " + numReferenceLabels );
+
+			// both label in order of first occurrence, thus the index images must be identical
+			final Cursor< IntType > cursor = Views.flatIterable( labeling.getImgLabeling().getIndexImg() ).cursor();
+			final Cursor< IntType > referenceCursor = Views.flatIterable( reference ).cursor();
+			long numDifferences = 0;
+			while ( cursor.hasNext() )
+			{
+				if ( cursor.next().get() != referenceCursor.next().get() ) numDifferences++;
+			}
+			System.out.println( "Number of differing pixels: " + numDifferences );
+
+			final LabelRegions< Integer > labelRegions = new LabelRegions<>( labeling.getImgLabeling() );
+			long numSizeDifferences = 0;
+			for ( LabelRegion< Integer > region : labelRegions )
+			{
+				if ( region.size() != labeling.getSize( region.getLabel() ) ) numSizeDifferences++;
+			}
+			System.out.println( "Number of differing sizes: " + numSizeDifferences );
+		}
+	}
+
+	static class LabelGenerator implements java.util.Iterator< Integer >
+	{
+		int label = 1;
+
+		@Override
+		public boolean hasNext()
+		{
+			return true;
+		}
+
+		@Override
+		public Integer next()
+		{
+			return label++;
+		}
+	}
+}
@@ -1,4 +1,5 @@
 import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMoments;
 import de.embl.cba.morphometry.geometry.ellipsoids.Ellipsoids3DImageSuite;
 import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidMLJ;
 import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidsMLJ;
@@ -41,7 +42,8 @@ public class TestEllipsoidFitting
 
 			final RandomAccessibleInterval aligned = createMLJAligned( mask );
 
-			Ellipsoids3DImageSuite.fitEllipsoid( imagePlus );
+			System.out.println( "3D suite shortest axis: " + Ellipsoids3DImageSuite.fitEllipsoid( imagePlus ).shortestAxis );
+			System.out.println( "Moments shortest axis: " + EllipsoidMoments.compute( mask ).getEllipsoidVectors().shortestAxis );
 
 			System.out.println( "\nDataset (round 2): " + path.toString() );
 
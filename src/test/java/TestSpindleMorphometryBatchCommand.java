@@ -0,0 +1,14 @@
+import de.embl.cba.morphometry.spindle.SpindleMorphometryBatchCommand;
+import net.imagej.ImageJ;
+
+public class TestSpindleMorphometryBatchCommand
+{
+	public static void main( String[] args )
+	{
+		final ImageJ ij = new ImageJ();
+		ij.ui().showUI();
+
+		// invoke the plugin
+		ij.command().run( SpindleMorphometryBatchCommand.class, true );
+	}
+}
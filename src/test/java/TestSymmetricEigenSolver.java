@@ -0,0 +1,50 @@
+import Jama.EigenvalueDecomposition;
+import de.embl.cba.morphometry.geometry.ellipsoids.EllipsoidsMLJ;
+import de.embl.cba.morphometry.geometry.ellipsoids.SymmetricEigenSolver;
+
+import java.util.Random;
+
+public class TestSymmetricEigenSolver
+{
+	public static void main( String[] args )
+	{
+		final Random random = new Random( 42 );
+
+		double maxEigenvalueError = 0;
+		double maxEigenvectorError = 0;
+
+		final double[] eigenvalues = new double[ 3 ];
+		final double[][] eigenvectors = new double[ 3 ][ 3 ];
+
+		for ( int i = 0; i < 100000; ++i )
+		{
+			final double[] moments = new double[ 6 ];
+			for ( int d = 0; d < 6; ++d ) moments[ d ] = random.nextGaussian() * 100;
+
+			// every tenth matrix has a degenerate eigenvalue
+			if ( i % 10 == 0 ) { moments[ 1 ] = moments[ 0 ]; moments[ 3 ] = 0; moments[ 4 ] = 0; moments[ 5 ] = 0; }
+
+			SymmetricEigenSolver.solve3D( moments, eigenvalues, eigenvectors );
+
+			final EigenvalueDecomposition reference = new EigenvalueDecomposition( EllipsoidsMLJ.getMomentsMatrix( moments ) );
+			final double[] referenceEigenvalues = reference.getRealEigenvalues();
+
+			for ( int k = 0; k < 3; ++k )
+			{
+				maxEigenvalueError = Math.max( maxEigenvalueError, Math.abs( eigenvalues[ k ] - referenceEigenvalues[ k ] ) );
+
+				// A v = lambda v
+				final double[][] matrix = EllipsoidsMLJ.getMomentsMatrix( moments ).getArray();
+				for ( int r = 0; r < 3; ++r )
+				{
+					double av = 0;
+					for ( int c = 0; c < 3; ++c ) av += matrix[ r ][ c ] * eigenvectors[ k ][ c ];
+					maxEigenvectorError = Math.max( maxEigenvectorError, Math.abs( av - eigenvalues[ k ] * eigenvectors[ k ][ r ] ) );
+				}
+			}
+		}
+
+		System.out.println( "Maximal eigenvalue difference to Jama: " + maxEigenvalueError );
+		System.out.println( "Maximal residual of A v = lambda v: " + maxEigenvectorError );
+	}
+}
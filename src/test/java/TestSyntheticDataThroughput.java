@@ -0,0 +1,144 @@
+import de.embl.cba.morphometry.Utils;
+import de.embl.cba.morphometry.drosophila.shavenbaby.ShavenBabyRegistration;
+import de.embl.cba.morphometry.drosophila.shavenbaby.ShavenBabyRegistrationSettings;
+import de.embl.cba.morphometry.microglia.MicrogliaTrackingSettings;
+import de.embl.cba.morphometry.segmentation.SimpleSegmenter;
+import de.embl.cba.morphometry.spindle.SpindleMorphometry;
+import de.embl.cba.morphometry.spindle.SpindleMorphometrySettings;
+import de.embl.cba.morphometry.splitting.TrackingSplitter;
+import de.embl.cba.morphometry.synthetic.SyntheticDataSettings;
+import de.embl.cba.morphometry.synthetic.SyntheticEmbryo;
+import de.embl.cba.morphometry.synthetic.SyntheticMicrogliaMovie;
+import de.embl.cba.morphometry.synthetic.SyntheticSpindle;
+import de.embl.cba.morphometry.tracking.MaximalOverlapTracker;
+import net.imagej.ImageJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+
+import java.util.ArrayList;
+
+/**
+ * Runs the tracking, registration and spindle morphometry pipelines on synthetic data and logs the run times.
+ *
+ * Optional arguments: the scale, multiplying the image sizes (default 1), and an output directory,
+ * into which the synthetic images are written as TIFF (default none).
+ */
+public class TestSyntheticDataThroughput
+{
+	public static void main( String... args )
+	{
+		final double scale = args.length > 0 ? Double.parseDouble( args[ 0 ] ) : 1.0;
+		final String outputDirectory = args.length > 1 ? args[ 1 ] : null;
+
+		final ImageJ ij = new ImageJ();
+
+		final SyntheticDataSettings syntheticDataSettings = new SyntheticDataSettings();
+		syntheticDataSettings.movieWidth = ( long ) ( syntheticDataSettings.movieWidth * scale );
+		syntheticDataSettings.movieHeight = ( long ) ( syntheticDataSettings.movieHeight * scale );
+		syntheticDataSettings.numObjects = ( int ) ( syntheticDataSettings.numObjects * scale * scale );
+		for ( int d = 0; d < 3; ++d ) syntheticDataSettings.spindleImageSize[ d ] *= scale;
+		for ( int d = 0; d < 3; ++d ) syntheticDataSettings.embryoCalibration[ d ] /= scale;
+
+		runMicrogliaTracking( syntheticDataSettings, ij, outputDirectory );
+		runShavenBabyRegistration( syntheticDataSettings, ij, outputDirectory );
+		runSpindleMorphometry( syntheticDataSettings, ij, outputDirectory );
+
+		System.exit( 0 );
+	}
+
+	private static void runMicrogliaTracking( SyntheticDataSettings syntheticDataSettings, ImageJ ij, String outputDirectory )
+	{
+		final SyntheticMicrogliaMovie movie = new SyntheticMicrogliaMovie( syntheticDataSettings );
+		movie.run();
+		if ( outputDirectory != null ) movie.saveAsTiff( outputDirectory + "/synthetic-microglia.tif" );
+
+		final MicrogliaTrackingSettings settings = new MicrogliaTrackingSettings();
+		settings.opService = ij.op();
+		settings.inputCalibration = new double[]{ syntheticDataSettings.movieVoxelSize, syntheticDataSettings.movieVoxelSize };
+		settings.workingVoxelSize = syntheticDataSettings.movieVoxelSize;
+		settings.maxPossibleValueInDataSet = 65535.0;
+		settings.maxShortAxisDist = 6;
+		settings.thresholdInUnitsOfBackgroundPeakHalfWidth = 5.0;
+		settings.watershedSeedsLocalMaximaDistanceThreshold = Double.MAX_VALUE;
+		settings.watershedSeedsGlobalDistanceThreshold = 2.5;
+		settings.interestPointsRadius = 0.5;
+		settings.returnEarly = true;
+		settings.skeletonMaxLength = 600 * settings.workingVoxelSize;
+		settings.minimalObjectSize = 50;  // um2
+		settings.minimalObjectCenterDistance = 6;
+		settings.maximalWatershedLength = 10;
+		settings.closingRadius = 3;
+		settings.tMin = 0;
+		settings.tMax = syntheticDataSettings.numFrames - 1;
+		settings.manualSegmentationCorrectionOfFirstFrame = false;
+		settings.manualSegmentationCorrectionOfAllFrames = false;
+
+		final long start = System.currentTimeMillis();
+
+		final ArrayList< RandomAccessibleInterval< BitType > > masks = new ArrayList<>();
+		for ( RandomAccessibleInterval intensity : movie.getIntensities() )
+		{
+			final SimpleSegmenter segmenter = new SimpleSegmenter( intensity, settings );
+			segmenter.run();
+			masks.add( segmenter.getMask() );
+		}
+
+		final TrackingSplitter splitter = new TrackingSplitter( masks, ( ArrayList ) movie.getIntensities(), settings );
+		splitter.run();
+
+		final MaximalOverlapTracker tracker = new MaximalOverlapTracker( splitter.getSplitMasks() );
+		tracker.run();
+
+		Utils.log( "Microglia tracking of " + syntheticDataSettings.numFrames + " frames of "
+				+ syntheticDataSettings.movieWidth + " x " + syntheticDataSettings.movieHeight + " pixels: "
+				+ ( System.currentTimeMillis() - start ) + " ms" );
+	}
+
+	private static void runShavenBabyRegistration( SyntheticDataSettings syntheticDataSettings, ImageJ ij, String outputDirectory )
+	{
+		final SyntheticEmbryo embryo = new SyntheticEmbryo( syntheticDataSettings );
+		embryo.run();
+
+		final ShavenBabyRegistrationSettings settings = new ShavenBabyRegistrationSettings();
+		settings.closingRadius = 0;
+		settings.thresholdModality = "";
+		if ( outputDirectory != null ) embryo.saveAsTiff( outputDirectory + "/synthetic-embryo.tif", settings.svbChannelIndexOneBased, settings.otherChannelIndexOneBased );
+
+		final long start = System.currentTimeMillis();
+
+		final ShavenBabyRegistration registration = new ShavenBabyRegistration( settings, ij.op() );
+		registration.run( embryo.getSvb(), embryo.getOther(), syntheticDataSettings.embryoCalibration );
+
+		Utils.log( "Shavenbaby registration of " + embryo.getSvb().dimension( 0 ) + " x " + embryo.getSvb().dimension( 1 )
+				+ " x " + embryo.getSvb().dimension( 2 ) + " voxels: " + ( System.currentTimeMillis() - start ) + " ms" );
+	}
+
+	private static void runSpindleMorphometry( SyntheticDataSettings syntheticDataSettings, ImageJ ij, String outputDirectory )
+	{
+		final SyntheticSpindle spindle = new SyntheticSpindle( syntheticDataSettings );
+		spindle.run();
+		if ( outputDirectory != null ) spindle.saveAsTiff( outputDirectory + "/synthetic-spindle.tif" );
+
+		final SpindleMorphometrySettings settings = new SpindleMorphometrySettings();
+		settings.inputCalibration = syntheticDataSettings.spindleCalibration;
+		settings.dapiImage = spindle.getDapi();
+		settings.tubulinImage = spindle.getTubulin();
+		settings.workingVoxelSize = 0.25;
+		settings.maxPossibleValueInDataSet = 65535.0;
+		settings.maxShortAxisDist = 6;
+		settings.thresholdInUnitsOfBackgroundPeakHalfWidth = 5.0;
+		settings.watershedSeedsLocalMaximaDistanceThreshold = 1.0;
+		settings.watershedSeedsGlobalDistanceThreshold = 2.0;
+		settings.interestPointsRadius = 0.5;
+		settings.outputProfile = SpindleMorphometrySettings.OUTPUT_MEASUREMENTS;
+		settings.inputDataSetName = "synthetic-spindle";
+
+		final long start = System.currentTimeMillis();
+
+		final SpindleMorphometry morphometry = new SpindleMorphometry( settings, ij.op() );
+		morphometry.run();
+
+		Utils.log( "Spindle morphometry of " + spindle.getDapi().dimension( 0 ) + " x " + spindle.getDapi().dimension( 1 )
+				+ " x " + spindle.getDapi().dimension( 2 ) + " voxels: " + ( System.currentTimeMillis() - start ) + " ms" );
+	}
+}
@@ -0,0 +1,137 @@
+import de.embl.cba.morphometry.Thresholding;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestThresholding
+{
+	public static void main( String[] args )
+	{
+		final Random random = new Random( 42 );
+
+		// row widths that are not multiples of the 64 bit words, such that rows start within words
+		for ( long[] dimensions : new long[][]{ { 67, 13, 5 }, { 1, 7, 3 }, { 130, 3 }, { 64, 64 } } )
+		{
+			final ArrayImg< UnsignedByteType, ? > bytes = ArrayImgs.unsignedBytes( dimensions );
+			for ( UnsignedByteType value : bytes ) value.set( random.nextInt( 256 ) );
+			compare( "UnsignedByte", bytes, -1, 0, 99.5, 100, 254, 255 );
+
+			final ArrayImg< ByteType, ? > signedBytes = ArrayImgs.bytes( dimensions );
+			for ( ByteType value : signedBytes ) value.set( ( byte ) random.nextInt( 256 ) );
+			compare( "Byte", signedBytes, -129, -128, -0.5, 0, 127 );
+
+			final ArrayImg< UnsignedShortType, ? > shorts = ArrayImgs.unsignedShorts( dimensions );
+			for ( UnsignedShortType value : shorts )
+			{
+				final int r = random.nextInt( 4 );
+				value.set( r == 0 ? 0 : r == 1 ? 65535 : random.nextInt( 65536 ) );
+			}
+			compare( "UnsignedShort", shorts, -0.5, 0, 32767, 32767.5, 65534, 65535, 65536 );
+
+			final ArrayImg< IntType, ? > ints = ArrayImgs.ints( dimensions );
+			for ( IntType value : ints ) value.set( random.nextBoolean() ? random.nextInt() : random.nextInt( 3 ) - 1 );
+			compare( "Int", ints, Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE, 1e12, -1e12 );
+
+			final ArrayImg< FloatType, ? > floats = ArrayImgs.floats( dimensions );
+			for ( FloatType value : floats )
+			{
+				final int r = random.nextInt( 8 );
+				if ( r == 0 ) value.set( Float.NaN );
+				else if ( r == 1 ) value.set( Float.POSITIVE_INFINITY );
+				else if ( r == 2 ) value.set( Float.NEGATIVE_INFINITY );
+				else if ( r == 3 ) value.set( 0.5F );
+				else value.set( ( float ) random.nextGaussian() );
+			}
+			compare( "Float", floats, 0.5, 0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY );
+
+			final ArrayImg< DoubleType, ? > doubles = ArrayImgs.doubles( dimensions );
+			for ( DoubleType value : doubles ) value.set( random.nextBoolean() ? Double.NaN : random.nextInt( 5 ) );
+			compare( "Double", doubles, 2, 2.5, Double.NaN );
+
+			// views are thresholded through a cursor
+			compare( "UnsignedShort view", Views.translate( shorts, 10, -3 ), 0, 32767, 65535 );
+			compare( "Float view", Views.interval( floats, Intervals.expand( floats, -1, 1 ) ), 0.5, Double.NaN );
+		}
+	}
+
+	private static < T extends RealType< T > > void compare( String name, RandomAccessibleInterval< T > input, double... thresholds )
+	{
+		for ( double threshold : thresholds )
+		{
+			final Thresholding.Statistics statistics = new Thresholding.Statistics();
+			final RandomAccessibleInterval< BitType > mask = Thresholding.createMask( input, threshold, statistics );
+			final RandomAccessibleInterval< BitType > reference =
+					Converters.convert( input, ( i, o ) -> o.set( i.getRealDouble() > threshold ), new BitType() );
+
+			long numDifferences = 0;
+
+			if ( ! Arrays.equals( Intervals.minAsLongArray( mask ), Intervals.minAsLongArray( input ) )
+					|| ! Arrays.equals( Intervals.maxAsLongArray( mask ), Intervals.maxAsLongArray( input ) ) )
+			{
+				System.out.println( name + ": mask interval differs from input interval" );
+				numDifferences = Intervals.numElements( input );
+			}
+			else
+			{
+				final Cursor< BitType > cursor = Views.flatIterable( mask ).cursor();
+				final Cursor< BitType > referenceCursor = Views.flatIterable( reference ).cursor();
+				while ( cursor.hasNext() )
+				{
+					if ( cursor.next().get() != referenceCursor.next().get() ) numDifferences++;
+				}
+			}
+
+			System.out.println( name + " " + Util.printInterval( input ) + ", threshold " + threshold
+					+ ": number of differing pixels: " + numDifferences );
+
+			compareStatistics( name, statistics, reference );
+		}
+	}
+
+	private static void compareStatistics( String name, Thresholding.Statistics statistics, RandomAccessibleInterval< BitType > reference )
+	{
+		final int n = reference.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		Arrays.fill( min, Long.MAX_VALUE );
+		Arrays.fill( max, Long.MIN_VALUE );
+		final long[] position = new long[ n ];
+		long numForegroundPixels = 0;
+
+		final Cursor< BitType > cursor = Views.iterable( reference ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			if ( ! cursor.next().get() ) continue;
+			numForegroundPixels++;
+			cursor.localize( position );
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], position[ d ] );
+				max[ d ] = Math.max( max[ d ], position[ d ] );
+			}
+		}
+
+		final boolean boundingBoxEquals = numForegroundPixels == 0
+				? statistics.getBoundingBox() == null
+				: Arrays.equals( statistics.min, min ) && Arrays.equals( statistics.max, max );
+
+		System.out.println( name + ": foreground pixels: " + statistics.numForegroundPixels + ", expected: " + numForegroundPixels
+				+ "; bounding box equals: " + boundingBoxEquals );
+	}
+}